@@ -0,0 +1,1015 @@
+package uk.ac.ebi.ddi.ddifileservice;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.util.IOUtils;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+import uk.ac.ebi.ddi.ddifileservice.configuration.AsyncProperties;
+import uk.ac.ebi.ddi.ddifileservice.fixture.FakeS3Server;
+import uk.ac.ebi.ddi.ddifileservice.fixture.FileSystemFixture;
+import uk.ac.ebi.ddi.ddifileservice.services.AsyncFileSystemAdapter;
+import uk.ac.ebi.ddi.ddifileservice.services.ForwardingFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.IFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.InstrumentedFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.MetadataCachingFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.S3FileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.S3TransferService;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3MultipartOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.transfer.TransferListener;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.type.OperationType;
+import uk.ac.ebi.ddi.ddifileservice.type.PooledOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncOptions;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncResult;
+import uk.ac.ebi.ddi.ddifileservice.utils.BufferPool;
+import uk.ac.ebi.ddi.ddifileservice.utils.Checksums;
+import uk.ac.ebi.ddi.ddifileservice.utils.WriteJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Behaviour of the S3 provider against an in-process FakeS3Server, so that it runs without credentials.
+ * Each test starts the service with the properties it needs.
+ */
+public class ITFakeS3FileSystemTest {
+
+	private String parentPath = "testing/s3-service";
+
+	@Test
+	public void testAbortedUpload() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.upload_part_size=5242880")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			String key = parentPath + "/aborted.bin";
+			server.fail("POST " + key + "?uploads", 1, 403, "AccessDenied");
+
+			OutputStream out = fileSystem.openOutputStream(key);
+			try {
+				out.write(randomBytes(6 * 1024 * 1024));
+				Assert.fail("The upload must fail");
+			} catch (AmazonS3Exception e) {
+				Assert.assertEquals(403, e.getStatusCode());
+			}
+			// What was written before the failure must not be stored
+			try {
+				out.close();
+				Assert.fail("Closing a failed upload must fail");
+			} catch (IOException e) {
+				// Expected
+			}
+			Assert.assertNull(server.getObject(key));
+			Assert.assertEquals(0, count(server, "PUT " + key));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUploadPartSizeTooSmall() {
+		new S3MultipartOutputStream(null, FakeS3Server.BUCKET, parentPath + "/small-parts.bin", 1024 * 1024, 1, null);
+	}
+
+	@Test
+	public void testRangedDownload() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.download_part_size=65536")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			String key = parentPath + "/ranged.bin";
+			byte[] data = randomBytes(300 * 1024);
+			fixture.populate(key, data);
+			fixture.getServer().clearRequests();
+
+			try (CloseableFile file = fileSystem.getFile(key)) {
+				Assert.assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+			}
+			// 300 KiB fetched as 64 KiB ranges
+			Assert.assertEquals(5, count(fixture.getServer(), "GET " + key + " bytes="));
+
+			Assert.assertArrayEquals(Arrays.copyOfRange(data, 100000, 100100), fileSystem.readRange(key, 100000, 100));
+			Assert.assertArrayEquals(Arrays.copyOfRange(data, data.length - 10, data.length),
+					fileSystem.readRange(key, data.length - 10, 100));
+
+			// Replaced during the download, which starts over rather than retrying the old version
+			fixture.getServer().clearRequests();
+			fixture.getServer().fail("GET " + key + " bytes=65536-", 1, 412, "PreconditionFailed");
+			try (CloseableFile file = fileSystem.getFile(key)) {
+				Assert.assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+			}
+			Assert.assertEquals(2, count(fixture.getServer(), "HEAD " + key));
+
+			// Nothing is requested for an empty range
+			fixture.getServer().clearRequests();
+			Assert.assertEquals(0, fileSystem.readRange(key, 1000, 0).length);
+			Assert.assertEquals(0, fileSystem.map(key, 1000, 0).remaining());
+			Assert.assertTrue(fixture.getServer().getRequests().isEmpty());
+		}
+	}
+
+	@Test
+	public void testVerifiedDownload() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.download_part_size=65536",
+				"s3.verify_checksums=true")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			String key = parentPath + "/corrupted.bin";
+			fixture.populate(key, randomBytes(200 * 1024));
+			fixture.getServer().corrupt(key, 150 * 1024);
+
+			try (CloseableFile file = fileSystem.getFile(key)) {
+				Assert.fail("The corrupted download must be rejected");
+			} catch (IOException e) {
+				// Expected, the content doesn't match the ETag
+			}
+			try (InputStream in = fileSystem.getInputStream(key)) {
+				IOUtils.toByteArray(in);
+				Assert.fail("The corrupted stream must be rejected");
+			} catch (IOException | SdkClientException e) {
+				// Expected, whole objects are also checked by the client against their MD5
+			}
+		}
+	}
+
+	@Test
+	public void testCompression() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "file.compression.enabled=true",
+				"file.compression.suffixes.xml=gzip")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < 2000; i++) {
+				text.append("<entry id=\"").append(i).append("\"/>\n");
+			}
+			byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+			String compressed = parentPath + "/entries.xml";
+			String plain = parentPath + "/entries.txt";
+			for (String key : Arrays.asList(compressed, plain)) {
+				ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+				outputStream.write(data);
+				fileSystem.saveFile(outputStream, key);
+			}
+
+			// Only the extensions given a codec are compressed
+			Assert.assertEquals("gzip", fixture.getServer().getContentEncoding(compressed));
+			Assert.assertTrue(fixture.getServer().getObject(compressed).length < data.length);
+			Assert.assertNull(fixture.getServer().getContentEncoding(plain));
+			Assert.assertArrayEquals(data, fixture.getServer().getObject(plain));
+
+			// Every read returns the decoded content
+			try (InputStream in = fileSystem.getInputStream(compressed)) {
+				Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+			}
+			Assert.assertEquals(data.length, fileSystem.getMetadata(compressed).getSize());
+			Assert.assertArrayEquals(Arrays.copyOfRange(data, 1000, 1050), fileSystem.readRange(compressed, 1000, 50));
+			ByteBuffer buffer = fileSystem.map(compressed, data.length - 20, 100);
+			Assert.assertEquals(20, buffer.remaining());
+			Assert.assertEquals(0, fileSystem.readRange(compressed, data.length + 1, 10).length);
+			try (SeekableByteChannel channel = fileSystem.open(compressed)) {
+				Assert.assertEquals(data.length, channel.size());
+				buffer = ByteBuffer.allocate(10);
+				channel.position(2000).read(buffer);
+				Assert.assertArrayEquals(Arrays.copyOfRange(data, 2000, 2010), buffer.array());
+			}
+			Assert.assertArrayEquals(Arrays.copyOfRange(data, 1000, 1050), fileSystem.readRange(plain, 1000, 50));
+		}
+	}
+
+	@Test
+	public void testUploadChecksums() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.upload_part_size=5242880",
+				"s3.verify_checksums=true")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			byte[] data = randomBytes(12 * 1024 * 1024);
+			String single = parentPath + "/single.bin";
+			String multipart = parentPath + "/multipart.bin";
+			ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+			outputStream.write(data, 0, 1024);
+			fileSystem.saveFile(outputStream, single);
+			try (OutputStream out = fileSystem.openOutputStream(multipart)) {
+				out.write(data);
+			}
+
+			// Single requests store their CRC-32C, multipart uploads the part size their ETag is checked with
+			Checksums checksums = new Checksums();
+			checksums.update(data, 0, 1024);
+			Assert.assertEquals(checksums.getCrc32cHex(), server.getUserMetadata(single).get(Checksums.CRC32C_METADATA));
+			Assert.assertEquals("5242880", server.getUserMetadata(multipart).get(Checksums.PART_SIZE_METADATA));
+
+			// Copied files are streamed the same way, hashed part by part as they are read
+			File file = File.createTempFile("omics-checksums", ".bin");
+			try {
+				Files.write(file.toPath(), data);
+				String copied = parentPath + "/copied.bin";
+				fileSystem.copyFile(file, copied);
+				Assert.assertArrayEquals(data, server.getObject(copied));
+				Assert.assertEquals("5242880", server.getUserMetadata(copied).get(Checksums.PART_SIZE_METADATA));
+			} finally {
+				Files.delete(file.toPath());
+			}
+
+			server.clearRequests();
+			try (InputStream in = fileSystem.getInputStream(multipart)) {
+				Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+			}
+			Assert.assertEquals(0, count(server, "HEAD " + multipart + "?partNumber"));
+
+			server.corrupt(multipart, 6 * 1024 * 1024);
+			try (InputStream in = fileSystem.getInputStream(multipart)) {
+				IOUtils.toByteArray(in);
+				Assert.fail("The corrupted part must be detected");
+			} catch (IOException e) {
+				// Expected, the content doesn't match the multipart ETag
+			}
+		}
+	}
+
+	@Test
+	public void testPooledTransfers() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.upload_part_size=5242880",
+				"s3.upload_concurrency=1", "s3.download_part_size=1048576", "s3.verify_checksums=true")) {
+			S3FileSystem fileSystem = ForwardingFileSystem.unwrap(fixture.getFileSystem(), S3FileSystem.class);
+			BufferPool pool = fixture.getBean(BufferPool.class);
+			byte[] data = randomBytes(12 * 1024 * 1024);
+			String single = parentPath + "/pooled-single.bin";
+			String multipart = parentPath + "/pooled-multipart.bin";
+			long chunks = 2L * data.length / pool.getChunkSize();
+			for (int i = 0; i < 2; i++) {
+				long acquisitions = pool.getAcquisitions();
+				long allocations = pool.getAllocations();
+				PooledOutputStream outputStream = pool.newOutputStream();
+				outputStream.write(data, 0, 1024);
+				fileSystem.saveFile(outputStream, single);
+				outputStream.release();
+				try (OutputStream out = fileSystem.openOutputStream(multipart)) {
+					out.write(data);
+				}
+				try (InputStream in = fileSystem.getInputStream(multipart, 2)) {
+					Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+				}
+
+				// Upload parts and prefetched ranges are held in chunks of the pool
+				Assert.assertTrue(pool.getAcquisitions() - acquisitions >= chunks);
+				if (i > 0) {
+					// and mostly recycled from the previous round
+					Assert.assertTrue(pool.getAllocations() - allocations < chunks / 2);
+				}
+			}
+			Assert.assertArrayEquals(Arrays.copyOf(data, 1024), fixture.getServer().getObject(single));
+		}
+	}
+
+	@Test
+	public void testSyncMultipartChecksum() throws IOException {
+		Path directory = Files.createTempDirectory("omics-sync");
+		// Synchronized through a decorator, which must still try the part size of the uploads
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.upload_part_size=6291456",
+				"file.compression.enabled=true")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			Assert.assertTrue(fileSystem instanceof ForwardingFileSystem);
+			FakeS3Server server = fixture.getServer();
+			String destination = parentPath + "/synced";
+			// 3 parts of 6 MB, none of the usual part sizes
+			byte[] data = randomBytes(13 * 1024 * 1024);
+			Files.write(directory.resolve("data.bin"), data);
+			try (OutputStream out = fileSystem.openOutputStream(destination + "/data.bin")) {
+				out.write(data);
+			}
+			// As uploaded before the part size was recorded, only the configured one can match
+			server.getUserMetadata(destination + "/data.bin").remove(Checksums.PART_SIZE_METADATA);
+
+			SyncOptions options = new SyncOptions();
+			options.setChecksum(true);
+			SyncResult result = fileSystem.syncDirectory(directory.toString(), destination, options);
+			Assert.assertEquals(1, result.getUnchangedCount());
+			Assert.assertTrue(result.getTransferred().isEmpty());
+
+			// Same size, different content
+			data[0]++;
+			Files.write(directory.resolve("data.bin"), data);
+			server.clearRequests();
+			result = fileSystem.syncDirectory(directory.toString(), destination, options);
+			Assert.assertEquals(Collections.singletonList(destination + "/data.bin"), result.getTransferred());
+			Assert.assertEquals(1, count(server, "HEAD " + destination + "/data.bin"));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testSyncCompressed() throws IOException {
+		Path directory = Files.createTempDirectory("omics-sync");
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "file.compression.enabled=true",
+				"file.compression.suffixes.xml=gzip")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			String destination = parentPath + "/synced";
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < 2000; i++) {
+				text.append("<entry id=\"").append(i).append("\"/>\n");
+			}
+			Files.write(directory.resolve("entries.xml"), text.toString().getBytes(StandardCharsets.UTF_8));
+			Files.write(directory.resolve("data.bin"), randomBytes(1024));
+
+			SyncOptions options = new SyncOptions();
+			SyncResult result = fileSystem.syncDirectory(directory.toString(), destination, options);
+			Assert.assertEquals(2, result.getTransferred().size());
+			Assert.assertEquals("gzip", server.getContentEncoding(destination + "/entries.xml"));
+
+			// The stored size of compressed files differs from theirs, their decoded size is recorded
+			result = fileSystem.syncDirectory(directory.toString(), destination, options);
+			Assert.assertTrue(result.getTransferred().isEmpty());
+			Assert.assertEquals(2, result.getUnchangedCount());
+
+			// The ETag of compressed files is the one of the compressed content, which is compared decoded
+			options.setChecksum(true);
+			server.clearRequests();
+			result = fileSystem.syncDirectory(directory.toString(), destination, options);
+			Assert.assertTrue(result.getTransferred().isEmpty());
+			Assert.assertEquals(2, result.getUnchangedCount());
+			Assert.assertEquals(0, count(server, "PUT "));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testPaginatedListing() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0)) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			String folder = parentPath + "/paginated";
+			for (int i = 0; i < 2500; i++) {
+				fixture.populate(String.format("%s/%04d.bin", folder, i), new byte[i % 10]);
+			}
+
+			server.clearRequests();
+			List<FileEntry> entries;
+			try (Stream<FileEntry> files = fileSystem.listFiles(folder)) {
+				entries = files.collect(Collectors.toList());
+			}
+			Assert.assertEquals(2500, entries.size());
+			for (int i = 0; i < entries.size(); i++) {
+				Assert.assertEquals(String.format("%s/%04d.bin", folder, i), entries.get(i).getPath());
+				Assert.assertEquals(i % 10, entries.get(i).getSize());
+				Assert.assertNotNull(entries.get(i).getETag());
+			}
+			Assert.assertEquals(3, count(server, "GET ?list-type=2"));
+			Assert.assertEquals(2500, fileSystem.listFilesFromFolder(folder).size());
+
+			// Pages are only fetched one ahead of the reader
+			server.clearRequests();
+			try (Stream<FileEntry> files = fileSystem.listFiles(folder)) {
+				Assert.assertEquals(folder + "/0000.bin", files.findFirst().get().getPath());
+			}
+			Assert.assertTrue(count(server, "GET ?list-type=2") <= 2);
+		}
+	}
+
+	@Test
+	public void testBatchDelete() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.delete_concurrency=1")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			String folder = parentPath + "/deleted";
+			List<String> keys = new ArrayList<>();
+			for (int i = 0; i < 2500; i++) {
+				keys.add(String.format("%s/%04d.bin", folder, i));
+				fixture.populate(keys.get(i), new byte[1]);
+			}
+
+			// Up to 1000 keys per request
+			server.clearRequests();
+			DeleteResult result = fileSystem.deleteFiles(keys.subList(0, 2100));
+			Assert.assertTrue(result.isSuccessful());
+			Assert.assertEquals(2100, result.getDeletedCount());
+			Assert.assertEquals(3, count(server, "POST ?delete"));
+			Assert.assertEquals(0, count(server, "DELETE "));
+			Assert.assertEquals(400, server.size());
+
+			// A rejected batch fails its keys only
+			server.fail("POST ?delete", 1, 403, "AccessDenied");
+			result = fileSystem.deleteFiles(keys);
+			Assert.assertFalse(result.isSuccessful());
+			Assert.assertEquals(1000, result.getFailures().size());
+			Assert.assertTrue(result.getFailures().containsKey(keys.get(0)));
+
+			fileSystem.cleanDirectory(folder);
+			Assert.assertEquals(0, server.size());
+		}
+	}
+
+	@Test
+	public void testServerSideCopy() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.upload_part_size=5242880",
+				"s3.multipart_copy_threshold=10485760", "s3.copy_part_size=6291456")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			String source = parentPath + "/copied";
+			String destination = parentPath + "/copy";
+			byte[] small = randomBytes(1024);
+			fixture.populate(source + "/small.bin", small);
+			// 4 parts of 5 MB, copied as 4 parts of 6 MB
+			byte[] large = randomBytes(20 * 1024 * 1024);
+			try (OutputStream out = fileSystem.openOutputStream(source + "/nested/large.bin")) {
+				out.write(large);
+			}
+
+			server.clearRequests();
+			fileSystem.copyObject(source + "/small.bin", destination + "/single.bin");
+			Assert.assertArrayEquals(small, server.getObject(destination + "/single.bin"));
+			fileSystem.copyPrefix(source, destination);
+			Assert.assertArrayEquals(small, server.getObject(destination + "/small.bin"));
+			Assert.assertArrayEquals(large, server.getObject(destination + "/nested/large.bin"));
+			// The data never leaves the server
+			Assert.assertEquals(0, count(server, "GET " + source));
+			Assert.assertEquals(4, server.getRequests().stream()
+					.filter(x -> x.startsWith("PUT " + destination + "/nested/large.bin?") && x.contains("partNumber="))
+					.count());
+
+			// The copy records its own part size, which its ETag is verified with
+			Assert.assertEquals("6291456",
+					server.getUserMetadata(destination + "/nested/large.bin").get(Checksums.PART_SIZE_METADATA));
+			try (InputStream in = fileSystem.getInputStream(destination + "/nested/large.bin")) {
+				Assert.assertArrayEquals(large, IOUtils.toByteArray(in));
+			}
+		}
+	}
+
+	@Test
+	public void testTransferProgress() throws Exception {
+		Path directory = Files.createTempDirectory("omics-transfer");
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.multipart_upload_threshold=6291456",
+				"s3.transfer_part_size=5242880")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			S3TransferService transferService = fixture.getBean(S3TransferService.class);
+			String prefix = parentPath + "/transferred";
+			byte[] large = randomBytes(12 * 1024 * 1024);
+			byte[] small = randomBytes(1024);
+			Files.write(directory.resolve("large.bin"), large);
+			Files.createDirectories(directory.resolve("nested"));
+			Files.write(directory.resolve("nested/small.bin"), small);
+
+			// The last report covers the whole transfer
+			AtomicLong transferred = new AtomicLong();
+			AtomicLong total = new AtomicLong();
+			transferService.uploadDirectory(directory.toFile(), prefix, (bytes, totalBytes, bytesPerSecond) -> {
+				transferred.set(bytes);
+				total.set(totalBytes);
+			}).get(1, TimeUnit.MINUTES);
+			Assert.assertEquals(large.length + small.length, total.get());
+			Assert.assertEquals(total.get(), transferred.get());
+			Assert.assertArrayEquals(large, server.getObject(prefix + "/large.bin"));
+			Assert.assertArrayEquals(small, server.getObject(prefix + "/nested/small.bin"));
+			Assert.assertTrue(server.getRequests().contains("POST " + prefix + "/large.bin?uploads"));
+
+			File downloaded = directory.resolve("downloaded.bin").toFile();
+			transferService.downloadFile(prefix + "/large.bin", downloaded, TransferListener.NONE)
+					.get(1, TimeUnit.MINUTES);
+			Assert.assertArrayEquals(large, Files.readAllBytes(downloaded.toPath()));
+
+			// Failures complete the future instead of being thrown
+			server.fail("PUT " + prefix + "/failed.bin", 1, 403, "AccessDenied");
+			try {
+				transferService.uploadFile(directory.resolve("nested/small.bin").toFile(), prefix + "/failed.bin",
+						TransferListener.NONE).get(1, TimeUnit.MINUTES);
+				Assert.fail("The upload must fail");
+			} catch (ExecutionException e) {
+				Assert.assertEquals(403, ((AmazonS3Exception) e.getCause()).getStatusCode());
+			}
+
+			fileSystem.copyDirectory(directory.resolve("nested").toString(), parentPath + "/copied");
+			Assert.assertArrayEquals(small, server.getObject(parentPath + "/copied/small.bin"));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testAsyncFileSystem() throws Exception {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 100)) {
+			AsyncProperties properties = new AsyncProperties();
+			properties.setExistsConcurrency(2);
+			try (AsyncFileSystemAdapter fileSystem = new AsyncFileSystemAdapter(fixture.getFileSystem(), properties,
+					false)) {
+				String key = parentPath + "/async.bin";
+				byte[] data = randomBytes(1024);
+				ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+				outputStream.write(data);
+				fileSystem.saveFile(outputStream, key).get(1, TimeUnit.MINUTES);
+				try (InputStream in = fileSystem.getInputStream(key).get(1, TimeUnit.MINUTES)) {
+					Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+				}
+
+				// Submitting never blocks, operations over the limit wait without a thread
+				long start = System.nanoTime();
+				List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+				for (int i = 0; i < 6; i++) {
+					futures.add(fileSystem.isFile(key));
+				}
+				Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+				Assert.assertEquals(2, fileSystem.getLimiter(OperationType.EXISTS).getRunning());
+				Assert.assertEquals(4, fileSystem.getLimiter(OperationType.EXISTS).getPending());
+				for (CompletableFuture<Boolean> future : futures) {
+					Assert.assertTrue(future.get(1, TimeUnit.MINUTES));
+				}
+				Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+
+				// Failures are delivered through the future
+				CompletableFuture<InputStream> missing = fileSystem.getInputStream(parentPath + "/missing.bin");
+				try {
+					missing.get(1, TimeUnit.MINUTES).close();
+					Assert.fail("The read of a missing file must fail");
+				} catch (ExecutionException e) {
+					Assert.assertTrue(missing.isCompletedExceptionally());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMetadataWarmUp() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0)) {
+			FakeS3Server server = fixture.getServer();
+			MetadataCachingFileSystem cache = new MetadataCachingFileSystem(fixture.getFileSystem(), 100, 1, 1,
+					TimeUnit.MINUTES);
+			String folder = parentPath + "/warm-up";
+			fixture.populate(folder + "/a.bin", new byte[1]);
+			fixture.populate(folder + "/nested/b.bin", new byte[2]);
+			Assert.assertEquals(2, cache.warmUp(folder));
+
+			// Answered from the listing, without a request
+			server.clearRequests();
+			Assert.assertTrue(cache.isFile(folder + "/a.bin"));
+			Assert.assertEquals(2, cache.getMetadata(folder + "/nested/b.bin").getSize());
+			Assert.assertNotNull(cache.getMetadata(folder + "/a.bin").getETag());
+			Assert.assertFalse(cache.isFile(folder + "/missing.bin"));
+			Assert.assertTrue(server.getRequests().isEmpty());
+
+			cache.deleteFile(folder + "/a.bin");
+			Assert.assertFalse(cache.isFile(folder + "/a.bin"));
+			Assert.assertEquals(1, count(server, "DELETE " + folder + "/a.bin"));
+		}
+	}
+
+	@Test
+	public void testMetadataWarmUpNegativeTtl() throws Exception {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0)) {
+			MetadataCachingFileSystem cache = new MetadataCachingFileSystem(fixture.getFileSystem(), 100, 60000, 50,
+					TimeUnit.MILLISECONDS);
+			String folder = parentPath + "/warm-up";
+			fixture.populate(folder + "/a.bin", new byte[1]);
+			cache.warmUp(folder);
+
+			// Created behind the cache, missing from the listing for the negative TTL only
+			fixture.populate(folder + "/late.bin", new byte[1]);
+			Assert.assertFalse(cache.isFile(folder + "/late.bin"));
+			Thread.sleep(100);
+			Assert.assertTrue(cache.isFile(folder + "/late.bin"));
+			Assert.assertTrue(cache.isFile(folder + "/a.bin"));
+		}
+	}
+
+	@Test
+	public void testCacheDirectoryShared() throws IOException {
+		Path directory = Files.createTempDirectory("omics-cache");
+		Path foreign = Files.write(directory.resolve("foreign.txt"), new byte[]{1});
+		Path stale = Files.write(directory.resolve("entry-stale.bin"), new byte[]{1});
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "file.cache.enabled=true",
+				"file.cache.directory=" + directory)) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			String key = parentPath + "/cached.bin";
+			byte[] data = randomBytes(1024);
+			fixture.populate(key, data);
+			try (CloseableFile file = fileSystem.getFile(key)) {
+				Assert.assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+			}
+
+			// Only the entries left by a previous run are deleted
+			Assert.assertTrue(Files.exists(foreign));
+			Assert.assertFalse(Files.exists(stale));
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testTieredFlushOrder() throws IOException {
+		Path directory = Files.createTempDirectory("omics-tier");
+		try (FileSystemFixture fixture = new FileSystemFixture("tiered", 20, "file.tiered.directory=" + directory,
+				"file.tiered.flush_concurrency=4")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			for (int version = 0; version < 10; version++) {
+				for (int i = 0; i < 3; i++) {
+					ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+					outputStream.write(version(version));
+					fileSystem.saveFile(outputStream, parentPath + "/ordered-" + i + ".bin");
+				}
+			}
+			try (InputStream in = fileSystem.getInputStream(parentPath + "/ordered-0.bin")) {
+				Assert.assertArrayEquals(version(9), IOUtils.toByteArray(in));
+			}
+
+			// Listing waits for the pending flushes, which must leave the last write of every key in S3
+			Assert.assertEquals(3, fileSystem.listFilesFromFolder(parentPath).size());
+			for (int i = 0; i < 3; i++) {
+				Assert.assertArrayEquals(version(9), fixture.getServer().getObject(parentPath + "/ordered-" + i + ".bin"));
+			}
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testTieredReplay() throws IOException {
+		Path directory = Files.createTempDirectory("omics-tier");
+		String replayed = parentPath + "/replayed.bin";
+		String lost = parentPath + "/lost.bin";
+		// The state left by a process which died with three flushes pending, one of them without its file
+		try (WriteJournal journal = new WriteJournal(directory.resolve("journal"))) {
+			// The latest write of a key is the last one journaled, whatever the order of their ids
+			long latest = journal.reserve();
+			long stale = journal.reserve();
+			Files.write(directory.resolve("pending-" + latest + ".bin"), version(1));
+			Files.write(directory.resolve("pending-" + stale + ".bin"), version(0));
+			journal.append(stale, replayed);
+			journal.append(latest, replayed);
+			journal.append(journal.reserve(), lost);
+		}
+		Path clean = Files.write(directory.resolve("hot-1.bin"), version(0));
+		Path foreign = Files.write(directory.resolve("notes.txt"), version(0));
+		try (FileSystemFixture fixture = new FileSystemFixture("tiered", 0, "file.tiered.directory=" + directory)) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			try (InputStream in = fileSystem.getInputStream(replayed)) {
+				Assert.assertArrayEquals(version(1), IOUtils.toByteArray(in));
+			}
+			Assert.assertEquals(Arrays.asList(replayed), fileSystem.listFilesFromFolder(parentPath));
+			Assert.assertArrayEquals(version(1), fixture.getServer().getObject(replayed));
+			Assert.assertNull(fixture.getServer().getObject(lost));
+			Assert.assertFalse(Files.exists(clean));
+			Assert.assertTrue(Files.exists(foreign));
+		}
+		try (WriteJournal journal = new WriteJournal(directory.resolve("journal"))) {
+			Assert.assertTrue(journal.getPending().isEmpty());
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testTieredDemotionRace() throws Exception {
+		Path directory = Files.createTempDirectory("omics-tier");
+		// Every clean file is over capacity, so files get demoted while they are being promoted, read and written
+		try (FileSystemFixture fixture = new FileSystemFixture("tiered", 1, "file.tiered.directory=" + directory,
+				"file.tiered.max_size=1", "file.tiered.max_idle_seconds=0", "file.tiered.demotion_interval_seconds=1")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			List<String> keys = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				keys.add(parentPath + "/cold-" + i + ".bin");
+				fixture.populate(keys.get(i), version(i));
+			}
+			for (int i = 0; i < 4; i++) {
+				keys.add(parentPath + "/written-" + i + ".bin");
+				ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+				outputStream.write(version(0));
+				fileSystem.saveFile(outputStream, keys.get(4 + i));
+			}
+
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			try {
+				List<Future<?>> futures = new ArrayList<>();
+				for (int i = 0; i < 4; i++) {
+					String key = keys.get(4 + i);
+					futures.add(executor.submit(() -> {
+						for (int version = 1; version < 50; version++) {
+							ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+							outputStream.write(version(version));
+							fileSystem.saveFile(outputStream, key);
+						}
+						return null;
+					}));
+				}
+				for (int i = 0; i < 4; i++) {
+					Random random = new Random(i);
+					futures.add(executor.submit(() -> {
+						for (int n = 0; n < 200; n++) {
+							String key = keys.get(random.nextInt(keys.size()));
+							byte[] data;
+							if (n % 2 == 0) {
+								try (InputStream in = fileSystem.getInputStream(key)) {
+									data = IOUtils.toByteArray(in);
+								}
+							} else {
+								try (CloseableFile file = fileSystem.getFile(key)) {
+									data = Files.readAllBytes(file.toPath());
+								}
+							}
+							// Always a whole version of the key, never a partial or demoted file
+							Assert.assertArrayEquals(key, version(data.length - 1024), data);
+						}
+						return null;
+					}));
+				}
+				for (Future<?> future : futures) {
+					future.get(2, TimeUnit.MINUTES);
+				}
+			} finally {
+				executor.shutdownNow();
+			}
+
+			fileSystem.listFilesFromFolder(parentPath);
+			for (int i = 0; i < 4; i++) {
+				Assert.assertArrayEquals(version(49), fixture.getServer().getObject(keys.get(4 + i)));
+			}
+		} finally {
+			deleteDirectory(directory);
+		}
+	}
+
+	@Test
+	public void testDeduplication() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "file.dedup.enabled=true",
+				"file.dedup.min_size=1024")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			String folder = parentPath + "/dedup";
+			byte[] data = randomBytes(4096);
+			for (int i = 0; i < 3; i++) {
+				ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+				outputStream.write(data);
+				fileSystem.saveFile(outputStream, folder + "/copy-" + i + ".bin");
+			}
+			Assert.assertEquals(1, count(server, "PUT .dedup/objects/"));
+
+			// Pointers are recognized by their listed size, without looking up their metadata again
+			server.clearRequests();
+			try (Stream<FileEntry> files = fileSystem.listFiles(folder)) {
+				Assert.assertEquals(Arrays.asList(4096L, 4096L, 4096L),
+						files.map(FileEntry::getSize).collect(Collectors.toList()));
+			}
+			Assert.assertEquals(0, count(server, "HEAD "));
+			Assert.assertEquals(3, count(server, "GET " + folder + "/"));
+
+			// The content is only released once no pointer to it is left
+			server.clearRequests();
+			fileSystem.cleanDirectory(folder);
+			List<String> requests = server.getRequests();
+			Assert.assertTrue(requests.indexOf("POST ?delete") >= 0);
+			Assert.assertTrue(requests.stream().filter(x -> x.startsWith("DELETE .dedup/"))
+					.allMatch(x -> requests.indexOf(x) > requests.indexOf("POST ?delete")));
+			Assert.assertEquals(0, server.size());
+		}
+	}
+
+	@Test
+	public void testDeduplicationCompressed() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "file.dedup.enabled=true",
+				"file.compression.enabled=true", "file.compression.suffixes.xml=gzip")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			String key = parentPath + "/dedup/small.xml";
+			byte[] data = randomBytes(16 * 1024);
+			ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+			outputStream.write(data);
+			fileSystem.saveFile(outputStream, key);
+			Assert.assertEquals("gzip", server.getContentEncoding(key));
+			// As streamed, its decoded size is only known by decoding it
+			server.getUserMetadata(key).remove(Checksums.DECODED_SIZE_METADATA);
+
+			// Pointers are told apart by their stored size, without downloading the file
+			server.clearRequests();
+			fileSystem.deleteFile(key);
+			Assert.assertEquals(0, count(server, "GET " + key));
+			Assert.assertNull(server.getObject(key));
+		}
+	}
+
+	@Test
+	public void testMetrics() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0)) {
+			MeterRegistry registry = new SimpleMeterRegistry();
+			IFileSystem fileSystem = new InstrumentedFileSystem(fixture.getFileSystem(), registry, "s3", false);
+			String folder = parentPath + "/metrics";
+			byte[] data = randomBytes(1000);
+			for (int i = 0; i < 3; i++) {
+				ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+				outputStream.write(data);
+				fileSystem.saveFile(outputStream, folder + "/" + i + ".bin");
+			}
+			Assert.assertEquals(3, timer(registry, "saveFile", "success").count());
+			Assert.assertEquals(3000, registry.get("file.bytes").tags("direction", "write").counter().count(), 0);
+
+			// A listing consumed to its end is recorded even if its stream is never closed
+			Assert.assertEquals(3, fileSystem.listFiles(folder).count());
+			Assert.assertEquals(1, timer(registry, "listFiles", "success").count());
+			Assert.assertEquals(0, registry.get("file.operations.active").tags("operation", "listFiles").gauge().value(), 0);
+
+			// As is one which fails while it is consumed
+			fixture.getServer().fail("GET ?list-type=2", 1, 403, "AccessDenied");
+			try (Stream<FileEntry> files = fileSystem.listFiles(folder)) {
+				files.count();
+				Assert.fail("The listing must fail");
+			} catch (AmazonS3Exception e) {
+				Assert.assertEquals(403, e.getStatusCode());
+			}
+			Assert.assertEquals(1, timer(registry, "listFiles", "success").count());
+			Assert.assertEquals(1, timer(registry, "listFiles", "error").count());
+			Assert.assertEquals(0, registry.get("file.operations.active").tags("operation", "listFiles").gauge().value(), 0);
+
+			fixture.getServer().fail("HEAD " + folder, 1, 403, "AccessDenied");
+			try {
+				fileSystem.getMetadata(folder + "/0.bin");
+				Assert.fail("The lookup must fail");
+			} catch (AmazonS3Exception e) {
+				Assert.assertEquals(1, timer(registry, "getMetadata", "error").count());
+			}
+		}
+	}
+
+	@Test
+	public void testShardedListing() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.list_shard_fan_out=8")) {
+			FakeS3Server server = fixture.getServer();
+			String folder = parentPath + "/sharded";
+			List<String> keys = new ArrayList<>();
+			keys.add(folder + "/top.bin");
+			for (int i = 0; i < 5; i++) {
+				for (int j = 0; j < 20; j++) {
+					keys.add(folder + "/nested/" + i + "/" + j + ".bin");
+				}
+			}
+			// More direct children than a page, listed as a single shard rather than during discovery
+			for (int i = 0; i < 2500; i++) {
+				keys.add(String.format("%s/flat/%04d.bin", folder, i));
+			}
+			keys.forEach(x -> server.putObject(x, new byte[1]));
+			Collections.sort(keys);
+
+			server.clearRequests();
+			try (Stream<FileEntry> files = fixture.getFileSystem().listFiles(folder)) {
+				Assert.assertEquals(keys, files.map(FileEntry::getPath).collect(Collectors.toList()));
+			}
+			Assert.assertEquals(1, server.getRequests().stream()
+					.filter(x -> x.contains("prefix=testing%2Fs3-service%2Fsharded%2Fflat%2F") && x.contains("delimiter="))
+					.count());
+
+			S3FileSystem s3FileSystem = ForwardingFileSystem.unwrap(fixture.getFileSystem(), S3FileSystem.class);
+			try (Stream<FileEntry> files = s3FileSystem.listFiles(folder, 8, false)) {
+				Assert.assertEquals(keys, files.map(FileEntry::getPath).sorted().collect(Collectors.toList()));
+			}
+		}
+	}
+
+	@Test
+	public void testShardedListingConcurrency() throws IOException {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 20, "s3.list_shard_fan_out=64",
+				"s3.list_concurrency=2")) {
+			FakeS3Server server = fixture.getServer();
+			String folder = parentPath + "/sharded";
+			List<String> keys = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				for (int j = 0; j < 4; j++) {
+					keys.add(folder + "/" + i + "/" + j + "/0.bin");
+				}
+			}
+			keys.forEach(x -> server.putObject(x, new byte[1]));
+
+			// Discovery of the sub folders is bounded like the listing of the shards
+			server.clearRequests();
+			try (Stream<FileEntry> files = fixture.getFileSystem().listFiles(folder)) {
+				Assert.assertEquals(keys.size(), files.count());
+			}
+			Assert.assertTrue(count(server, "GET ?list-type=2") > 8);
+			Assert.assertTrue(server.getMaxInFlight() <= 2);
+		}
+	}
+
+	@Test
+	public void testClientConfiguration() throws Exception {
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 100, "s3.max_connections=1",
+				"s3.max_error_retry=1")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			String key = parentPath + "/configured.bin";
+			fixture.populate(key, new byte[1]);
+
+			// Retried once, then given up
+			server.fail("HEAD " + key, 1, 500, "InternalError");
+			Assert.assertEquals(1, fileSystem.getMetadata(key).getSize());
+			server.clearRequests();
+			server.fail("HEAD " + key, 2, 500, "InternalError");
+			try {
+				fileSystem.getMetadata(key);
+				Assert.fail("The lookup must fail once the retries are exhausted");
+			} catch (AmazonS3Exception e) {
+				Assert.assertEquals(500, e.getStatusCode());
+			}
+			Assert.assertEquals(2, count(server, "HEAD " + key));
+
+			// A single connection serializes concurrent requests
+			ExecutorService executor = Executors.newFixedThreadPool(4);
+			try {
+				long start = System.nanoTime();
+				List<Future<FileEntry>> futures = new ArrayList<>();
+				for (int i = 0; i < 4; i++) {
+					futures.add(executor.submit(() -> fileSystem.getMetadata(key)));
+				}
+				for (Future<FileEntry> future : futures) {
+					future.get(1, TimeUnit.MINUTES);
+				}
+				Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(400));
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	@Test
+	public void testAdmissionControl() throws Exception {
+		// Without a registry bean, the meters of the client are published to the global registry
+		MeterRegistry registry = new SimpleMeterRegistry();
+		Metrics.addRegistry(registry);
+		try (FileSystemFixture fixture = new FileSystemFixture("s3", 0, "s3.admission_control=true",
+				"s3.admission_initial_rate=20", "s3.admission_rate_increase=0", "file.metrics.enabled=true")) {
+			IFileSystem fileSystem = fixture.getFileSystem();
+			FakeS3Server server = fixture.getServer();
+			String key = parentPath + "/admitted.bin";
+			fixture.populate(key, new byte[1]);
+			Gauge rate = registry.get("s3.admission.rate").tags("budget", "get").gauge();
+			Assert.assertEquals(20, rate.value(), 0);
+
+			// Past the burst of a second, requests are admitted at the rate
+			long start = System.nanoTime();
+			for (int i = 0; i < 40; i++) {
+				fileSystem.getMetadata(key);
+			}
+			Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(800));
+
+			// SlowDown halves the rate, the request succeeds once retried
+			Thread.sleep(150);
+			server.fail("HEAD " + key, 1, 503, "SlowDown");
+			Assert.assertEquals(1, fileSystem.getMetadata(key).getSize());
+			Assert.assertEquals(10, rate.value(), 0);
+			Assert.assertEquals(1, registry.get("s3.admission.throttled").tags("budget", "get")
+					.functionCounter().count(), 0);
+			// Other kinds of requests keep their own budget
+			Assert.assertEquals(20, registry.get("s3.admission.rate").tags("budget", "put").gauge().value(), 0);
+		} finally {
+			Metrics.removeRegistry(registry);
+		}
+	}
+
+	private static long count(FakeS3Server server, String prefix) {
+		return server.getRequests().stream().filter(x -> x.startsWith(prefix)).count();
+	}
+
+	private static Timer timer(MeterRegistry registry, String operation, String outcome) {
+		return registry.get("file.operations").tags("operation", operation, "outcome", outcome).timer();
+	}
+
+	// A distinct content for every version, its length telling the version
+	private static byte[] version(int version) {
+		byte[] data = new byte[1024 + version];
+		Arrays.fill(data, (byte) version);
+		return data;
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete());
+		}
+	}
+
+	private static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+}
@@ -8,14 +8,36 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.test.context.junit4.SpringRunner;
+import uk.ac.ebi.ddi.ddifileservice.services.DeduplicatingFileSystem;
 import uk.ac.ebi.ddi.ddifileservice.services.IFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.MetadataCachingFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.WriteBehindFileSystem;
 import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.PooledOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncOptions;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncResult;
+import uk.ac.ebi.ddi.ddifileservice.utils.BufferPool;
+import uk.ac.ebi.ddi.ddifileservice.utils.WriteJournal;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest({"file.provider=local"})
@@ -88,4 +110,273 @@ public class ITLocalFileSystemTest {
 		Assert.assertEquals(2, fileSystem.listFilesFromFolder(destDir).size());
 		fileSystem.cleanDirectory(destDir);
 	}
+
+	@Test
+	public void testLocalOutputStream() throws IOException {
+		try (OutputStream out = fileSystem.openOutputStream(testFile1)) {
+			out.write("streamed content".getBytes());
+		}
+
+		try (InputStream in = fileSystem.getInputStream(testFile1)) {
+			Assert.assertEquals("streamed content", IOUtils.toString(in));
+		}
+		fileSystem.deleteFile(testFile1);
+	}
+
+	@Test
+	public void testLocalCleanNestedDirectory() throws IOException {
+		File experiment = new File(getClass().getClassLoader().getResource("sample-file.txt").getFile());
+		fileSystem.copyFile(experiment, testFile1);
+		Files.createDirectories(new File(parentPath + "/nested").toPath());
+		fileSystem.copyFile(experiment, parentPath + "/nested/sample-file.txt");
+
+		Assert.assertEquals(2, fileSystem.listFilesFromFolder(parentPath).size());
+
+		fileSystem.cleanDirectory(parentPath);
+		Assert.assertEquals(0, fileSystem.listFilesFromFolder(parentPath).size());
+		Assert.assertFalse(new File(parentPath + "/nested").exists());
+	}
+
+	@Test
+	public void testLocalMap() throws IOException {
+		try (OutputStream out = fileSystem.openOutputStream(testFile1)) {
+			out.write("header|index block".getBytes());
+		}
+
+		ByteBuffer buffer = fileSystem.map(testFile1, 7, 5);
+		Assert.assertEquals("index", StandardCharsets.UTF_8.decode(buffer).toString());
+
+		// Past the end of the file
+		Assert.assertEquals(5, fileSystem.map(testFile1, 13, 100).remaining());
+		Assert.assertEquals(0, fileSystem.map(testFile1, 100, 10).remaining());
+		fileSystem.deleteFile(testFile1);
+	}
+
+	@Test
+	public void testLocalReadRange() throws IOException {
+		try (OutputStream out = fileSystem.openOutputStream(testFile1)) {
+			out.write("header|index block".getBytes());
+		}
+
+		Assert.assertEquals("header", new String(fileSystem.readRange(testFile1, 0, 6)));
+		Assert.assertEquals("block", new String(fileSystem.readRange(testFile1, 13, 100)));
+
+		try (SeekableByteChannel channel = fileSystem.open(testFile1)) {
+			ByteBuffer buffer = ByteBuffer.allocate(5);
+			channel.position(7).read(buffer);
+			buffer.flip();
+			Assert.assertEquals("index", StandardCharsets.UTF_8.decode(buffer).toString());
+			Assert.assertEquals(18, channel.size());
+		}
+		fileSystem.deleteFile(testFile1);
+	}
+
+	@Test
+	public void testLocalExistAll() throws IOException {
+		File experiment = new File(getClass().getClassLoader().getResource("sample-file.txt").getFile());
+		fileSystem.copyFile(experiment, testFile1);
+
+		Map<String, Boolean> exist = fileSystem.existAll(Arrays.asList(testFile1, testFile2, parentPath));
+		Assert.assertTrue(exist.get(testFile1));
+		Assert.assertFalse(exist.get(testFile2));
+		Assert.assertFalse(exist.get(parentPath));
+		fileSystem.deleteFile(testFile1);
+	}
+
+	@Test
+	public void testLocalPooledOutputStream() throws IOException {
+		BufferPool pool = new BufferPool(16, 4, true);
+		PooledOutputStream outputStream = new PooledOutputStream(pool);
+		byte[] data = "spans more than a couple of pool chunks".getBytes();
+		outputStream.write(data);
+		Assert.assertEquals(data.length, outputStream.getSize());
+
+		fileSystem.saveFile(outputStream, testFile1);
+		Assert.assertArrayEquals(data, Files.readAllBytes(new File(testFile1).toPath()));
+		try (InputStream in = outputStream.toInputStream()) {
+			Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+		}
+		Assert.assertEquals(new String(data, StandardCharsets.UTF_8), outputStream.toString(StandardCharsets.UTF_8));
+
+		outputStream.release();
+		Assert.assertEquals(0, outputStream.getSize());
+		Assert.assertEquals(3, pool.getPooledChunks());
+		new PooledOutputStream(pool).write(1);
+		Assert.assertEquals(3, pool.getAllocations());
+		fileSystem.deleteFile(testFile1);
+	}
+
+	@Test
+	public void testLocalWriteBehind() throws Exception {
+		Path directory = Paths.get(parentPath, "write-behind");
+		byte[] data = "acknowledged once spooled".getBytes();
+		try (WriteBehindFileSystem writeBehind = new WriteBehindFileSystem(fileSystem, directory, 2, 4, 16)) {
+			ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+			outputStream.write(data);
+			writeBehind.saveFile(outputStream, testFile1);
+			try (InputStream in = writeBehind.getInputStream(testFile1)) {
+				Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+			}
+			Assert.assertTrue(writeBehind.flush(10, TimeUnit.SECONDS));
+			Assert.assertArrayEquals(data, Files.readAllBytes(new File(testFile1).toPath()));
+		}
+
+		// A write journaled before a crash is uploaded on the next start. Of two writes of the same key, the
+		// last one journaled wins, even if its id was reserved first
+		try (WriteJournal journal = new WriteJournal(directory.resolve("journal"))) {
+			long id = journal.reserve();
+			long stale = journal.reserve();
+			Files.write(directory.resolve("spool").resolve(id + ".spool"), data);
+			Files.write(directory.resolve("spool").resolve(stale + ".spool"), "stale".getBytes());
+			journal.append(stale, testFile2);
+			journal.append(id, testFile2);
+		}
+		try (WriteBehindFileSystem writeBehind = new WriteBehindFileSystem(fileSystem, directory, 2, 4, 16)) {
+			Assert.assertTrue(writeBehind.flush(10, TimeUnit.SECONDS));
+			Assert.assertEquals(0, writeBehind.getPendingCount());
+		}
+		Assert.assertArrayEquals(data, Files.readAllBytes(new File(testFile2).toPath()));
+		fileSystem.deleteFile(testFile1);
+		fileSystem.deleteFile(testFile2);
+	}
+
+	@Test
+	public void testLocalWriteBehindFailure() throws Exception {
+		Path directory = Paths.get(parentPath, "write-behind-failure");
+		ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+		outputStream.write("parent".getBytes());
+		fileSystem.saveFile(outputStream, testFile1);
+		// A file can't be written below another file, the write fails once its attempts are spent
+		String key = testFile1 + "/child";
+		try (WriteBehindFileSystem writeBehind = new WriteBehindFileSystem(fileSystem, directory, 1, 4, 16, 2,
+				10, TimeUnit.SECONDS)) {
+			outputStream = new ConvertibleOutputStream();
+			outputStream.write("lost".getBytes());
+			writeBehind.saveFile(outputStream, key);
+			try {
+				writeBehind.flush();
+				Assert.fail("The failed write must be reported");
+			} catch (IllegalStateException e) {
+				Assert.assertTrue(e.getCause() instanceof IOException);
+			}
+			Assert.assertEquals(0, writeBehind.getPendingCount());
+			Assert.assertFalse(writeBehind.isFile(key));
+		}
+		List<Path> failed;
+		try (Stream<Path> files = Files.list(directory.resolve("failed"))) {
+			failed = files.collect(Collectors.toList());
+		}
+		Assert.assertEquals(1, failed.size());
+		Assert.assertEquals("lost", new String(Files.readAllBytes(failed.get(0))));
+		// Failed writes are not replayed
+		try (WriteBehindFileSystem writeBehind = new WriteBehindFileSystem(fileSystem, directory, 1, 4, 16)) {
+			Assert.assertEquals(0, writeBehind.getPendingCount());
+		}
+		Files.delete(failed.get(0));
+		fileSystem.deleteFile(testFile1);
+	}
+
+	@Test
+	public void testWriteJournalTornRecord() throws IOException {
+		Path path = Files.createDirectories(Paths.get(parentPath, "journal")).resolve("journal");
+		Files.deleteIfExists(path);
+		try (WriteJournal journal = new WriteJournal(path)) {
+			for (int i = 0; i < 12; i++) {
+				journal.reserve();
+			}
+			journal.append(1, "a");
+			journal.append(12, "b");
+			journal.complete(Arrays.asList(12L));
+		}
+		// "D 12" torn into "D 1" must not complete the write 1
+		truncate(path, 2);
+		try (WriteJournal journal = new WriteJournal(path)) {
+			Assert.assertEquals(Arrays.asList(1L, 12L), new ArrayList<>(journal.getPending().keySet()));
+			journal.append(journal.reserve(), "abc");
+		}
+		// A torn key must not be replayed as a shorter one
+		truncate(path, 3);
+		try (WriteJournal journal = new WriteJournal(path)) {
+			Assert.assertEquals(Arrays.asList("a", "b"), new ArrayList<>(journal.getPending().values()));
+		}
+		Files.delete(path);
+		Files.delete(path.getParent());
+	}
+
+	private static void truncate(Path path, int bytes) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - bytes);
+		}
+	}
+
+	@Test
+	public void testLocalSyncDirectory() throws IOException {
+		Path source = Files.createDirectories(Paths.get(parentPath, "sync-source", "nested"));
+		Files.write(source.resolve("a.txt"), "a".getBytes());
+		String destination = parentPath + "/sync-destination";
+		fileSystem.copyFile(new File(getClass().getClassLoader().getResource("sample-file.txt").getFile()),
+				destination + "/extraneous.txt");
+		SyncOptions options = new SyncOptions();
+		options.setDelete(true);
+		options.setDryRun(true);
+
+		SyncResult result = fileSystem.syncDirectory(source.getParent().toString(), destination, options);
+		Assert.assertEquals(Arrays.asList(destination + "/nested/a.txt"), result.getTransferred());
+		Assert.assertEquals(1, result.getDeleted().size());
+		Assert.assertTrue(fileSystem.isFile(destination + "/extraneous.txt"));
+
+		options.setDryRun(false);
+		fileSystem.syncDirectory(source.getParent().toString(), destination, options);
+		Assert.assertTrue(fileSystem.isFile(destination + "/nested/a.txt"));
+		Assert.assertFalse(fileSystem.isFile(destination + "/extraneous.txt"));
+
+		result = fileSystem.syncDirectory(source.getParent().toString(), destination, options);
+		Assert.assertTrue(result.getTransferred().isEmpty());
+		Assert.assertEquals(1, result.getUnchangedCount());
+		fileSystem.cleanDirectory(destination);
+		fileSystem.cleanDirectory(source.getParent().toString());
+	}
+
+	@Test
+	public void testLocalMetadataWarmUp() throws IOException {
+		MetadataCachingFileSystem cache = new MetadataCachingFileSystem(fileSystem, 100, 1, 1, TimeUnit.MINUTES);
+		// Relative to the working directory, while the local provider lists absolute paths
+		String folder = Paths.get("").toAbsolutePath().relativize(Paths.get(parentPath, "warm-up")).toString();
+		String file = folder + "/warm.txt";
+		byte[] data = "warm".getBytes(StandardCharsets.UTF_8);
+		ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+		outputStream.write(data);
+		fileSystem.saveFile(outputStream, file);
+		Assert.assertEquals(1, cache.warmUp(folder));
+
+		// Answered from the listing, even once the file is gone behind the cache
+		fileSystem.deleteFile(file);
+		Assert.assertTrue(cache.isFile(file));
+		Assert.assertEquals(data.length, cache.getMetadata(file).getSize());
+		Assert.assertFalse(cache.isFile(folder + "/missing.txt"));
+		cache.deleteFile(file);
+		Assert.assertFalse(cache.isFile(file));
+	}
+
+	@Test
+	public void testLocalDeduplication() throws IOException {
+		DeduplicatingFileSystem dedup = new DeduplicatingFileSystem(fileSystem, parentPath + "/.dedup", 8);
+		ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+		byte[] data = "stored only once".getBytes();
+		outputStream.write(data);
+		dedup.saveFile(outputStream, testFile1);
+		dedup.saveFile(outputStream, testFile2);
+		Assert.assertEquals(1, dedup.getDeduplicatedCount());
+		try (InputStream in = dedup.getInputStream(testFile2)) {
+			Assert.assertArrayEquals(data, IOUtils.toByteArray(in));
+		}
+		Assert.assertEquals(data.length, dedup.getMetadata(testFile1).getSize());
+
+		// The content stays until its last reference is deleted
+		dedup.deleteFile(testFile1);
+		Assert.assertArrayEquals(data, dedup.readRange(testFile2, 0, data.length));
+		dedup.deleteFile(testFile2);
+		Assert.assertTrue(fileSystem.listFilesFromFolder(parentPath + "/.dedup").isEmpty());
+		fileSystem.cleanDirectory(parentPath + "/.dedup");
+	}
 }
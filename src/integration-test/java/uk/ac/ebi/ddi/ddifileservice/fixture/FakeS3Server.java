@@ -0,0 +1,705 @@
+package uk.ac.ebi.ddi.ddifileservice.fixture;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-process stand-in for S3 serving a single in-memory bucket over HTTP, implementing the subset of the
+ * API used by S3FileSystem and the TransferManager: listings, ranged and conditional reads, puts, copies,
+ * multipart uploads and batch deletes. Like S3, it rejects bodies not matching their Content-MD5 and keeps the
+ * user metadata and content encoding of objects. It is only meant for benchmarks and tests: nothing is
+ * authenticated.
+ */
+public class FakeS3Server implements Closeable {
+
+    public static final String BUCKET = "benchmark";
+
+    private static final int PAGE_SIZE = 1000;
+
+    private static final Pattern KEY = Pattern.compile("<Key>(.*?)</Key>", Pattern.DOTALL);
+
+    private static final Pattern PART_NUMBER = Pattern.compile("<PartNumber>(\\d+)</PartNumber>");
+
+    private static final String USER_METADATA_PREFIX = "x-amz-meta-";
+
+    private final ConcurrentNavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+
+    // Multipart uploads in progress, by upload id
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    private final AtomicLong uploadIds = new AtomicLong();
+
+    // Requests received, as the method, key and query, followed by the range if any
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+    private final List<Failure> failures = new CopyOnWriteArrayList<>();
+
+    // Requests being handled, and the most handled at once since the requests were last cleared
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    // Added to every request, to mimic the round trip time of a remote endpoint
+    private volatile long latencyMillis;
+
+    public FakeS3Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public AmazonS3 createClient() {
+        return AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(getEndpoint(), "eu-west-2"))
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("key", "secret")))
+                .withPathStyleAccessEnabled(true)
+                .build();
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void putObject(String key, byte[] data) {
+        objects.put(key, new StoredObject(data, md5Hex(data), Collections.emptyMap(), null, 0));
+    }
+
+    /**
+     * Returns the stored bytes of the object, as they were uploaded, or null if it doesn't exist.
+     */
+    public byte[] getObject(String key) {
+        StoredObject object = objects.get(key);
+        return object != null ? object.data : null;
+    }
+
+    /**
+     * Flips a byte of the stored object, keeping its ETag and metadata, as a corruption at rest would.
+     */
+    public void corrupt(String key, int position) {
+        StoredObject object = objects.get(key);
+        byte[] data = object.data.clone();
+        data[position] ^= 1;
+        objects.put(key, new StoredObject(data, object.eTag, object.metadata, object.contentEncoding,
+                object.partSize));
+    }
+
+    /**
+     * Answers the next count requests starting with the given prefix, as recorded by getRequests, with an
+     * error of the given status and code.
+     */
+    public void fail(String prefix, int count, int status, String code) {
+        failures.add(new Failure(prefix, count, status, code));
+    }
+
+    public List<String> getRequests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    public void clearRequests() {
+        requests.clear();
+        maxInFlight.set(0);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * Returns the user metadata of the object, by lower case name without the x-amz-meta- prefix.
+     */
+    public Map<String, String> getUserMetadata(String key) {
+        StoredObject object = objects.get(key);
+        return object != null ? object.metadata : null;
+    }
+
+    public String getContentEncoding(String key) {
+        StoredObject object = objects.get(key);
+        return object != null ? object.contentEncoding : null;
+    }
+
+    public int size() {
+        return objects.size();
+    }
+
+    public void clear() {
+        objects.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            String path = exchange.getRequestURI().getRawPath();
+            int slash = path.indexOf('/', 1);
+            String key = slash < 0 ? "" : decode(path.substring(slash + 1));
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            byte[] body = readBody(exchange);
+            String method = exchange.getRequestMethod();
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String rawQuery = exchange.getRequestURI().getRawQuery();
+            String request = method + " " + key + (rawQuery != null ? "?" + rawQuery : "")
+                    + (range != null ? " " + range : "");
+            requests.add(request);
+            for (Failure failure : failures) {
+                if (request.startsWith(failure.prefix) && failure.remaining.getAndDecrement() > 0) {
+                    sendError(exchange, failure.status, failure.code);
+                    return;
+                }
+            }
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+
+            if (key.isEmpty()) {
+                handleBucket(exchange, method, query, body);
+            } else if (query.containsKey("uploads") || query.containsKey("uploadId")) {
+                handleMultipart(exchange, method, key, query, body);
+            } else if ("GET".equals(method) || "HEAD".equals(method)) {
+                getObject(exchange, key, query, "HEAD".equals(method));
+            } else if ("PUT".equals(method) && exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+                copyObject(exchange, key);
+            } else if ("PUT".equals(method)) {
+                if (!hasValidDigest(exchange, body)) {
+                    sendError(exchange, 400, "BadDigest");
+                    return;
+                }
+                objects.put(key, new StoredObject(body, md5Hex(body), getUserMetadata(exchange),
+                        exchange.getRequestHeaders().getFirst("Content-Encoding"), 0));
+                exchange.getResponseHeaders().add("ETag", quote(objects.get(key).eTag));
+                send(exchange, 200, new byte[0]);
+            } else if ("DELETE".equals(method)) {
+                objects.remove(key);
+                send(exchange, 204, null);
+            } else {
+                sendError(exchange, 405, "MethodNotAllowed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            sendError(exchange, 500, "InternalError");
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private void handleBucket(HttpExchange exchange, String method, Map<String, String> query, byte[] body)
+            throws IOException {
+        if ("HEAD".equals(method)) {
+            send(exchange, 200, null);
+        } else if ("POST".equals(method) && query.containsKey("delete")) {
+            deleteObjects(exchange, body);
+        } else if (query.containsKey("acl")) {
+            sendXml(exchange, 200, "<AccessControlPolicy><Owner><ID>benchmark</ID></Owner>"
+                    + "<AccessControlList></AccessControlList></AccessControlPolicy>");
+        } else {
+            listObjects(exchange, query);
+        }
+    }
+
+    private void listObjects(HttpExchange exchange, Map<String, String> query) throws IOException {
+        boolean v2 = "2".equals(query.get("list-type"));
+        boolean urlEncoded = "url".equals(query.get("encoding-type"));
+        String prefix = query.getOrDefault("prefix", "");
+        String delimiter = query.get("delimiter");
+        int maxKeys = Math.min(PAGE_SIZE, Integer.parseInt(query.getOrDefault("max-keys", "" + PAGE_SIZE)));
+        String after = v2 ? decodeToken(query.get("continuation-token")) : query.get("marker");
+        if (after == null && v2) {
+            after = query.get("start-after");
+        }
+
+        StringBuilder contents = new StringBuilder();
+        Set<String> commonPrefixes = new LinkedHashSet<>();
+        int count = 0;
+        String last = null;
+        boolean truncated = false;
+        Map.Entry<String, StoredObject> entry = after == null || after.isEmpty()
+                ? objects.ceilingEntry(prefix) : objects.higherEntry(after);
+        while (entry != null && entry.getKey().startsWith(prefix)) {
+            if (count == maxKeys) {
+                truncated = true;
+                break;
+            }
+            String key = entry.getKey();
+            int index = delimiter == null ? -1 : key.indexOf(delimiter, prefix.length());
+            if (index >= 0) {
+                String commonPrefix = key.substring(0, index + delimiter.length());
+                commonPrefixes.add(commonPrefix);
+                count++;
+                // Resume after every key of the sub folder
+                last = commonPrefix + Character.MAX_VALUE;
+                entry = objects.higherEntry(last);
+                continue;
+            }
+            StoredObject object = entry.getValue();
+            contents.append("<Contents><Key>").append(escape(key, urlEncoded)).append("</Key>")
+                    .append("<LastModified>").append(isoDate(object.lastModified)).append("</LastModified>")
+                    .append("<ETag>").append(quote(object.eTag)).append("</ETag>")
+                    .append("<Size>").append(object.data.length).append("</Size>")
+                    .append("<StorageClass>STANDARD</StorageClass></Contents>");
+            count++;
+            last = key;
+            entry = objects.higherEntry(key);
+        }
+
+        StringBuilder xml = new StringBuilder("<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">")
+                .append("<Name>").append(BUCKET).append("</Name>")
+                .append("<Prefix>").append(escape(prefix, urlEncoded)).append("</Prefix>")
+                .append("<MaxKeys>").append(maxKeys).append("</MaxKeys>")
+                .append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        if (urlEncoded) {
+            xml.append("<EncodingType>url</EncodingType>");
+        }
+        if (delimiter != null) {
+            xml.append("<Delimiter>").append(escape(delimiter, urlEncoded)).append("</Delimiter>");
+        }
+        if (v2) {
+            xml.append("<KeyCount>").append(count).append("</KeyCount>");
+            if (truncated) {
+                xml.append("<NextContinuationToken>").append(encodeToken(last)).append("</NextContinuationToken>");
+            }
+        } else if (truncated) {
+            xml.append("<NextMarker>").append(escape(last, urlEncoded)).append("</NextMarker>");
+        }
+        xml.append(contents);
+        for (String commonPrefix : commonPrefixes) {
+            xml.append("<CommonPrefixes><Prefix>").append(escape(commonPrefix, urlEncoded)).append("</Prefix></CommonPrefixes>");
+        }
+        sendXml(exchange, 200, xml.append("</ListBucketResult>").toString());
+    }
+
+    private void deleteObjects(HttpExchange exchange, byte[] body) throws IOException {
+        String request = new String(body, StandardCharsets.UTF_8);
+        boolean quiet = request.contains("<Quiet>true</Quiet>");
+        StringBuilder xml = new StringBuilder("<DeleteResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\">");
+        Matcher matcher = KEY.matcher(request);
+        while (matcher.find()) {
+            String key = unescape(matcher.group(1));
+            objects.remove(key);
+            if (!quiet) {
+                xml.append("<Deleted><Key>").append(escape(key, false)).append("</Key></Deleted>");
+            }
+        }
+        sendXml(exchange, 200, xml.append("</DeleteResult>").toString());
+    }
+
+    private void copyObject(HttpExchange exchange, String key) throws IOException {
+        StoredObject source = objects.get(getCopySource(exchange));
+        if (source == null) {
+            sendError(exchange, 404, "NoSuchKey");
+            return;
+        }
+        objects.put(key, new StoredObject(source.data, source.eTag, source.metadata, source.contentEncoding,
+                source.partSize));
+        sendXml(exchange, 200, "<CopyObjectResult><LastModified>" + isoDate(System.currentTimeMillis())
+                + "</LastModified><ETag>" + quote(source.eTag) + "</ETag></CopyObjectResult>");
+    }
+
+    private void handleMultipart(HttpExchange exchange, String method, String key, Map<String, String> query,
+                                 byte[] body) throws IOException {
+        if ("POST".equals(method) && query.containsKey("uploads")) {
+            String uploadId = "upload-" + uploadIds.incrementAndGet();
+            uploads.put(uploadId, new Upload(getUserMetadata(exchange),
+                    exchange.getRequestHeaders().getFirst("Content-Encoding")));
+            sendXml(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + BUCKET + "</Bucket><Key>"
+                    + escape(key, false) + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            return;
+        }
+        Upload upload = uploads.get(query.get("uploadId"));
+        if (upload == null) {
+            sendError(exchange, 404, "NoSuchUpload");
+        } else if ("PUT".equals(method)) {
+            uploadPart(exchange, upload.parts, Integer.parseInt(query.get("partNumber")), body);
+        } else if ("POST".equals(method)) {
+            completeMultipartUpload(exchange, key, query.get("uploadId"), upload, body);
+        } else if ("GET".equals(method)) {
+            listParts(exchange, key, query.get("uploadId"), upload);
+        } else if ("DELETE".equals(method)) {
+            uploads.remove(query.get("uploadId"));
+            send(exchange, 204, null);
+        } else {
+            sendError(exchange, 405, "MethodNotAllowed");
+        }
+    }
+
+    private void uploadPart(HttpExchange exchange, Map<Integer, byte[]> parts, int partNumber, byte[] body)
+            throws IOException {
+        if (!exchange.getRequestHeaders().containsKey("x-amz-copy-source")) {
+            if (!hasValidDigest(exchange, body)) {
+                sendError(exchange, 400, "BadDigest");
+                return;
+            }
+            parts.put(partNumber, body);
+            exchange.getResponseHeaders().add("ETag", quote(md5Hex(body)));
+            send(exchange, 200, new byte[0]);
+            return;
+        }
+        StoredObject source = objects.get(getCopySource(exchange));
+        if (source == null) {
+            sendError(exchange, 404, "NoSuchKey");
+            return;
+        }
+        byte[] data = source.data;
+        String range = exchange.getRequestHeaders().getFirst("x-amz-copy-source-range");
+        if (range != null) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            data = Arrays.copyOfRange(data, Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1]) + 1);
+        }
+        parts.put(partNumber, data);
+        sendXml(exchange, 200, "<CopyPartResult><LastModified>" + isoDate(System.currentTimeMillis())
+                + "</LastModified><ETag>" + quote(md5Hex(data)) + "</ETag></CopyPartResult>");
+    }
+
+    // Parts uploaded so far, in a single page, as the TransferManager checks them before uploading any
+    private void listParts(HttpExchange exchange, String key, String uploadId, Upload upload) throws IOException {
+        StringBuilder xml = new StringBuilder("<ListPartsResult><Bucket>" + BUCKET + "</Bucket><Key>"
+                + escape(key, false) + "</Key><UploadId>" + uploadId + "</UploadId><IsTruncated>false</IsTruncated>");
+        upload.parts.forEach((partNumber, part) -> xml.append("<Part><PartNumber>").append(partNumber)
+                .append("</PartNumber><ETag>").append(quote(md5Hex(part))).append("</ETag><Size>")
+                .append(part.length).append("</Size></Part>"));
+        sendXml(exchange, 200, xml.append("</ListPartsResult>").toString());
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, String key, String uploadId,
+                                         Upload upload, byte[] body) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+        Matcher matcher = PART_NUMBER.matcher(new String(body, StandardCharsets.UTF_8));
+        int count = 0;
+        int partSize = 0;
+        while (matcher.find()) {
+            byte[] part = upload.parts.get(Integer.parseInt(matcher.group(1)));
+            if (part == null) {
+                sendError(exchange, 400, "InvalidPart");
+                return;
+            }
+            data.write(part, 0, part.length);
+            partDigests.write(md5(part), 0, 16);
+            partSize = count == 0 ? part.length : partSize;
+            count++;
+        }
+        uploads.remove(uploadId);
+        // Same ETag as S3: the digest of the part digests, followed by the number of parts
+        String eTag = hex(md5(partDigests.toByteArray())) + "-" + count;
+        objects.put(key, new StoredObject(data.toByteArray(), eTag, upload.metadata, upload.contentEncoding,
+                partSize));
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult><Location>" + getEndpoint() + "/" + BUCKET + "/"
+                + escape(key, false) + "</Location><Bucket>" + BUCKET + "</Bucket><Key>" + escape(key, false)
+                + "</Key><ETag>" + quote(eTag) + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    // Source key of a copy, given as /bucket/key or bucket/key, url encoded
+    private static String getCopySource(HttpExchange exchange) {
+        String source = decode(exchange.getRequestHeaders().getFirst("x-amz-copy-source"));
+        if (source.startsWith("/")) {
+            source = source.substring(1);
+        }
+        int versionId = source.indexOf("?versionId=");
+        if (versionId >= 0) {
+            source = source.substring(0, versionId);
+        }
+        return source.substring(source.indexOf('/') + 1);
+    }
+
+    // Continuation tokens are opaque, they may hold characters which aren't valid in XML
+    private static String encodeToken(String key) {
+        return Base64.getUrlEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decodeToken(String token) {
+        return token == null ? null : new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+    }
+
+    private void getObject(HttpExchange exchange, String key, Map<String, String> query, boolean headOnly)
+            throws IOException {
+        StoredObject object = objects.get(key);
+        if (object == null) {
+            sendError(exchange, 404, "NoSuchKey");
+            return;
+        }
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && unquote(ifNoneMatch).equals(object.eTag)) {
+            send(exchange, 304, null);
+            return;
+        }
+        String ifMatch = exchange.getRequestHeaders().getFirst("If-Match");
+        if (ifMatch != null && !unquote(ifMatch).equals(object.eTag)) {
+            sendError(exchange, 412, "PreconditionFailed");
+            return;
+        }
+        exchange.getResponseHeaders().add("ETag", quote(object.eTag));
+        exchange.getResponseHeaders().add("Last-Modified", httpDate(object.lastModified));
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        if (object.contentEncoding != null) {
+            exchange.getResponseHeaders().add("Content-Encoding", object.contentEncoding);
+        }
+        object.metadata.forEach((name, value) ->
+                exchange.getResponseHeaders().add(USER_METADATA_PREFIX + name, value));
+        byte[] data = object.data;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        // Parts of multipart uploads are read as the range they were uploaded as, all of them but the last
+        // having the size of the first one
+        if (query.containsKey("partNumber") && object.partSize > 0) {
+            int part = Integer.parseInt(query.get("partNumber"));
+            range = "bytes=" + (long) (part - 1) * object.partSize + "-" + ((long) part * object.partSize - 1);
+            exchange.getResponseHeaders().add("x-amz-mp-parts-count",
+                    "" + (data.length + object.partSize - 1) / object.partSize);
+        }
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            int start = Integer.parseInt(bounds[0]);
+            int end = bounds[1].isEmpty() ? data.length - 1 : Math.min(Integer.parseInt(bounds[1]), data.length - 1);
+            if (start >= data.length) {
+                sendError(exchange, 416, "InvalidRange");
+                return;
+            }
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+            data = Arrays.copyOfRange(data, start, end + 1);
+            status = 206;
+        }
+        if (headOnly) {
+            exchange.getResponseHeaders().add("Content-Length", "" + data.length);
+            exchange.sendResponseHeaders(status, -1);
+        } else {
+            send(exchange, status, data);
+        }
+    }
+
+    private static boolean hasValidDigest(HttpExchange exchange, byte[] body) {
+        String contentMd5 = exchange.getRequestHeaders().getFirst("Content-MD5");
+        return contentMd5 == null || contentMd5.equals(Base64.getEncoder().encodeToString(md5(body)));
+    }
+
+    private static Map<String, String> getUserMetadata(HttpExchange exchange) {
+        Map<String, String> metadata = new HashMap<>();
+        exchange.getRequestHeaders().forEach((name, values) -> {
+            if (name.toLowerCase(Locale.ROOT).startsWith(USER_METADATA_PREFIX)) {
+                metadata.put(name.substring(USER_METADATA_PREFIX.length()).toLowerCase(Locale.ROOT), values.get(0));
+            }
+        });
+        return metadata;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                body.write(buffer, 0, n);
+            }
+        }
+        String contentSha256 = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        if (contentSha256 != null && contentSha256.startsWith("STREAMING-")) {
+            return decodeAwsChunked(body.toByteArray());
+        }
+        return body.toByteArray();
+    }
+
+    // Strips the chunk signatures of bodies signed with STREAMING-AWS4-HMAC-SHA256-PAYLOAD
+    private static byte[] decodeAwsChunked(byte[] encoded) {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        int position = 0;
+        while (position < encoded.length) {
+            int lineEnd = position;
+            while (encoded[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            String header = new String(encoded, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int size = Integer.parseInt(header.split(";")[0], 16);
+            if (size == 0) {
+                break;
+            }
+            decoded.write(encoded, lineEnd + 2, size);
+            position = lineEnd + 2 + size + 2;
+        }
+        return decoded.toByteArray();
+    }
+
+    private static void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        exchange.getResponseHeaders().add("Content-Type", "application/xml");
+        send(exchange, status, ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String code) throws IOException {
+        if ("HEAD".equals(exchange.getRequestMethod()) || status == 304) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        sendXml(exchange, status, "<Error><Code>" + code + "</Code><Message>" + code + "</Message></Error>");
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] data) throws IOException {
+        if (data == null || data.length == 0) {
+            exchange.getResponseHeaders().add("Content-Length", "0");
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, data.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int index = parameter.indexOf('=');
+            if (index < 0) {
+                query.put(decode(parameter), "");
+            } else {
+                query.put(decode(parameter.substring(0, index)), decode(parameter.substring(index + 1)));
+            }
+        }
+        return query;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value.replace("+", "%2B"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String escape(String value, boolean urlEncoded) {
+        if (urlEncoded) {
+            try {
+                return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String unescape(String value) {
+        return value.replace("&lt;", "<").replace("&gt;", ">").replace("&quot;", "\"").replace("&apos;", "'")
+                .replace("&#xD;", "\r").replace("&#xA;", "\n").replace("&amp;", "&");
+    }
+
+    static String md5Hex(byte[] data) {
+        return hex(md5(data));
+    }
+
+    private static byte[] md5(byte[] data) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static String quote(String eTag) {
+        return "\"" + eTag + "\"";
+    }
+
+    private static String unquote(String eTag) {
+        return eTag.replace("\"", "");
+    }
+
+    private static String isoDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(time));
+    }
+
+    private static String httpDate(long time) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(time));
+    }
+
+    static class StoredObject {
+        final byte[] data;
+        final String eTag;
+        final Map<String, String> metadata;
+        final String contentEncoding;
+        // Size of the parts of a multipart upload, 0 for other objects
+        final int partSize;
+        final long lastModified = System.currentTimeMillis();
+
+        StoredObject(byte[] data, String eTag, Map<String, String> metadata, String contentEncoding, int partSize) {
+            this.data = data;
+            this.eTag = eTag;
+            this.metadata = metadata;
+            this.contentEncoding = contentEncoding;
+            this.partSize = partSize;
+        }
+    }
+
+    static class Failure {
+        final String prefix;
+        final AtomicInteger remaining;
+        final int status;
+        final String code;
+
+        Failure(String prefix, int count, int status, String code) {
+            this.prefix = prefix;
+            this.remaining = new AtomicInteger(count);
+            this.status = status;
+            this.code = code;
+        }
+    }
+
+    // The object attributes are given when the upload is initiated, the parts by part number
+    static class Upload {
+        final ConcurrentNavigableMap<Integer, byte[]> parts = new ConcurrentSkipListMap<>();
+        final Map<String, String> metadata;
+        final String contentEncoding;
+
+        Upload(Map<String, String> metadata, String contentEncoding) {
+            this.metadata = metadata;
+            this.contentEncoding = contentEncoding;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package uk.ac.ebi.ddi.ddifileservice.fixture;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import uk.ac.ebi.ddi.ddifileservice.DdiFileServiceApplication;
+import uk.ac.ebi.ddi.ddifileservice.services.IFileSystem;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The application context of the service wired to the given provider: a temporary directory for the
+ * local one, an in-process FakeS3Server for S3 and the tiered one. Paths are relative to getRoot().
+ */
+public class FileSystemFixture implements Closeable {
+
+    private final FakeS3Server server;
+
+    private final Path localRoot;
+
+    private final ConfigurableApplicationContext context;
+
+    private final IFileSystem fileSystem;
+
+    public FileSystemFixture(String provider, long latencyMillis, String... properties) throws IOException {
+        List<String> allProperties = new ArrayList<>();
+        allProperties.add("file.provider=" + provider);
+        if (!"local".equals(provider)) {
+            server = new FakeS3Server();
+            server.setLatencyMillis(latencyMillis);
+            localRoot = null;
+            allProperties.addAll(Arrays.asList(
+                    "s3.endpoint_url=" + server.getEndpoint(),
+                    "s3.bucket_name=" + FakeS3Server.BUCKET,
+                    "s3.region=eu-west-2",
+                    "s3.access_key=key",
+                    "s3.secret_key=secret"));
+        } else {
+            server = null;
+            localRoot = Files.createTempDirectory("omics-fixture");
+        }
+        allProperties.addAll(Arrays.asList(properties));
+        context = new SpringApplicationBuilder(DdiFileServiceApplication.class)
+                .logStartupInfo(false)
+                .properties(allProperties.toArray(new String[0]))
+                .run();
+        fileSystem = context.getBean(IFileSystem.class);
+    }
+
+    public IFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    public <T> T getBean(Class<T> type) {
+        return context.getBean(type);
+    }
+
+    /**
+     * The fake S3 behind the file system, null for the local provider.
+     */
+    public FakeS3Server getServer() {
+        return server;
+    }
+
+    public String getRoot() {
+        return localRoot != null ? localRoot.toString() : "fixture-data";
+    }
+
+    /**
+     * Stores an object directly, bypassing the file system under test.
+     */
+    public void populate(String path, byte[] data) throws IOException {
+        if (server != null) {
+            server.putObject(path, data);
+        } else {
+            Path file = localRoot.getFileSystem().getPath(path);
+            Files.createDirectories(file.getParent());
+            Files.write(file, data);
+        }
+    }
+
+    /**
+     * Creates the folder, which only matters to the local provider as S3 has no folders.
+     */
+    public void createFolder(String path) throws IOException {
+        if (localRoot != null) {
+            Files.createDirectories(localRoot.getFileSystem().getPath(path));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        context.close();
+        if (server != null) {
+            server.close();
+        } else {
+            try (Stream<Path> paths = Files.walk(localRoot)) {
+                paths.sorted(Comparator.reverseOrder()).forEach(x -> x.toFile().delete());
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package uk.ac.ebi.ddi.ddifileservice.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected by the usual JMH command line once per concurrency level listed in the
+ * benchmark.concurrency system property, as JMH threads can't be a benchmark parameter. Allocation rates
+ * are always reported, and results are written to target/jmh-result-t{threads}.json.
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        String[] levels = commandLine.getThreads().hasValue()
+                ? new String[] { commandLine.getThreads().get().toString() }
+                : System.getProperty("benchmark.concurrency", "1,16,64").split(",");
+        for (String level : levels) {
+            int threads = Integer.parseInt(level.trim());
+            new Runner(new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(commandLine.getResult().hasValue()
+                            ? commandLine.getResult().get() : "target/jmh-result-t" + threads + ".json")
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package uk.ac.ebi.ddi.ddifileservice.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.ebi.ddi.ddifileservice.fixture.FileSystemFixture;
+import uk.ac.ebi.ddi.ddifileservice.services.IFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cost of verifying checksums on S3 transfers of large objects, compared with unverified transfers. The
+ * objects read are uploaded through the file system, so that they carry a CRC-32C when verification is on.
+ *
+ * The overhead of a benchmark is 1 - (throughput with verify=true / throughput with verify=false), for the
+ * same object size and latency. Uploads larger than s3.upload_part_size are hashed part by part by the
+ * threads uploading them, and copyFile reads its file once, so their overhead is expected under 5%. Objects
+ * of a single part are hashed before their request is sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class ChecksumBenchmark {
+
+    @Param({"false", "true"})
+    private boolean verify;
+
+    @Param({"33554432", "268435456"})
+    private int objectSize;
+
+    @Param({"4"})
+    private int keyCount;
+
+    @Param({"0", "20"})
+    private long latencyMillis;
+
+    private FileSystemFixture fixture;
+
+    private IFileSystem fileSystem;
+
+    private String readFolder;
+
+    private String writeFolder;
+
+    private byte[] payload;
+
+    private File payloadFile;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final byte[] buffer = new byte[64 * 1024];
+        private String writeFolder;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ChecksumBenchmark benchmark) {
+            writeFolder = benchmark.writeFolder + "/t" + benchmark.threads.getAndIncrement();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new FileSystemFixture("s3", latencyMillis, "s3.verify_checksums=" + verify);
+        fileSystem = fixture.getFileSystem();
+        readFolder = fixture.getRoot() + "/read";
+        writeFolder = fixture.getRoot() + "/write";
+        payload = new byte[objectSize];
+        new Random(42).nextBytes(payload);
+        payloadFile = File.createTempFile("omics-checksum", ".bin");
+        Files.write(payloadFile.toPath(), payload);
+        for (int i = 0; i < keyCount; i++) {
+            fileSystem.saveFile(newOutputStream(), readFolder + "/" + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(payloadFile.toPath());
+        fixture.close();
+    }
+
+    @Benchmark
+    public long getFile(ThreadState state) throws IOException {
+        try (CloseableFile file = fileSystem.getFile(readFolder + "/" + (state.next++ % keyCount))) {
+            return file.length();
+        }
+    }
+
+    @Benchmark
+    public long getInputStream(ThreadState state) throws IOException {
+        long size = 0;
+        try (InputStream in = fileSystem.getInputStream(readFolder + "/" + (state.next++ % keyCount))) {
+            int n;
+            while ((n = in.read(state.buffer)) != -1) {
+                size += n;
+            }
+        }
+        return size;
+    }
+
+    @Benchmark
+    public void saveFile(ThreadState state) throws IOException {
+        fileSystem.saveFile(newOutputStream(), state.writeFolder + "/" + (state.next++ % keyCount));
+    }
+
+    @Benchmark
+    public void copyFile(ThreadState state) throws IOException {
+        fileSystem.copyFile(payloadFile, state.writeFolder + "/" + (state.next++ % keyCount));
+    }
+
+    @Benchmark
+    public void openOutputStream(ThreadState state) throws IOException {
+        try (OutputStream out = fileSystem.openOutputStream(state.writeFolder + "/" + (state.next++ % keyCount))) {
+            out.write(payload);
+        }
+    }
+
+    private ConvertibleOutputStream newOutputStream() {
+        ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+        outputStream.write(payload, 0, payload.length);
+        return outputStream;
+    }
+}
@@ -0,0 +1,66 @@
+package uk.ac.ebi.ddi.ddifileservice.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.ebi.ddi.ddifileservice.fixture.FileSystemFixture;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time to empty a folder of keyCount objects. Every invocation needs a freshly populated folder, so each
+ * measurement is a single shot, and percentiles are computed over the iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class CleanDirectoryBenchmark {
+
+    @Param({"local", "s3"})
+    private String provider;
+
+    @Param({"1000", "10000"})
+    private int keyCount;
+
+    @Param({"0"})
+    private long latencyMillis;
+
+    private FileSystemFixture fixture;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Folder {
+        private String path;
+
+        @Setup(Level.Iteration)
+        public void populate(CleanDirectoryBenchmark benchmark) throws IOException {
+            if (path == null) {
+                path = benchmark.fixture.getRoot() + "/clean/t" + benchmark.threads.getAndIncrement();
+            }
+            byte[] data = new byte[1024];
+            for (int i = 0; i < benchmark.keyCount; i++) {
+                // Spread over sub folders, as cleanDirectory is recursive
+                benchmark.fixture.populate(String.format("%s/d%02d/file-%08d", path, i % 16, i), data);
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new FileSystemFixture(provider, latencyMillis);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void cleanDirectory(Folder folder) {
+        fixture.getFileSystem().cleanDirectory(folder.path);
+    }
+}
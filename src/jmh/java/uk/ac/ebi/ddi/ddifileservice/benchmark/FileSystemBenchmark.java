@@ -0,0 +1,145 @@
+package uk.ac.ebi.ddi.ddifileservice.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import uk.ac.ebi.ddi.ddifileservice.fixture.FileSystemFixture;
+import uk.ac.ebi.ddi.ddifileservice.services.IFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.PooledOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput and latency distribution of the single object operations and of listings, for both providers.
+ * Run it through BenchmarkRunner to repeat it at several concurrency levels and to report allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class FileSystemBenchmark {
+
+    // Limits the data held by the fake S3 server, large objects are read from fewer keys
+    private static final long MAX_READ_DATA = 1024L * 1024 * 1024;
+
+    @Param({"local", "s3"})
+    private String provider;
+
+    @Param({"4096", "1048576", "33554432"})
+    private int objectSize;
+
+    @Param({"1000"})
+    private int keyCount;
+
+    @Param({"0"})
+    private long latencyMillis;
+
+    private FileSystemFixture fixture;
+
+    private IFileSystem fileSystem;
+
+    private BufferPool bufferPool;
+
+    private String readFolder;
+
+    private String listFolder;
+
+    private String writeFolder;
+
+    private int readKeys;
+
+    private byte[] payload;
+
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final byte[] buffer = new byte[64 * 1024];
+        private String writeFolder;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(FileSystemBenchmark benchmark) throws IOException {
+            writeFolder = benchmark.writeFolder + "/t" + benchmark.threads.getAndIncrement();
+            benchmark.fixture.createFolder(writeFolder);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = new FileSystemFixture(provider, latencyMillis);
+        fileSystem = fixture.getFileSystem();
+        bufferPool = fixture.getBean(BufferPool.class);
+        readFolder = fixture.getRoot() + "/read";
+        listFolder = fixture.getRoot() + "/list";
+        writeFolder = fixture.getRoot() + "/write";
+        payload = new byte[objectSize];
+        new Random(42).nextBytes(payload);
+        readKeys = (int) Math.max(1, Math.min(keyCount, MAX_READ_DATA / objectSize));
+        for (int i = 0; i < readKeys; i++) {
+            fixture.populate(readFolder + "/" + i, payload);
+        }
+        byte[] empty = new byte[0];
+        for (int i = 0; i < keyCount; i++) {
+            fixture.populate(String.format("%s/file-%08d", listFolder, i), empty);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public long getInputStream(ThreadState state) throws IOException {
+        long size = 0;
+        try (InputStream in = fileSystem.getInputStream(nextReadKey(state))) {
+            int n;
+            while ((n = in.read(state.buffer)) != -1) {
+                size += n;
+            }
+        }
+        return size;
+    }
+
+    @Benchmark
+    public long getFile(ThreadState state) throws IOException {
+        try (CloseableFile file = fileSystem.getFile(nextReadKey(state))) {
+            return file.length();
+        }
+    }
+
+    @Benchmark
+    public void saveFile(ThreadState state) throws IOException {
+        ConvertibleOutputStream outputStream = new ConvertibleOutputStream();
+        outputStream.write(payload, 0, payload.length);
+        fileSystem.saveFile(outputStream, state.writeFolder + "/" + (state.next++ % keyCount));
+    }
+
+    @Benchmark
+    public void savePooledFile(ThreadState state) throws IOException {
+        PooledOutputStream outputStream = bufferPool.newOutputStream();
+        try {
+            outputStream.write(payload, 0, payload.length);
+            fileSystem.saveFile(outputStream, state.writeFolder + "/" + (state.next++ % keyCount));
+        } finally {
+            outputStream.release();
+        }
+    }
+
+    @Benchmark
+    public int listFilesFromFolder() {
+        return fileSystem.listFilesFromFolder(listFolder).size();
+    }
+
+    private String nextReadKey(ThreadState state) {
+        return readFolder + "/" + (state.next++ % readKeys);
+    }
+}
@@ -0,0 +1,82 @@
+package uk.ac.ebi.ddi.ddifileservice.benchmark;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.openjdk.jmh.annotations.*;
+import uk.ac.ebi.ddi.ddifileservice.fixture.FakeS3Server;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3ShardedLister;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Listing throughput, in keys per second, of a prefix split into a growing number of shards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ShardedListingBenchmark {
+
+    private static final int FOLDERS = 256;
+
+    @Param({"100000"})
+    private int keyCount;
+
+    @Param({"1", "4", "16", "64"})
+    private int shards;
+
+    @Param({"false", "true"})
+    private boolean ordered;
+
+    @Param({"5"})
+    private long latencyMillis;
+
+    private FakeS3Server server;
+
+    private AmazonS3 s3Client;
+
+    private ExecutorService executor;
+
+    private S3ShardedLister lister;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class ListedKeys {
+        public long keys;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        server = new FakeS3Server();
+        byte[] empty = new byte[0];
+        for (int i = 0; i < keyCount; i++) {
+            server.putObject(String.format("dataset/f%03d/file-%08d.xml", i % FOLDERS, i), empty);
+        }
+        server.setLatencyMillis(latencyMillis);
+        s3Client = server.createClient();
+        executor = Executors.newCachedThreadPool();
+        lister = new S3ShardedLister(s3Client, FakeS3Server.BUCKET, shards, shards, executor);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        s3Client.shutdown();
+        server.close();
+    }
+
+    @Benchmark
+    public long list(ListedKeys listedKeys) {
+        try (Stream<FileEntry> entries = lister.list("dataset/", ordered)) {
+            long count = entries.count();
+            listedKeys.keys += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package uk.ac.ebi.ddi.ddifileservice.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compression format applied to stored files. Codecs are beans, picked by their encoding, which is
+ * both the name used in file.compression.* and the Content-Encoding of the stored objects.
+ */
+public interface CompressionCodec {
+
+    String getEncoding();
+
+    /**
+     * Wraps the stream so that data written to it is compressed, closing it closes the given stream.
+     */
+    OutputStream compress(OutputStream outputStream) throws IOException;
+
+    InputStream decompress(InputStream inputStream) throws IOException;
+}
@@ -0,0 +1,37 @@
+package uk.ac.ebi.ddi.ddifileservice.codec;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Zstandard, only available when the optional zstd-jni dependency is on the classpath.
+ */
+@Component
+@ConditionalOnClass(name = "com.github.luben.zstd.ZstdOutputStream")
+public class ZstdCodec implements CompressionCodec {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Override
+    public String getEncoding() {
+        return "zstd";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream outputStream) throws IOException {
+        return new BufferedOutputStream(new ZstdOutputStream(outputStream), BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream decompress(InputStream inputStream) throws IOException {
+        return new BufferedInputStream(new ZstdInputStream(inputStream), BUFFER_SIZE);
+    }
+}
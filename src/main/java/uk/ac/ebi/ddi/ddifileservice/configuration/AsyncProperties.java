@@ -0,0 +1,100 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import uk.ac.ebi.ddi.ddifileservice.type.OperationType;
+
+@ConfigurationProperties("file.async")
+public class AsyncProperties {
+
+    // Maximum number of operations of each type running at once, the others wait in a queue
+    private int getConcurrency = 32;
+
+    private int saveConcurrency = 16;
+
+    private int listConcurrency = 4;
+
+    private int deleteConcurrency = 16;
+
+    private int existsConcurrency = 64;
+
+    private int copyConcurrency = 16;
+
+    public int getConcurrency(OperationType type) {
+        switch (type) {
+            case GET:
+                return getConcurrency;
+            case SAVE:
+                return saveConcurrency;
+            case LIST:
+                return listConcurrency;
+            case DELETE:
+                return deleteConcurrency;
+            case EXISTS:
+                return existsConcurrency;
+            case COPY:
+                return copyConcurrency;
+            default:
+                throw new IllegalArgumentException("Unknown operation type " + type);
+        }
+    }
+
+    public int getGetConcurrency() {
+        return getConcurrency;
+    }
+
+    public void setGetConcurrency(int getConcurrency) {
+        this.getConcurrency = getConcurrency;
+    }
+
+    public int getSaveConcurrency() {
+        return saveConcurrency;
+    }
+
+    public void setSaveConcurrency(int saveConcurrency) {
+        this.saveConcurrency = saveConcurrency;
+    }
+
+    public int getListConcurrency() {
+        return listConcurrency;
+    }
+
+    public void setListConcurrency(int listConcurrency) {
+        this.listConcurrency = listConcurrency;
+    }
+
+    public int getDeleteConcurrency() {
+        return deleteConcurrency;
+    }
+
+    public void setDeleteConcurrency(int deleteConcurrency) {
+        this.deleteConcurrency = deleteConcurrency;
+    }
+
+    public int getExistsConcurrency() {
+        return existsConcurrency;
+    }
+
+    public void setExistsConcurrency(int existsConcurrency) {
+        this.existsConcurrency = existsConcurrency;
+    }
+
+    public int getCopyConcurrency() {
+        return copyConcurrency;
+    }
+
+    public void setCopyConcurrency(int copyConcurrency) {
+        this.copyConcurrency = copyConcurrency;
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncProperties{" +
+                "getConcurrency=" + getConcurrency +
+                ", saveConcurrency=" + saveConcurrency +
+                ", listConcurrency=" + listConcurrency +
+                ", deleteConcurrency=" + deleteConcurrency +
+                ", existsConcurrency=" + existsConcurrency +
+                ", copyConcurrency=" + copyConcurrency +
+                '}';
+    }
+}
@@ -0,0 +1,48 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties("file.buffers")
+public class BufferProperties {
+    // Size of the chunks holding in-memory file content
+    private int chunkSize = 64 * 1024;
+
+    // Upper bound of the idle chunks kept for reuse, extra released chunks are garbage collected
+    private long maxPooledBytes = 64L * 1024 * 1024;
+
+    // Off-heap chunks, which don't add to heap churn and are written to channels without an extra copy
+    private boolean direct = true;
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferProperties{" +
+                "chunkSize=" + chunkSize +
+                ", maxPooledBytes=" + maxPooledBytes +
+                ", direct=" + direct +
+                '}';
+    }
+}
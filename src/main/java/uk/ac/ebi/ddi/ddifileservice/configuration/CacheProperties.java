@@ -0,0 +1,47 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties("file.cache")
+public class CacheProperties {
+    private boolean enabled = false;
+
+    // Local directory holding cached objects, the entries left in it by a previous run are deleted on startup
+    private String directory = System.getProperty("java.io.tmpdir") + "/omics-file-cache";
+
+    // Maximum number of bytes kept in the cache before least recently used entries are evicted
+    private long maxSize = 10L * 1024 * 1024 * 1024;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheProperties{" +
+                "enabled=" + enabled +
+                ", directory='" + directory + '\'' +
+                ", maxSize=" + maxSize +
+                '}';
+    }
+}
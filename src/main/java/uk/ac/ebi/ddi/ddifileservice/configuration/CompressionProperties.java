@@ -0,0 +1,50 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@ConfigurationProperties("file.compression")
+public class CompressionProperties {
+    private boolean enabled = false;
+
+    // Codec of the written files whose extension isn't in suffixes, e.g. gzip, unset to store them as they are
+    private String codec;
+
+    // Codec by file extension, e.g. file.compression.suffixes.xml=gzip
+    private Map<String, String> suffixes = new HashMap<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public void setCodec(String codec) {
+        this.codec = codec;
+    }
+
+    public Map<String, String> getSuffixes() {
+        return suffixes;
+    }
+
+    public void setSuffixes(Map<String, String> suffixes) {
+        this.suffixes = suffixes;
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionProperties{" +
+                "enabled=" + enabled +
+                ", codec='" + codec + '\'' +
+                ", suffixes=" + suffixes +
+                '}';
+    }
+}
@@ -0,0 +1,47 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties("file.dedup")
+public class DedupProperties {
+    private boolean enabled = false;
+
+    // Folder holding the deduplicated contents and their references
+    private String prefix = ".dedup";
+
+    // Smaller files are stored as they are
+    private long minSize = 64 * 1024;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public long getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(long minSize) {
+        this.minSize = minSize;
+    }
+
+    @Override
+    public String toString() {
+        return "DedupProperties{" +
+                "enabled=" + enabled +
+                ", prefix='" + prefix + '\'' +
+                ", minSize=" + minSize +
+                '}';
+    }
+}
@@ -1,9 +1,184 @@
 package uk.ac.ebi.ddi.ddifileservice.configuration;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.EventListener;
+import uk.ac.ebi.ddi.ddifileservice.services.AsyncFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.AsyncFileSystemAdapter;
+import uk.ac.ebi.ddi.ddifileservice.codec.CompressionCodec;
+import uk.ac.ebi.ddi.ddifileservice.services.CachingFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.CompressingFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.DeduplicatingFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.IFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.InstrumentedFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.LocalFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.MetadataCachingFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.S3FileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.TieredFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.services.WriteBehindFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.utils.BufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
-@EnableConfigurationProperties({ S3Properties.class, FileProperties.class })
+@EnableConfigurationProperties({ S3Properties.class, FileProperties.class, CacheProperties.class,
+        AsyncProperties.class, MetricsProperties.class, MetadataCacheProperties.class,
+        CompressionProperties.class, BufferProperties.class, TieredProperties.class,
+        WriteBehindProperties.class, DedupProperties.class })
 public class FileConfiguration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FileConfiguration.class);
+
+    // Decorators holding resources, from the innermost. The providers they wrap are beans closed by Spring
+    private final List<Closeable> decorators = Collections.synchronizedList(new ArrayList<>());
+
+    private long shutdownTimeoutSeconds;
+
+    /**
+     * The file system injected into clients: the provider selected by file.provider, wrapped into the
+     * optional decorators which are enabled. The decorators are closed by closeDecorators rather than by a
+     * destroy method, which would run after the providers may already be shut down.
+     */
+    @Bean(destroyMethod = "")
+    @Primary
+    @DependsOn("bufferPool")
+    public IFileSystem fileSystem(ObjectProvider<S3FileSystem> s3FileSystem,
+                                  ObjectProvider<LocalFileSystem> localFileSystem,
+                                  ObjectProvider<TieredFileSystem> tieredFileSystem,
+                                  ObjectProvider<MeterRegistry> meterRegistry,
+                                  ObjectProvider<CompressionCodec> codecs,
+                                  S3Properties s3Properties,
+                                  FileProperties fileProperties,
+                                  CacheProperties cacheProperties,
+                                  MetadataCacheProperties metadataCacheProperties,
+                                  CompressionProperties compressionProperties,
+                                  WriteBehindProperties writeBehindProperties,
+                                  DedupProperties dedupProperties,
+                                  MetricsProperties metricsProperties) throws IOException {
+        S3FileSystem s3 = s3FileSystem.getIfAvailable();
+        TieredFileSystem tiered = tieredFileSystem.getIfAvailable();
+        IFileSystem fileSystem = tiered != null ? tiered : s3 != null ? s3 : localFileSystem.getObject();
+
+        // The hot tier already keeps objects on local disk
+        if (cacheProperties.isEnabled() && s3 != null && tiered == null) {
+            fileSystem = new CachingFileSystem(s3, s3Properties.getBucketName(),
+                    Paths.get(cacheProperties.getDirectory()), cacheProperties.getMaxSize());
+        }
+        // Content encodings are kept in the object metadata, which local files don't have
+        if (compressionProperties.isEnabled() && s3 != null) {
+            fileSystem = new CompressingFileSystem(fileSystem, codecs.orderedStream().collect(Collectors.toList()),
+                    compressionProperties.getCodec(), compressionProperties.getSuffixes());
+        }
+        // Contents are hashed as written by clients, before compression
+        if (dedupProperties.isEnabled()) {
+            fileSystem = new DeduplicatingFileSystem(fileSystem, dedupProperties.getPrefix(), dedupProperties.getMinSize());
+        }
+        // Outside of compression and deduplication, so that spooled files go through both once uploaded
+        if (writeBehindProperties.isEnabled()) {
+            fileSystem = new WriteBehindFileSystem(fileSystem, Paths.get(writeBehindProperties.getDirectory()),
+                    writeBehindProperties.getConcurrency(), writeBehindProperties.getBatchSize(),
+                    writeBehindProperties.getMaxPendingFiles(), writeBehindProperties.getMaxAttempts(),
+                    writeBehindProperties.getWaitTimeoutSeconds(), TimeUnit.SECONDS);
+            decorators.add((Closeable) fileSystem);
+            shutdownTimeoutSeconds = writeBehindProperties.getShutdownTimeoutSeconds();
+        }
+        if (metadataCacheProperties.isEnabled()) {
+            fileSystem = new MetadataCachingFileSystem(fileSystem, metadataCacheProperties.getMaxEntries(),
+                    metadataCacheProperties.getTtlSeconds(), metadataCacheProperties.getNegativeTtlSeconds(),
+                    TimeUnit.SECONDS);
+        }
+        // Outermost, to measure what clients see
+        if (metricsProperties.isEnabled()) {
+            MeterRegistry registry = meterRegistry.getIfAvailable();
+            fileSystem = new InstrumentedFileSystem(fileSystem, registry != null ? registry : Metrics.globalRegistry,
+                    fileProperties.getProvider(), metricsProperties.isHistograms());
+        }
+        return fileSystem;
+    }
+
+    /**
+     * Closes the decorators from the outermost, once the pending writes are uploaded or the shutdown timeout
+     * is spent. The context is closed after the event, while the providers are still up.
+     */
+    @EventListener(ContextClosedEvent.class)
+    public void closeDecorators() {
+        List<Closeable> closeables = new ArrayList<>(decorators);
+        decorators.clear();
+        Collections.reverse(closeables);
+        for (Closeable closeable : closeables) {
+            try {
+                if (closeable instanceof WriteBehindFileSystem) {
+                    flush((WriteBehindFileSystem) closeable);
+                }
+                closeable.close();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.error("Unable to close {}", closeable, e);
+            }
+        }
+    }
+
+    private void flush(WriteBehindFileSystem writeBehind) {
+        try {
+            if (!writeBehind.flush(shutdownTimeoutSeconds, TimeUnit.SECONDS)) {
+                LOGGER.warn("{} writes not uploaded on shutdown, they are replayed on the next start",
+                        writeBehind.getPendingCount());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            // Failed writes are kept in the write-behind directory, the others are uploaded
+            LOGGER.error("Some writes failed to be uploaded", e.getCause());
+        }
+    }
+
+    /**
+     * The pool behind the upload parts, the prefetched ranges and the download buffers. Callers get
+     * PooledOutputStream instances to save from its newOutputStream.
+     */
+    @Bean
+    public BufferPool bufferPool(BufferProperties bufferProperties, MetricsProperties metricsProperties,
+                                 ObjectProvider<MeterRegistry> meterRegistry) {
+        BufferPool pool = new BufferPool(bufferProperties.getChunkSize(),
+                (int) Math.min(Integer.MAX_VALUE, bufferProperties.getMaxPooledBytes() / bufferProperties.getChunkSize()),
+                bufferProperties.isDirect());
+        if (metricsProperties.isEnabled()) {
+            MeterRegistry registry = meterRegistry.getIfAvailable();
+            registry = registry != null ? registry : Metrics.globalRegistry;
+            Gauge.builder("file.buffers.pooled", pool, x -> (double) x.getPooledChunks() * x.getChunkSize())
+                    .description("Idle bytes kept by the buffer pool")
+                    .baseUnit("bytes")
+                    .register(registry);
+            FunctionCounter.builder("file.buffers.acquisitions", pool, BufferPool::getAcquisitions)
+                    .description("Chunks taken from the buffer pool")
+                    .register(registry);
+            FunctionCounter.builder("file.buffers.allocations", pool, BufferPool::getAllocations)
+                    .description("Chunks allocated because the buffer pool was empty")
+                    .register(registry);
+        }
+        return pool;
+    }
+
+    @Bean
+    public AsyncFileSystem asyncFileSystem(IFileSystem fileSystem, AsyncProperties asyncProperties,
+                                           FileProperties fileProperties) {
+        return new AsyncFileSystemAdapter(fileSystem, asyncProperties, fileProperties.isVirtualThreads());
+    }
 }
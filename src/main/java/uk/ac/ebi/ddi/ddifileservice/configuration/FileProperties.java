@@ -6,6 +6,15 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 public class FileProperties {
     private String provider = "s3";
 
+    // Local copies between two paths create hard links instead of copying the content
+    private boolean hardLinkCopies = false;
+
+    // Bulk operations fan out their per object calls on virtual threads, on JVMs supporting them
+    private boolean virtualThreads = false;
+
+    // Maximum number of per object calls in flight for a bulk operation running on virtual threads
+    private int virtualThreadConcurrency = 1000;
+
     public String getProvider() {
         return provider;
     }
@@ -14,10 +23,37 @@ public class FileProperties {
         this.provider = provider;
     }
 
+    public boolean isHardLinkCopies() {
+        return hardLinkCopies;
+    }
+
+    public void setHardLinkCopies(boolean hardLinkCopies) {
+        this.hardLinkCopies = hardLinkCopies;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public int getVirtualThreadConcurrency() {
+        return virtualThreadConcurrency;
+    }
+
+    public void setVirtualThreadConcurrency(int virtualThreadConcurrency) {
+        this.virtualThreadConcurrency = virtualThreadConcurrency;
+    }
+
     @Override
     public String toString() {
         return "FileProperties{" +
                 "provider='" + provider + '\'' +
+                ", hardLinkCopies=" + hardLinkCopies +
+                ", virtualThreads=" + virtualThreads +
+                ", virtualThreadConcurrency=" + virtualThreadConcurrency +
                 '}';
     }
 }
@@ -0,0 +1,59 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties("file.metadata_cache")
+public class MetadataCacheProperties {
+    private boolean enabled = false;
+
+    // Maximum number of files whose metadata is kept, including the files of warmed up folders
+    private int maxEntries = 100000;
+
+    // How long the metadata of existing files is trusted
+    private long ttlSeconds = 300;
+
+    // How long a file is known not to exist
+    private long negativeTtlSeconds = 60;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public void setTtlSeconds(long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public long getNegativeTtlSeconds() {
+        return negativeTtlSeconds;
+    }
+
+    public void setNegativeTtlSeconds(long negativeTtlSeconds) {
+        this.negativeTtlSeconds = negativeTtlSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataCacheProperties{" +
+                "enabled=" + enabled +
+                ", maxEntries=" + maxEntries +
+                ", ttlSeconds=" + ttlSeconds +
+                ", negativeTtlSeconds=" + negativeTtlSeconds +
+                '}';
+    }
+}
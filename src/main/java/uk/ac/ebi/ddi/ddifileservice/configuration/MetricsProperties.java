@@ -0,0 +1,35 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties("file.metrics")
+public class MetricsProperties {
+    private boolean enabled = false;
+
+    // Publish latency histograms along with the timers, for percentiles aggregated across instances
+    private boolean histograms = true;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isHistograms() {
+        return histograms;
+    }
+
+    public void setHistograms(boolean histograms) {
+        this.histograms = histograms;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsProperties{" +
+                "enabled=" + enabled +
+                ", histograms=" + histograms +
+                '}';
+    }
+}
@@ -0,0 +1,130 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedBackoffStrategies;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3AdmissionController;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3RequestMetrics;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+@Configuration
+@ConditionalOnExpression("'${file.provider:s3}' == 's3' or '${file.provider:s3}' == 'tiered'")
+public class S3Configuration {
+
+    // Base delay and cap of the backoff of the SDK, for the one of them which isn't overridden
+    private static final int SDK_BASE_DELAY_MILLIS = 100;
+
+    private static final int SDK_MAX_BACKOFF_MILLIS = 20 * 1000;
+
+    /**
+     * The S3 client shared by S3FileSystem and the transfer manager.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public AmazonS3 s3Client(S3Properties s3Properties, MetricsProperties metricsProperties,
+                             ObjectProvider<MeterRegistry> meterRegistry) {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder
+                        .EndpointConfiguration(s3Properties.getEndpointUrl(), s3Properties.getRegion()))
+                .withPathStyleAccessEnabled(true)
+                .withClientConfiguration(clientConfiguration(s3Properties));
+        if (!s3Properties.isEnvAuth()) {
+            AWSCredentials credentials = new BasicAWSCredentials(
+                    s3Properties.getAccessKey(), s3Properties.getSecretKey());
+            builder.withCredentials(new AWSStaticCredentialsProvider(credentials));
+        }
+        S3AdmissionController admission = s3Properties.isAdmissionControl() ? admissionController(s3Properties) : null;
+        List<RequestHandler2> handlers = new ArrayList<>();
+        if (admission != null) {
+            handlers.add(admission);
+        }
+        if (metricsProperties.isEnabled()) {
+            MeterRegistry registry = meterRegistry.getIfAvailable();
+            registry = registry != null ? registry : Metrics.globalRegistry;
+            handlers.add(new S3RequestMetrics(registry, s3Properties.getMaxConnections()));
+            if (admission != null) {
+                for (S3AdmissionController.Budget budget : S3AdmissionController.Budget.values()) {
+                    String name = budget.name().toLowerCase();
+                    Gauge.builder("s3.admission.rate", admission, x -> x.getRate(budget))
+                            .tags("budget", name)
+                            .description("Requests per second admitted by the S3 client")
+                            .register(registry);
+                    FunctionCounter.builder("s3.admission.throttled", admission, x -> x.getThrottled(budget))
+                            .tags("budget", name)
+                            .description("Throttling answers which lowered the admitted rate")
+                            .register(registry);
+                }
+            }
+        }
+        builder.withRequestHandlers(handlers.toArray(new RequestHandler2[0]));
+        AmazonS3 s3Client = builder.build();
+
+        if (!s3Client.doesBucketExistV2(s3Properties.getBucketName())) {
+            s3Client.shutdown();
+            throw new RuntimeException("S3 bucket doesn't exists: " + s3Properties.getBucketName());
+        }
+        return s3Client;
+    }
+
+    private static S3AdmissionController admissionController(S3Properties s3Properties) {
+        Map<S3AdmissionController.Budget, Double> maxRates = new EnumMap<>(S3AdmissionController.Budget.class);
+        maxRates.put(S3AdmissionController.Budget.GET, s3Properties.getAdmissionMaxGetRate());
+        maxRates.put(S3AdmissionController.Budget.PUT, s3Properties.getAdmissionMaxPutRate());
+        maxRates.put(S3AdmissionController.Budget.LIST, s3Properties.getAdmissionMaxListRate());
+        maxRates.put(S3AdmissionController.Budget.DELETE, s3Properties.getAdmissionMaxDeleteRate());
+        return new S3AdmissionController(s3Properties.getAdmissionInitialRate(), s3Properties.getAdmissionMinRate(),
+                maxRates, s3Properties.getAdmissionRateIncrease());
+    }
+
+    private static ClientConfiguration clientConfiguration(S3Properties s3Properties) {
+        ClientConfiguration configuration = new ClientConfiguration();
+        configuration.setMaxConnections(s3Properties.getMaxConnections());
+        configuration.setConnectionTTL(s3Properties.getConnectionTtlMillis());
+        configuration.setConnectionMaxIdleMillis(s3Properties.getConnectionMaxIdleMillis());
+        configuration.setUseReaper(s3Properties.isUseReaper());
+        configuration.setUseTcpKeepAlive(s3Properties.isTcpKeepAlive());
+        configuration.setConnectionTimeout(s3Properties.getConnectionTimeoutMillis());
+        configuration.setSocketTimeout(s3Properties.getSocketTimeoutMillis());
+        configuration.setRequestTimeout(s3Properties.getRequestTimeoutMillis());
+        configuration.setRetryPolicy(retryPolicy(s3Properties));
+        return configuration;
+    }
+
+    // The retry policy of the SDK, but for the settings which are overridden
+    private static RetryPolicy retryPolicy(S3Properties s3Properties) {
+        Integer maxErrorRetry = s3Properties.getMaxErrorRetry();
+        Long baseDelay = s3Properties.getRetryBaseDelayMillis();
+        Long maxBackoff = s3Properties.getRetryMaxBackoffMillis();
+        if (maxErrorRetry == null && baseDelay == null && maxBackoff == null) {
+            return PredefinedRetryPolicies.DEFAULT;
+        }
+        RetryPolicy.BackoffStrategy backoff = PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY;
+        if (baseDelay != null || maxBackoff != null) {
+            backoff = new PredefinedBackoffStrategies.FullJitterBackoffStrategy(
+                    baseDelay != null ? baseDelay.intValue() : SDK_BASE_DELAY_MILLIS,
+                    maxBackoff != null ? maxBackoff.intValue() : SDK_MAX_BACKOFF_MILLIS);
+        }
+        return new RetryPolicy(PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION, backoff,
+                maxErrorRetry != null ? maxErrorRetry : PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY,
+                maxErrorRetry != null);
+    }
+}
@@ -16,6 +16,115 @@ public class S3Properties {
 
     private boolean envAuth = false;
 
+    // Size in bytes of each part of a streamed upload, S3 requires at least 5 MiB
+    private int uploadPartSize = 8 * 1024 * 1024;
+
+    // Number of parts of a single streamed upload sent concurrently
+    private int uploadConcurrency = 4;
+
+    // Size in bytes of the ranges fetched in parallel by downloads
+    private int downloadPartSize = 8 * 1024 * 1024;
+
+    // Number of ranges of a single download fetched concurrently
+    private int downloadConcurrency = 4;
+
+    // Number of times a failed range is retried before the download fails
+    private int downloadRetries = 3;
+
+    // Send the MD5 and CRC-32C of uploads, and verify downloads against the stored checksum or the ETag. Off by
+    // default, the SDK alone checks the MD5 of single requests
+    private boolean verifyChecksums = false;
+
+    // Number of ranges prefetched ahead of getInputStream readers, 0 to stream the object directly
+    private int readAheadParts = 0;
+
+    // Size of the blocks fetched by the channels of open(), and number of them each channel keeps
+    private int channelBlockSize = 256 * 1024;
+
+    private int channelCacheBlocks = 8;
+
+    // Number of blocks a channel prefetches once it is read sequentially
+    private int channelReadAheadBlocks = 2;
+
+    // Number of sub-prefixes listFiles tries to split a folder into to list them in parallel, 1 to disable
+    private int listShardFanOut = 1;
+
+    // Maximum number of list requests in flight for a sharded listing
+    private int listConcurrency = 8;
+
+    // Maximum number of DeleteObjects requests of up to 1000 keys in flight
+    private int deleteConcurrency = 8;
+
+    // Maximum number of server side copies in flight
+    private int copyConcurrency = 8;
+
+    // Maximum number of HEAD or list requests in flight for a bulk existence check
+    private int existConcurrency = 16;
+
+    // Objects larger than this are copied part by part, CopyObject is limited to 5 GB
+    private long multipartCopyThreshold = 5L * 1024 * 1024 * 1024;
+
+    private long copyPartSize = 512L * 1024 * 1024;
+
+    // Size of the thread pool of the shared TransferManager
+    private int transferThreads = 10;
+
+    // Files larger than this are uploaded in parts by the TransferManager
+    private long multipartUploadThreshold = 16L * 1024 * 1024;
+
+    private long transferPartSize = 8L * 1024 * 1024;
+
+    // Size of the HTTP connection pool of the client, shared by every component and the TransferManager. The
+    // SDK default, raise it along with the concurrency settings for bulk workloads
+    private int maxConnections = 50;
+
+    // Connections older than this are closed once released, -1 to keep them forever. The pool settings default
+    // to the ones of the SDK
+    private long connectionTtlMillis = -1;
+
+    // Idle connections are reaped in the background after this
+    private long connectionMaxIdleMillis = 60000;
+
+    private boolean useReaper = true;
+
+    private boolean tcpKeepAlive = false;
+
+    // Timeouts of establishing a connection, of waiting for data on it, and of a whole request, 0 to disable
+    private int connectionTimeoutMillis = 10000;
+
+    private int socketTimeoutMillis = 50000;
+
+    private int requestTimeoutMillis = 0;
+
+    // Number of times the client retries a failed request. The retry settings left unset keep the retry policy
+    // of the SDK, 3 retries with its own backoff
+    private Integer maxErrorRetry;
+
+    // Base and cap of the exponential backoff between retries, with full jitter
+    private Long retryBaseDelayMillis;
+
+    private Long retryMaxBackoffMillis;
+
+    // Client side rate limiting of S3 requests, tuned from the throttling answers of the backend
+    private boolean admissionControl = false;
+
+    // Requests per second each kind of request starts with, and can't go under
+    private double admissionInitialRate = 100;
+
+    private double admissionMinRate = 1;
+
+    // Requests per second added to a kind of request every second without throttling
+    private double admissionRateIncrease = 20;
+
+    // Upper bounds by kind of request, AWS allows 5500 GET and 3500 PUT or DELETE per second and prefix
+    private double admissionMaxGetRate = 5500;
+
+    private double admissionMaxPutRate = 3500;
+
+    private double admissionMaxListRate = 5500;
+
+    private double admissionMaxDeleteRate = 3500;
+
     public String getRegion() {
         return region;
     }
@@ -64,6 +173,318 @@ public class S3Properties {
         this.envAuth = envAuth;
     }
 
+    public int getUploadPartSize() {
+        return uploadPartSize;
+    }
+
+    public void setUploadPartSize(int uploadPartSize) {
+        this.uploadPartSize = uploadPartSize;
+    }
+
+    public int getUploadConcurrency() {
+        return uploadConcurrency;
+    }
+
+    public void setUploadConcurrency(int uploadConcurrency) {
+        this.uploadConcurrency = uploadConcurrency;
+    }
+
+    public int getDownloadPartSize() {
+        return downloadPartSize;
+    }
+
+    public void setDownloadPartSize(int downloadPartSize) {
+        this.downloadPartSize = downloadPartSize;
+    }
+
+    public int getDownloadConcurrency() {
+        return downloadConcurrency;
+    }
+
+    public void setDownloadConcurrency(int downloadConcurrency) {
+        this.downloadConcurrency = downloadConcurrency;
+    }
+
+    public int getDownloadRetries() {
+        return downloadRetries;
+    }
+
+    public void setDownloadRetries(int downloadRetries) {
+        this.downloadRetries = downloadRetries;
+    }
+
+    public boolean isVerifyChecksums() {
+        return verifyChecksums;
+    }
+
+    public void setVerifyChecksums(boolean verifyChecksums) {
+        this.verifyChecksums = verifyChecksums;
+    }
+
+    public int getChannelBlockSize() {
+        return channelBlockSize;
+    }
+
+    public void setChannelBlockSize(int channelBlockSize) {
+        this.channelBlockSize = channelBlockSize;
+    }
+
+    public int getChannelCacheBlocks() {
+        return channelCacheBlocks;
+    }
+
+    public void setChannelCacheBlocks(int channelCacheBlocks) {
+        this.channelCacheBlocks = channelCacheBlocks;
+    }
+
+    public int getChannelReadAheadBlocks() {
+        return channelReadAheadBlocks;
+    }
+
+    public void setChannelReadAheadBlocks(int channelReadAheadBlocks) {
+        this.channelReadAheadBlocks = channelReadAheadBlocks;
+    }
+
+    public int getReadAheadParts() {
+        return readAheadParts;
+    }
+
+    public void setReadAheadParts(int readAheadParts) {
+        this.readAheadParts = readAheadParts;
+    }
+
+    public int getListShardFanOut() {
+        return listShardFanOut;
+    }
+
+    public void setListShardFanOut(int listShardFanOut) {
+        this.listShardFanOut = listShardFanOut;
+    }
+
+    public int getListConcurrency() {
+        return listConcurrency;
+    }
+
+    public void setListConcurrency(int listConcurrency) {
+        this.listConcurrency = listConcurrency;
+    }
+
+    public int getDeleteConcurrency() {
+        return deleteConcurrency;
+    }
+
+    public void setDeleteConcurrency(int deleteConcurrency) {
+        this.deleteConcurrency = deleteConcurrency;
+    }
+
+    public int getExistConcurrency() {
+        return existConcurrency;
+    }
+
+    public void setExistConcurrency(int existConcurrency) {
+        this.existConcurrency = existConcurrency;
+    }
+
+    public int getCopyConcurrency() {
+        return copyConcurrency;
+    }
+
+    public void setCopyConcurrency(int copyConcurrency) {
+        this.copyConcurrency = copyConcurrency;
+    }
+
+    public long getMultipartCopyThreshold() {
+        return multipartCopyThreshold;
+    }
+
+    public void setMultipartCopyThreshold(long multipartCopyThreshold) {
+        this.multipartCopyThreshold = multipartCopyThreshold;
+    }
+
+    public long getCopyPartSize() {
+        return copyPartSize;
+    }
+
+    public void setCopyPartSize(long copyPartSize) {
+        this.copyPartSize = copyPartSize;
+    }
+
+    public int getTransferThreads() {
+        return transferThreads;
+    }
+
+    public void setTransferThreads(int transferThreads) {
+        this.transferThreads = transferThreads;
+    }
+
+    public long getMultipartUploadThreshold() {
+        return multipartUploadThreshold;
+    }
+
+    public void setMultipartUploadThreshold(long multipartUploadThreshold) {
+        this.multipartUploadThreshold = multipartUploadThreshold;
+    }
+
+    public long getTransferPartSize() {
+        return transferPartSize;
+    }
+
+    public void setTransferPartSize(long transferPartSize) {
+        this.transferPartSize = transferPartSize;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public long getConnectionTtlMillis() {
+        return connectionTtlMillis;
+    }
+
+    public void setConnectionTtlMillis(long connectionTtlMillis) {
+        this.connectionTtlMillis = connectionTtlMillis;
+    }
+
+    public long getConnectionMaxIdleMillis() {
+        return connectionMaxIdleMillis;
+    }
+
+    public void setConnectionMaxIdleMillis(long connectionMaxIdleMillis) {
+        this.connectionMaxIdleMillis = connectionMaxIdleMillis;
+    }
+
+    public boolean isUseReaper() {
+        return useReaper;
+    }
+
+    public void setUseReaper(boolean useReaper) {
+        this.useReaper = useReaper;
+    }
+
+    public boolean isTcpKeepAlive() {
+        return tcpKeepAlive;
+    }
+
+    public void setTcpKeepAlive(boolean tcpKeepAlive) {
+        this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    public int getConnectionTimeoutMillis() {
+        return connectionTimeoutMillis;
+    }
+
+    public void setConnectionTimeoutMillis(int connectionTimeoutMillis) {
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return socketTimeoutMillis;
+    }
+
+    public void setSocketTimeoutMillis(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    public int getRequestTimeoutMillis() {
+        return requestTimeoutMillis;
+    }
+
+    public void setRequestTimeoutMillis(int requestTimeoutMillis) {
+        this.requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    public Integer getMaxErrorRetry() {
+        return maxErrorRetry;
+    }
+
+    public void setMaxErrorRetry(Integer maxErrorRetry) {
+        this.maxErrorRetry = maxErrorRetry;
+    }
+
+    public Long getRetryBaseDelayMillis() {
+        return retryBaseDelayMillis;
+    }
+
+    public void setRetryBaseDelayMillis(Long retryBaseDelayMillis) {
+        this.retryBaseDelayMillis = retryBaseDelayMillis;
+    }
+
+    public Long getRetryMaxBackoffMillis() {
+        return retryMaxBackoffMillis;
+    }
+
+    public void setRetryMaxBackoffMillis(Long retryMaxBackoffMillis) {
+        this.retryMaxBackoffMillis = retryMaxBackoffMillis;
+    }
+
+    public boolean isAdmissionControl() {
+        return admissionControl;
+    }
+
+    public void setAdmissionControl(boolean admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    public double getAdmissionInitialRate() {
+        return admissionInitialRate;
+    }
+
+    public void setAdmissionInitialRate(double admissionInitialRate) {
+        this.admissionInitialRate = admissionInitialRate;
+    }
+
+    public double getAdmissionMinRate() {
+        return admissionMinRate;
+    }
+
+    public void setAdmissionMinRate(double admissionMinRate) {
+        this.admissionMinRate = admissionMinRate;
+    }
+
+    public double getAdmissionRateIncrease() {
+        return admissionRateIncrease;
+    }
+
+    public void setAdmissionRateIncrease(double admissionRateIncrease) {
+        this.admissionRateIncrease = admissionRateIncrease;
+    }
+
+    public double getAdmissionMaxGetRate() {
+        return admissionMaxGetRate;
+    }
+
+    public void setAdmissionMaxGetRate(double admissionMaxGetRate) {
+        this.admissionMaxGetRate = admissionMaxGetRate;
+    }
+
+    public double getAdmissionMaxPutRate() {
+        return admissionMaxPutRate;
+    }
+
+    public void setAdmissionMaxPutRate(double admissionMaxPutRate) {
+        this.admissionMaxPutRate = admissionMaxPutRate;
+    }
+
+    public double getAdmissionMaxListRate() {
+        return admissionMaxListRate;
+    }
+
+    public void setAdmissionMaxListRate(double admissionMaxListRate) {
+        this.admissionMaxListRate = admissionMaxListRate;
+    }
+
+    public double getAdmissionMaxDeleteRate() {
+        return admissionMaxDeleteRate;
+    }
+
+    public void setAdmissionMaxDeleteRate(double admissionMaxDeleteRate) {
+        this.admissionMaxDeleteRate = admissionMaxDeleteRate;
+    }
+
     @Override
     public String toString() {
         return "S3Properties{" +
@@ -71,6 +492,45 @@ public class S3Properties {
                 ", accessKey='" + accessKey + '\'' +
                 ", secretKey='" + secretKey + '\'' +
                 ", bucketName='" + bucketName + '\'' +
+                ", uploadPartSize=" + uploadPartSize +
+                ", uploadConcurrency=" + uploadConcurrency +
+                ", downloadPartSize=" + downloadPartSize +
+                ", downloadConcurrency=" + downloadConcurrency +
+                ", downloadRetries=" + downloadRetries +
+                ", verifyChecksums=" + verifyChecksums +
+                ", readAheadParts=" + readAheadParts +
+                ", channelBlockSize=" + channelBlockSize +
+                ", channelCacheBlocks=" + channelCacheBlocks +
+                ", channelReadAheadBlocks=" + channelReadAheadBlocks +
+                ", listShardFanOut=" + listShardFanOut +
+                ", listConcurrency=" + listConcurrency +
+                ", deleteConcurrency=" + deleteConcurrency +
+                ", copyConcurrency=" + copyConcurrency +
+                ", existConcurrency=" + existConcurrency +
+                ", multipartCopyThreshold=" + multipartCopyThreshold +
+                ", copyPartSize=" + copyPartSize +
+                ", transferThreads=" + transferThreads +
+                ", multipartUploadThreshold=" + multipartUploadThreshold +
+                ", transferPartSize=" + transferPartSize +
+                ", maxConnections=" + maxConnections +
+                ", connectionTtlMillis=" + connectionTtlMillis +
+                ", connectionMaxIdleMillis=" + connectionMaxIdleMillis +
+                ", useReaper=" + useReaper +
+                ", tcpKeepAlive=" + tcpKeepAlive +
+                ", connectionTimeoutMillis=" + connectionTimeoutMillis +
+                ", socketTimeoutMillis=" + socketTimeoutMillis +
+                ", requestTimeoutMillis=" + requestTimeoutMillis +
+                ", maxErrorRetry=" + maxErrorRetry +
+                ", retryBaseDelayMillis=" + retryBaseDelayMillis +
+                ", retryMaxBackoffMillis=" + retryMaxBackoffMillis +
+                ", admissionControl=" + admissionControl +
+                ", admissionInitialRate=" + admissionInitialRate +
+                ", admissionMinRate=" + admissionMinRate +
+                ", admissionRateIncrease=" + admissionRateIncrease +
+                ", admissionMaxGetRate=" + admissionMaxGetRate +
+                ", admissionMaxPutRate=" + admissionMaxPutRate +
+                ", admissionMaxListRate=" + admissionMaxListRate +
+                ", admissionMaxDeleteRate=" + admissionMaxDeleteRate +
                 '}';
     }
 }
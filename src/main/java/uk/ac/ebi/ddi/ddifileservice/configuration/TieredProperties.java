@@ -0,0 +1,95 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties("file.tiered")
+public class TieredProperties {
+    // Local directory holding the hot tier and the journal of its pending flushes, clean files are deleted on startup
+    private String directory = System.getProperty("java.io.tmpdir") + "/omics-file-tier";
+
+    // Bytes of clean files kept locally before the least recently used ones are demoted
+    private long maxSize = 50L * 1024 * 1024 * 1024;
+
+    // Clean files not accessed for this long are demoted
+    private long maxIdleSeconds = 3600;
+
+    private long demotionIntervalSeconds = 60;
+
+    // Writes return once the file is in S3, instead of once it is on local disk
+    private boolean writeThrough = false;
+
+    // Number of files flushed to S3 concurrently in write-back mode
+    private int flushConcurrency = 4;
+
+    // Check local copies against the ETag of the object on every read, for buckets written by other workers
+    private boolean revalidate = false;
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxIdleSeconds() {
+        return maxIdleSeconds;
+    }
+
+    public void setMaxIdleSeconds(long maxIdleSeconds) {
+        this.maxIdleSeconds = maxIdleSeconds;
+    }
+
+    public long getDemotionIntervalSeconds() {
+        return demotionIntervalSeconds;
+    }
+
+    public void setDemotionIntervalSeconds(long demotionIntervalSeconds) {
+        this.demotionIntervalSeconds = demotionIntervalSeconds;
+    }
+
+    public boolean isWriteThrough() {
+        return writeThrough;
+    }
+
+    public void setWriteThrough(boolean writeThrough) {
+        this.writeThrough = writeThrough;
+    }
+
+    public int getFlushConcurrency() {
+        return flushConcurrency;
+    }
+
+    public void setFlushConcurrency(int flushConcurrency) {
+        this.flushConcurrency = flushConcurrency;
+    }
+
+    public boolean isRevalidate() {
+        return revalidate;
+    }
+
+    public void setRevalidate(boolean revalidate) {
+        this.revalidate = revalidate;
+    }
+
+    @Override
+    public String toString() {
+        return "TieredProperties{" +
+                "directory='" + directory + '\'' +
+                ", maxSize=" + maxSize +
+                ", maxIdleSeconds=" + maxIdleSeconds +
+                ", demotionIntervalSeconds=" + demotionIntervalSeconds +
+                ", writeThrough=" + writeThrough +
+                ", flushConcurrency=" + flushConcurrency +
+                ", revalidate=" + revalidate +
+                '}';
+    }
+}
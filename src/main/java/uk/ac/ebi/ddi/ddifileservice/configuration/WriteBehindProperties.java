@@ -0,0 +1,107 @@
+package uk.ac.ebi.ddi.ddifileservice.configuration;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@ConfigurationProperties("file.write_behind")
+public class WriteBehindProperties {
+    private boolean enabled = false;
+
+    // Local directory holding the spooled files and the journal, kept across restarts to replay pending writes
+    private String directory = System.getProperty("java.io.tmpdir") + "/omics-write-behind";
+
+    // Number of workers uploading spooled files
+    private int concurrency = 8;
+
+    // Uploads journaled as done with a single sync
+    private int batchSize = 32;
+
+    // Writes block once this many files are waiting to be uploaded
+    private int maxPendingFiles = 10000;
+
+    // Number of times an upload is tried before its write is failed, its content being kept in the directory
+    private int maxAttempts = 8;
+
+    // Longest wait of reads, listings and flush for the upload of the pending writes they touch
+    private long waitTimeoutSeconds = 300;
+
+    // Longest wait on shutdown for the pending writes to be uploaded, the others are replayed on the next start
+    private long shutdownTimeoutSeconds = 20;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getMaxPendingFiles() {
+        return maxPendingFiles;
+    }
+
+    public void setMaxPendingFiles(int maxPendingFiles) {
+        this.maxPendingFiles = maxPendingFiles;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getWaitTimeoutSeconds() {
+        return waitTimeoutSeconds;
+    }
+
+    public void setWaitTimeoutSeconds(long waitTimeoutSeconds) {
+        this.waitTimeoutSeconds = waitTimeoutSeconds;
+    }
+
+    public long getShutdownTimeoutSeconds() {
+        return shutdownTimeoutSeconds;
+    }
+
+    public void setShutdownTimeoutSeconds(long shutdownTimeoutSeconds) {
+        this.shutdownTimeoutSeconds = shutdownTimeoutSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteBehindProperties{" +
+                "enabled=" + enabled +
+                ", directory='" + directory + '\'' +
+                ", concurrency=" + concurrency +
+                ", batchSize=" + batchSize +
+                ", maxPendingFiles=" + maxPendingFiles +
+                ", maxAttempts=" + maxAttempts +
+                ", waitTimeoutSeconds=" + waitTimeoutSeconds +
+                ", shutdownTimeoutSeconds=" + shutdownTimeoutSeconds +
+                '}';
+    }
+}
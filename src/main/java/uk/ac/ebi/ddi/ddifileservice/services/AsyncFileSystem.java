@@ -0,0 +1,38 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non blocking counterpart of IFileSystem: every operation returns immediately, and its outcome, or the
+ * exception it threw, is delivered through the returned future.
+ */
+public interface AsyncFileSystem {
+
+    CompletableFuture<InputStream> getInputStream(String filePath);
+
+    CompletableFuture<CloseableFile> getFile(String filePath);
+
+    CompletableFuture<Void> saveFile(ConvertibleOutputStream outputStream, String filePath);
+
+    CompletableFuture<Void> copyFile(File localFile, String destinationFile);
+
+    CompletableFuture<List<String>> listFilesFromFolder(String folderPath);
+
+    CompletableFuture<Void> deleteFile(String filePath);
+
+    CompletableFuture<DeleteResult> deleteFiles(Collection<String> filePaths);
+
+    CompletableFuture<Boolean> isFile(String filePath);
+
+    CompletableFuture<Void> copyObject(String sourcePath, String destinationPath);
+
+    CompletableFuture<Void> copyPrefix(String sourceDir, String destDir);
+}
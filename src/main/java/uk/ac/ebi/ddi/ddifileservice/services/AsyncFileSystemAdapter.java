@@ -0,0 +1,130 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import uk.ac.ebi.ddi.ddifileservice.configuration.AsyncProperties;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.OperationType;
+import uk.ac.ebi.ddi.ddifileservice.utils.ConcurrencyLimiter;
+import uk.ac.ebi.ddi.ddifileservice.utils.VirtualThreads;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs the operations of a blocking file system, S3 or local, in the background. Each operation type has
+ * its own concurrency limit, operations over it are queued without holding a thread, so that any number
+ * of them can be submitted while only the running ones use a thread. Running operations use virtual
+ * threads if requested, so that high limits don't tie up platform threads.
+ *
+ * The file systems block, S3 included as the SDK v1 client does, so every running operation holds a thread
+ * until it completes. On Java 8, which has no virtual threads, that is a platform thread of a cached pool:
+ * the number of operations in flight is bounded by the thread count the limits allow, not by the number
+ * of submitted ones.
+ */
+public class AsyncFileSystemAdapter implements AsyncFileSystem, AutoCloseable {
+
+    private final IFileSystem fileSystem;
+
+    private final ExecutorService executor;
+
+    private final Map<OperationType, ConcurrencyLimiter> limiters = new EnumMap<>(OperationType.class);
+
+    public AsyncFileSystemAdapter(IFileSystem fileSystem, AsyncProperties properties, boolean virtualThreads) {
+        this.fileSystem = fileSystem;
+        // Never runs more tasks than the sum of the limits
+        this.executor = VirtualThreads.newExecutor("async-file-system-", virtualThreads);
+        for (OperationType type : OperationType.values()) {
+            limiters.put(type, new ConcurrencyLimiter(properties.getConcurrency(type), executor));
+        }
+    }
+
+    public IFileSystem getFileSystem() {
+        return fileSystem;
+    }
+
+    public ConcurrencyLimiter getLimiter(OperationType type) {
+        return limiters.get(type);
+    }
+
+    @Override
+    public CompletableFuture<InputStream> getInputStream(String filePath) {
+        return submit(OperationType.GET, () -> fileSystem.getInputStream(filePath));
+    }
+
+    @Override
+    public CompletableFuture<CloseableFile> getFile(String filePath) {
+        return submit(OperationType.GET, () -> fileSystem.getFile(filePath));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveFile(ConvertibleOutputStream outputStream, String filePath) {
+        return submit(OperationType.SAVE, () -> {
+            fileSystem.saveFile(outputStream, filePath);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> copyFile(File localFile, String destinationFile) {
+        return submit(OperationType.SAVE, () -> {
+            fileSystem.copyFile(localFile, destinationFile);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<String>> listFilesFromFolder(String folderPath) {
+        return submit(OperationType.LIST, () -> fileSystem.listFilesFromFolder(folderPath));
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteFile(String filePath) {
+        return submit(OperationType.DELETE, () -> {
+            fileSystem.deleteFile(filePath);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<DeleteResult> deleteFiles(Collection<String> filePaths) {
+        return submit(OperationType.DELETE, () -> fileSystem.deleteFiles(filePaths));
+    }
+
+    @Override
+    public CompletableFuture<Boolean> isFile(String filePath) {
+        return submit(OperationType.EXISTS, () -> fileSystem.isFile(filePath));
+    }
+
+    @Override
+    public CompletableFuture<Void> copyObject(String sourcePath, String destinationPath) {
+        return submit(OperationType.COPY, () -> {
+            fileSystem.copyObject(sourcePath, destinationPath);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> copyPrefix(String sourceDir, String destDir) {
+        return submit(OperationType.COPY, () -> {
+            fileSystem.copyPrefix(sourceDir, destDir);
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> submit(OperationType type, Callable<T> operation) {
+        return limiters.get(type).submit(operation);
+    }
+}
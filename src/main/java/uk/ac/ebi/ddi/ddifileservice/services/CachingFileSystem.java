@@ -0,0 +1,333 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.EncodedInputStream;
+import uk.ac.ebi.ddi.ddifileservice.utils.FilenameUtils;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Keeps downloaded S3 objects in a local directory so that repeated reads of the same key don't download
+ * it again. Entries are revalidated against their ETag with a conditional request on every access, and
+ * evicted in least recently used order once the cache grows over its maximum size. Entries which are
+ * still open by a caller are never deleted under its feet.
+ */
+public class CachingFileSystem extends ForwardingFileSystem {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingFileSystem.class);
+
+    private static final String ENTRY_PREFIX = "entry-";
+
+    private final S3FileSystem s3FileSystem;
+
+    private final String bucketName;
+
+    private final Path directory;
+
+    private final long maxSize;
+
+    // Guarded by this, in access order so that the eldest entry is the least recently used
+    private final Map<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ConcurrentMap<String, CompletableFuture<CacheEntry>> inFlight = new ConcurrentHashMap<>();
+
+    private long currentSize;
+
+    public CachingFileSystem(S3FileSystem delegate, String bucketName, Path directory, long maxSize)
+            throws IOException {
+        super(delegate);
+        this.s3FileSystem = delegate;
+        this.bucketName = bucketName;
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory);
+        // The index only lives in memory, so entries left by a previous run can't be trusted. Only the files
+        // named by the cache are removed, the directory may be shared with anything else.
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(x -> x.getFileName().toString().startsWith(ENTRY_PREFIX) && Files.isRegularFile(x))
+                    .forEach(x -> x.toFile().delete());
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(String filePath) throws FileNotFoundException {
+        CacheEntry entry = acquireUnchecked(filePath);
+        try {
+            InputStream inputStream = new FilterInputStream(new FileInputStream(entry.file)) {
+                private final AtomicBoolean closed = new AtomicBoolean();
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (closed.compareAndSet(false, true)) {
+                            release(entry);
+                        }
+                    }
+                }
+            };
+            return entry.contentEncoding == null ? inputStream
+                    : new EncodedInputStream(inputStream, entry.contentEncoding);
+        } catch (FileNotFoundException e) {
+            release(entry);
+            throw e;
+        }
+    }
+
+    @Override
+    public CloseableFile getFile(String filePath) throws IOException {
+        CacheEntry entry = acquire(filePath);
+        CloseableFile file = new CloseableFile(entry.file) {
+            private final AtomicBoolean closed = new AtomicBoolean();
+
+            @Override
+            public void close() {
+                // The file belongs to the cache, it is only deleted once evicted and no longer used
+                if (closed.compareAndSet(false, true)) {
+                    release(entry);
+                }
+            }
+        };
+        file.setContentEncoding(entry.contentEncoding);
+        return file;
+    }
+
+    @Override
+    public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        invalidate(filePath);
+        super.saveFile(outputStream, filePath);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath) throws IOException {
+        invalidate(filePath);
+        return super.openOutputStream(filePath);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) throws IOException {
+        invalidate(filePath);
+        return super.openOutputStream(filePath, contentEncoding, decodedSize);
+    }
+
+    @Override
+    public void copyFile(File localFile, String destinationFile) throws IOException {
+        invalidate(destinationFile);
+        super.copyFile(localFile, destinationFile);
+    }
+
+    @Override
+    public void copyObject(String sourcePath, String destinationPath) throws IOException {
+        invalidate(destinationPath);
+        super.copyObject(sourcePath, destinationPath);
+    }
+
+    @Override
+    public void copyPrefix(String sourceDir, String destDir) throws IOException {
+        invalidatePrefix(destDir + "/");
+        super.copyPrefix(sourceDir, destDir);
+    }
+
+    @Override
+    public void deleteFile(String filePath) {
+        invalidate(filePath);
+        super.deleteFile(filePath);
+    }
+
+    @Override
+    public DeleteResult deleteFiles(Collection<String> filePaths) {
+        filePaths.forEach(this::invalidate);
+        return super.deleteFiles(filePaths);
+    }
+
+    @Override
+    public void cleanDirectory(String dirPath) {
+        invalidatePrefix(dirPath + "/");
+        super.cleanDirectory(dirPath);
+    }
+
+    @Override
+    public void copyDirectory(String sourceDir, String destDir) {
+        invalidatePrefix(destDir + "/");
+        super.copyDirectory(sourceDir, destDir);
+    }
+
+    private CacheEntry acquireUnchecked(String filePath) throws FileNotFoundException {
+        try {
+            return acquire(filePath);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private CacheEntry acquire(String filePath) throws IOException {
+        String cacheKey = bucketName + "/" + filePath;
+        for (;;) {
+            CompletableFuture<CacheEntry> loading = new CompletableFuture<>();
+            CompletableFuture<CacheEntry> existing = inFlight.putIfAbsent(cacheKey, loading);
+            if (existing == null) {
+                try {
+                    CacheEntry entry = load(cacheKey, filePath);
+                    loading.complete(entry);
+                    return entry;
+                } catch (IOException | RuntimeException e) {
+                    loading.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    inFlight.remove(cacheKey, loading);
+                }
+            }
+            // Another caller is already fetching this key, share its result
+            CacheEntry entry = join(existing);
+            synchronized (this) {
+                if (entries.get(cacheKey) == entry) {
+                    entry.references++;
+                    return entry;
+                }
+            }
+        }
+    }
+
+    private CacheEntry load(String cacheKey, String filePath) throws IOException {
+        CacheEntry cached;
+        synchronized (this) {
+            cached = entries.get(cacheKey);
+        }
+        String suffix = "." + FilenameUtils.getFileExtension(filePath);
+        File file = Files.createTempFile(directory, ENTRY_PREFIX, suffix).toFile();
+        ObjectMetadata metadata;
+        try {
+            metadata = s3FileSystem.getFileIfModified(filePath, cached == null ? null : cached.eTag, file);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+        if (metadata == null) {
+            Files.deleteIfExists(file.toPath());
+            synchronized (this) {
+                if (entries.get(cacheKey) == cached) {
+                    cached.references++;
+                    return cached;
+                }
+            }
+            // Evicted while being revalidated, fetch it again
+            return load(cacheKey, filePath);
+        }
+        CacheEntry entry = new CacheEntry(cacheKey, file, metadata.getETag(), file.length(),
+                metadata.getContentEncoding());
+        synchronized (this) {
+            CacheEntry previous = entries.put(cacheKey, entry);
+            if (previous != null) {
+                discard(previous);
+            }
+            currentSize += entry.size;
+            entry.references++;
+            evict();
+        }
+        return entry;
+    }
+
+    private synchronized void release(CacheEntry entry) {
+        entry.references--;
+        if (entry.removed) {
+            deleteIfUnused(entry);
+        } else {
+            evict();
+        }
+    }
+
+    private void invalidate(String filePath) {
+        String cacheKey = bucketName + "/" + filePath;
+        synchronized (this) {
+            CacheEntry entry = entries.remove(cacheKey);
+            if (entry != null) {
+                discard(entry);
+            }
+        }
+    }
+
+    private synchronized void invalidatePrefix(String prefix) {
+        String cachePrefix = bucketName + "/" + prefix;
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            CacheEntry entry = iterator.next();
+            if (entry.cacheKey.startsWith(cachePrefix)) {
+                iterator.remove();
+                discard(entry);
+            }
+        }
+    }
+
+    // Must be called holding the lock
+    private void evict() {
+        Iterator<CacheEntry> iterator = entries.values().iterator();
+        while (currentSize > maxSize && iterator.hasNext()) {
+            CacheEntry entry = iterator.next();
+            if (entry.references == 0) {
+                iterator.remove();
+                discard(entry);
+            }
+        }
+    }
+
+    private void discard(CacheEntry entry) {
+        entry.removed = true;
+        currentSize -= entry.size;
+        deleteIfUnused(entry);
+    }
+
+    private void deleteIfUnused(CacheEntry entry) {
+        if (entry.references == 0 && !entry.file.delete() && entry.file.exists()) {
+            LOGGER.warn("Unable to delete cached file {}", entry.file);
+        }
+    }
+
+    private static CacheEntry join(CompletableFuture<CacheEntry> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static class CacheEntry {
+        private final String cacheKey;
+        private final File file;
+        private final String eTag;
+        private final long size;
+        private final String contentEncoding;
+        private int references;
+        private boolean removed;
+
+        private CacheEntry(String cacheKey, File file, String eTag, long size, String contentEncoding) {
+            this.cacheKey = cacheKey;
+            this.file = file;
+            this.eTag = eTag;
+            this.size = size;
+            this.contentEncoding = contentEncoding;
+        }
+    }
+}
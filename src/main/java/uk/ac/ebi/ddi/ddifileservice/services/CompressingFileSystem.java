@@ -0,0 +1,258 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.ddi.ddifileservice.codec.CompressionCodec;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.EncodedInputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.utils.FilenameUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compresses files on write and decompresses them on read. Written files are compressed with the codec of
+ * their extension, or the default codec if one is set, and stored with the codec as their content encoding.
+ * Reads decode whatever the stored encoding is, so files written before compression was enabled, or with
+ * another codec, are still read transparently.
+ *
+ * Compression is streamed into the multipart upload of the delegate, so that parts are uploaded while the
+ * next ones are being compressed. Ranged reads (map, readRange, open) and getMetadata look the encoding up
+ * first. Encoded files can't be read by range, they are decoded from the start, so compressed extensions
+ * should be limited to files which are read whole. The decoded size of files whose size is known up front,
+ * saved or copied, is stored with them. getMetadata returns it, and only counts the decoded size of streamed
+ * files by decoding them whole. Listings return the stored sizes.
+ */
+public class CompressingFileSystem extends ForwardingFileSystem {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompressingFileSystem.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Map<String, CompressionCodec> codecs = new HashMap<>();
+
+    private final Map<String, CompressionCodec> codecsBySuffix = new HashMap<>();
+
+    private final CompressionCodec defaultCodec;
+
+    /**
+     * @param defaultCodec encoding of the codec used for files whose extension has none, or null
+     * @param suffixes     encoding of the codec by file extension
+     */
+    public CompressingFileSystem(IFileSystem delegate, Collection<CompressionCodec> codecs,
+                                 String defaultCodec, Map<String, String> suffixes) {
+        super(delegate);
+        codecs.forEach(x -> this.codecs.put(x.getEncoding(), x));
+        suffixes.forEach((suffix, encoding) -> codecsBySuffix.put(suffix, getCodec(encoding)));
+        this.defaultCodec = defaultCodec == null || defaultCodec.isEmpty() ? null : getCodec(defaultCodec);
+    }
+
+    private CompressionCodec getCodec(String encoding) {
+        CompressionCodec codec = codecs.get(encoding);
+        if (codec == null) {
+            throw new IllegalArgumentException("Unknown compression codec " + encoding
+                    + ", available codecs are " + codecs.keySet());
+        }
+        return codec;
+    }
+
+    private CompressionCodec selectCodec(String filePath) {
+        return codecsBySuffix.getOrDefault(FilenameUtils.getFileExtension(filePath), defaultCodec);
+    }
+
+    @Override
+    public InputStream getInputStream(String filePath) throws FileNotFoundException {
+        InputStream inputStream = delegate.getInputStream(filePath);
+        if (!(inputStream instanceof EncodedInputStream)) {
+            return inputStream;
+        }
+        CompressionCodec codec = codecs.get(((EncodedInputStream) inputStream).getContentEncoding());
+        if (codec == null) {
+            return inputStream;
+        }
+        try {
+            return codec.decompress(inputStream);
+        } catch (IOException e) {
+            closeQuietly(inputStream);
+            throw new UncheckedIOException("Unable to decompress " + filePath, e);
+        }
+    }
+
+    @Override
+    public CloseableFile getFile(String filePath) throws IOException {
+        CloseableFile file = delegate.getFile(filePath);
+        CompressionCodec codec = getCodecOf(file.getContentEncoding());
+        if (codec == null) {
+            return file;
+        }
+        return new CloseableFile(decode(file, codec, filePath)) {
+            @Override
+            public void close() throws IOException {
+                delete();
+            }
+        };
+    }
+
+    @Override
+    public ByteBuffer map(String filePath, long offset, int length) throws IOException {
+        CompressionCodec codec = getStoredCodec(filePath);
+        if (codec == null) {
+            return super.map(filePath, offset, length);
+        }
+        return ByteBuffer.wrap(readDecoded(codec, filePath, offset, length)).asReadOnlyBuffer();
+    }
+
+    @Override
+    public byte[] readRange(String filePath, long offset, int length) throws IOException {
+        CompressionCodec codec = getStoredCodec(filePath);
+        if (codec == null) {
+            return super.readRange(filePath, offset, length);
+        }
+        return readDecoded(codec, filePath, offset, length);
+    }
+
+    @Override
+    public SeekableByteChannel open(String filePath) throws IOException {
+        CompressionCodec codec = getStoredCodec(filePath);
+        if (codec == null) {
+            return super.open(filePath);
+        }
+        // Seeks need the decoded content at hand, the channel deletes it once closed
+        File decoded = decode(delegate.getFile(filePath), codec, filePath);
+        return FileChannel.open(decoded.toPath(), StandardOpenOption.READ, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    @Override
+    public FileEntry getMetadata(String filePath) throws IOException {
+        FileEntry entry = super.getMetadata(filePath);
+        CompressionCodec codec = entry == null ? null : getCodecOf(entry.getContentEncoding());
+        if (codec == null) {
+            return entry;
+        }
+        if (entry.getDecodedSize() >= 0) {
+            return new FileEntry(entry.getPath(), entry.getDecodedSize(), entry.getLastModified(), entry.getETag(),
+                    entry.getContentEncoding(), entry.getPartSize(), entry.getDecodedSize());
+        }
+        long size = 0;
+        try (InputStream inputStream = codec.decompress(delegate.getInputStream(filePath))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = inputStream.read(buffer)) != -1) {
+                size += n;
+            }
+        }
+        return new FileEntry(entry.getPath(), size, entry.getLastModified(), entry.getETag(),
+                entry.getContentEncoding(), entry.getPartSize(), size);
+    }
+
+    // Codec the file is stored with, null if it is stored as it is or doesn't exist
+    private CompressionCodec getStoredCodec(String filePath) throws IOException {
+        FileEntry entry = delegate.getMetadata(filePath);
+        return entry == null ? null : getCodecOf(entry.getContentEncoding());
+    }
+
+    private CompressionCodec getCodecOf(String contentEncoding) {
+        return contentEncoding == null ? null : codecs.get(contentEncoding);
+    }
+
+    private byte[] readDecoded(CompressionCodec codec, String filePath, long offset, int length)
+            throws IOException {
+        try (InputStream inputStream = codec.decompress(delegate.getInputStream(filePath))) {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = inputStream.skip(offset - skipped);
+                if (n <= 0) {
+                    // skip may return 0 before the end, read tells them apart
+                    if (inputStream.read() == -1) {
+                        return new byte[0];
+                    }
+                    n = 1;
+                }
+                skipped += n;
+            }
+            byte[] buffer = new byte[length];
+            int read = 0;
+            int n;
+            while (read < length && (n = inputStream.read(buffer, read, length - read)) != -1) {
+                read += n;
+            }
+            return read == length ? buffer : Arrays.copyOf(buffer, read);
+        }
+    }
+
+    @Override
+    public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        CompressionCodec codec = selectCodec(filePath);
+        if (codec == null) {
+            super.saveFile(outputStream, filePath);
+            return;
+        }
+        try (OutputStream compressed = codec.compress(
+                delegate.openOutputStream(filePath, codec.getEncoding(), outputStream.getSize()))) {
+            outputStream.writeTo(compressed);
+        }
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath) throws IOException {
+        CompressionCodec codec = selectCodec(filePath);
+        if (codec == null) {
+            return super.openOutputStream(filePath);
+        }
+        return codec.compress(delegate.openOutputStream(filePath, codec.getEncoding(), -1));
+    }
+
+    @Override
+    public void copyFile(File localFile, String destinationFile) throws IOException {
+        CompressionCodec codec = selectCodec(destinationFile);
+        if (codec == null) {
+            super.copyFile(localFile, destinationFile);
+            return;
+        }
+        try (InputStream inputStream = new FileInputStream(localFile);
+             OutputStream compressed = codec.compress(
+                     delegate.openOutputStream(destinationFile, codec.getEncoding(), localFile.length()))) {
+            copy(inputStream, compressed);
+        }
+    }
+
+    // Decodes the downloaded file into a temporary file, deleting the downloaded one
+    private static File decode(CloseableFile file, CompressionCodec codec, String filePath) throws IOException {
+        File decoded = File.createTempFile("omics-tmp-file", "." + FilenameUtils.getFileExtension(filePath));
+        try (CloseableFile encoded = file;
+             InputStream inputStream = codec.decompress(new FileInputStream(encoded));
+             OutputStream outputStream = new FileOutputStream(decoded)) {
+            copy(inputStream, outputStream);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(decoded.toPath());
+            throw e;
+        }
+        return decoded;
+    }
+
+    private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, n);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to close stream", e);
+        }
+    }
+}
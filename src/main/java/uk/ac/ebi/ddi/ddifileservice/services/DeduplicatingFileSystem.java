@@ -0,0 +1,491 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.utils.Checksums;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Stores every distinct content once. Files of at least minSize bytes are hashed with SHA-256 as they are
+ * written, their content is stored under prefix/objects/ by hash, unless it is already there, and the file
+ * itself becomes a small pointer to the hash. Each file pointing to a content also holds a reference to it,
+ * a marker under prefix/refs/hash/, and the content is deleted along with its last reference. Smaller files
+ * are stored as they are, the pointer would cost as much as the content.
+ *
+ * Reads resolve pointers transparently: streams and files are read at once and recognized by their size and
+ * header, ranged reads and metadata check the size of the file first. Listings read the pointers among the
+ * files they return to report the size of the content. References are only serialized within this process,
+ * workers sharing a bucket must not delete a content while another one writes it.
+ */
+public class DeduplicatingFileSystem extends ForwardingFileSystem {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeduplicatingFileSystem.class);
+
+    private static final String POINTER_HEADER = "omics-dedup:1 sha256:";
+
+    // Larger than any pointer, even compressed by a decorator below this one
+    private static final int MAX_POINTER_SIZE = 512;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final String prefix;
+
+    private final long minSize;
+
+    // Layer storing files as they are written, whose metadata is looked up without decoding them
+    private final IFileSystem storage;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+
+    private final AtomicLong deduplicatedBytes = new AtomicLong();
+
+    public DeduplicatingFileSystem(IFileSystem delegate, String prefix, long minSize) {
+        super(delegate);
+        this.prefix = prefix;
+        this.minSize = minSize;
+        CompressingFileSystem compressing = unwrap(delegate, CompressingFileSystem.class);
+        this.storage = compressing != null ? compressing.getDelegate() : delegate;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Returns the number of writes whose content was already stored and wasn't uploaded again.
+     */
+    public long getDeduplicatedCount() {
+        return deduplicatedCount.get();
+    }
+
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.get();
+    }
+
+    @Override
+    public InputStream getInputStream(String filePath) throws FileNotFoundException {
+        PushbackInputStream inputStream = new PushbackInputStream(delegate.getInputStream(filePath),
+                MAX_POINTER_SIZE + 1);
+        try {
+            byte[] head = new byte[MAX_POINTER_SIZE + 1];
+            int length = 0;
+            int n;
+            while (length < head.length && (n = inputStream.read(head, length, head.length - length)) != -1) {
+                length += n;
+            }
+            Pointer pointer = Pointer.parse(head, length);
+            if (pointer != null) {
+                inputStream.close();
+                return delegate.getInputStream(getContentKey(pointer.hash));
+            }
+            inputStream.unread(head, 0, length);
+            return inputStream;
+        } catch (IOException e) {
+            closeQuietly(inputStream);
+            throw new UncheckedIOException("Unable to read " + filePath, e);
+        }
+    }
+
+    @Override
+    public CloseableFile getFile(String filePath) throws IOException {
+        CloseableFile file = delegate.getFile(filePath);
+        if (file.length() > MAX_POINTER_SIZE) {
+            return file;
+        }
+        Pointer pointer;
+        try {
+            pointer = Pointer.parse(Files.readAllBytes(file.toPath()));
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+        if (pointer == null) {
+            return file;
+        }
+        file.close();
+        return delegate.getFile(getContentKey(pointer.hash));
+    }
+
+    @Override
+    public ByteBuffer map(String filePath, long offset, int length) throws IOException {
+        return delegate.map(resolve(filePath), offset, length);
+    }
+
+    @Override
+    public byte[] readRange(String filePath, long offset, int length) throws IOException {
+        return delegate.readRange(resolve(filePath), offset, length);
+    }
+
+    @Override
+    public SeekableByteChannel open(String filePath) throws IOException {
+        return delegate.open(resolve(filePath));
+    }
+
+    @Override
+    public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        if (outputStream.size() < minSize && Pointer.parse(outputStream.toByteArray()) == null) {
+            Pointer previous = readPointer(filePath);
+            super.saveFile(outputStream, filePath);
+            release(previous, filePath);
+            return;
+        }
+        MessageDigest digest = newDigest();
+        try (OutputStream out = new DigestOutputStream(NullOutputStream.INSTANCE, digest)) {
+            outputStream.writeTo(out);
+        }
+        String hash = Checksums.toHex(digest.digest());
+        store(filePath, hash, outputStream.size(), x -> delegate.saveFile(outputStream, x));
+    }
+
+    /**
+     * Spools the content to a temporary file while hashing it, the content is stored once the stream is closed.
+     */
+    @Override
+    public OutputStream openOutputStream(String filePath) throws IOException {
+        File spooled = File.createTempFile("omics-dedup", ".tmp");
+        MessageDigest digest = newDigest();
+        OutputStream outputStream;
+        try {
+            outputStream = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(spooled), BUFFER_SIZE),
+                    digest);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spooled.toPath());
+            throw e;
+        }
+        return new FilterOutputStream(outputStream) {
+
+            private boolean closed;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    super.close();
+                    copyFile(spooled, filePath, Checksums.toHex(digest.digest()));
+                } finally {
+                    Files.deleteIfExists(spooled.toPath());
+                }
+            }
+        };
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) throws IOException {
+        // Encoded content is stored as it is, the file no longer points to its previous content
+        release(readPointer(filePath), filePath);
+        return super.openOutputStream(filePath, contentEncoding, decodedSize);
+    }
+
+    @Override
+    public void copyFile(File localFile, String destinationFile) throws IOException {
+        copyFile(localFile, destinationFile, null);
+    }
+
+    private void copyFile(File localFile, String destinationFile, String hash) throws IOException {
+        long size = localFile.length();
+        if (size < minSize && Pointer.parse(Files.readAllBytes(localFile.toPath())) == null) {
+            Pointer previous = readPointer(destinationFile);
+            super.copyFile(localFile, destinationFile);
+            release(previous, destinationFile);
+            return;
+        }
+        if (hash == null) {
+            MessageDigest digest = newDigest();
+            try (InputStream inputStream = new FileInputStream(localFile)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = inputStream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+            hash = Checksums.toHex(digest.digest());
+        }
+        store(destinationFile, hash, size, x -> delegate.copyFile(localFile, x));
+    }
+
+    /**
+     * Copies the pointer only, adding a reference to the content.
+     */
+    @Override
+    public void copyObject(String sourcePath, String destinationPath) throws IOException {
+        Pointer pointer = readPointer(sourcePath);
+        if (pointer == null) {
+            Pointer previous = readPointer(destinationPath);
+            super.copyObject(sourcePath, destinationPath);
+            release(previous, destinationPath);
+            return;
+        }
+        store(destinationPath, pointer.hash, pointer.size, x -> {
+            throw new FileNotFoundException("Content of " + sourcePath + " is missing");
+        });
+    }
+
+    @Override
+    public void copyPrefix(String sourceDir, String destDir) throws IOException {
+        try (Stream<FileEntry> files = delegate.listFiles(sourceDir)) {
+            for (FileEntry file : (Iterable<FileEntry>) files::iterator) {
+                // Keys on S3, absolute paths locally
+                String base = file.getPath().startsWith(sourceDir) ? sourceDir
+                        : Paths.get(sourceDir).toAbsolutePath().toString();
+                copyObject(file.getPath(), destDir + file.getPath().substring(base.length()));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public Stream<FileEntry> listFiles(String folderPath) {
+        return delegate.listFiles(folderPath).map(x -> {
+            if (x.getSize() > MAX_POINTER_SIZE) {
+                return x;
+            }
+            try {
+                Pointer pointer = readPointer(x);
+                return pointer == null ? x : new FileEntry(x.getPath(), pointer.size, x.getLastModified(), null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    @Override
+    public void deleteFile(String filePath) {
+        Pointer pointer;
+        try {
+            pointer = readPointer(filePath);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        super.deleteFile(filePath);
+        release(pointer, filePath);
+    }
+
+    @Override
+    public DeleteResult deleteFiles(Collection<String> filePaths) {
+        Map<String, Pointer> pointers = new HashMap<>();
+        for (String filePath : filePaths) {
+            try {
+                Pointer pointer = readPointer(filePath);
+                if (pointer != null) {
+                    pointers.put(filePath, pointer);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to read {}, its content is not released", filePath, e);
+            }
+        }
+        DeleteResult result = super.deleteFiles(filePaths);
+        pointers.forEach((filePath, pointer) -> {
+            if (!result.getFailures().containsKey(filePath)) {
+                release(pointer, filePath);
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public FileEntry getMetadata(String filePath) throws IOException {
+        FileEntry entry = super.getMetadata(filePath);
+        Pointer pointer = readPointer(entry);
+        return pointer == null ? entry : new FileEntry(filePath, pointer.size, entry.getLastModified(), null);
+    }
+
+    @Override
+    public void cleanDirectory(String dirPath) {
+        Map<String, Pointer> pointers = new HashMap<>();
+        try (Stream<FileEntry> files = delegate.listFiles(dirPath)) {
+            files.forEach(x -> {
+                try {
+                    Pointer pointer = readPointer(x);
+                    if (pointer != null) {
+                        pointers.put(x.getPath(), pointer);
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to read {}, its content is not released", x.getPath(), e);
+                }
+            });
+        }
+        // Released once the pointers are gone, a content is never deleted while a file still points to it
+        super.cleanDirectory(dirPath);
+        pointers.forEach((filePath, pointer) -> release(pointer, filePath));
+    }
+
+    private interface Upload {
+        void to(String contentKey) throws IOException;
+    }
+
+    private void store(String filePath, String hash, long size, Upload upload) throws IOException {
+        Pointer previous = readPointer(filePath);
+        String contentKey = getContentKey(hash);
+        synchronized (getLock(hash)) {
+            // Referenced first, so that the content is never left unreferenced
+            ConvertibleOutputStream reference = new ConvertibleOutputStream();
+            reference.write(filePath.getBytes(StandardCharsets.UTF_8));
+            delegate.saveFile(reference, getReferenceKey(hash, filePath));
+            if (delegate.isFile(contentKey)) {
+                deduplicatedCount.incrementAndGet();
+                deduplicatedBytes.addAndGet(size);
+            } else {
+                upload.to(contentKey);
+            }
+        }
+        ConvertibleOutputStream pointer = new ConvertibleOutputStream();
+        pointer.write(new Pointer(hash, size).toBytes());
+        delegate.saveFile(pointer, filePath);
+        if (previous != null && !previous.hash.equals(hash)) {
+            release(previous, filePath);
+        }
+    }
+
+    // Drops the reference of the file to the content, and the content along with its last reference
+    private void release(Pointer pointer, String filePath) {
+        if (pointer == null) {
+            return;
+        }
+        synchronized (getLock(pointer.hash)) {
+            delegate.deleteFile(getReferenceKey(pointer.hash, filePath));
+            if (delegate.listFilesFromFolder(getReferencesFolder(pointer.hash)).isEmpty()) {
+                delegate.deleteFile(getContentKey(pointer.hash));
+            }
+        }
+    }
+
+    private String resolve(String filePath) throws IOException {
+        Pointer pointer = readPointer(filePath);
+        return pointer == null ? filePath : getContentKey(pointer.hash);
+    }
+
+    // The stored size is enough to tell pointers apart, the decoded size of compressed files may cost a download
+    private Pointer readPointer(String filePath) throws IOException {
+        return readPointer(storage.getMetadata(filePath));
+    }
+
+    // Only files small enough to be pointers are read, using the size the entry was listed or looked up with
+    private Pointer readPointer(FileEntry entry) throws IOException {
+        if (entry == null || entry.getSize() > MAX_POINTER_SIZE) {
+            return null;
+        }
+        try (InputStream inputStream = delegate.getInputStream(entry.getPath())) {
+            byte[] data = new byte[MAX_POINTER_SIZE + 1];
+            int length = 0;
+            int n;
+            while (length < data.length && (n = inputStream.read(data, length, data.length - length)) != -1) {
+                length += n;
+            }
+            return Pointer.parse(data, length);
+        } catch (FileNotFoundException e) {
+            // Deleted since its metadata was read
+            return null;
+        }
+    }
+
+    private String getContentKey(String hash) {
+        return prefix + "/objects/" + hash.substring(0, 2) + "/" + hash;
+    }
+
+    private String getReferencesFolder(String hash) {
+        return prefix + "/refs/" + hash;
+    }
+
+    private String getReferenceKey(String hash, String filePath) {
+        byte[] digest = newDigest().digest(filePath.getBytes(StandardCharsets.UTF_8));
+        return getReferencesFolder(hash) + "/" + Checksums.toHex(digest);
+    }
+
+    private Object getLock(String hash) {
+        return locks[Math.floorMod(hash.hashCode(), locks.length)];
+    }
+
+    private static MessageDigest newDigest() {
+        return Checksums.newDigest("SHA-256");
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close stream", e);
+        }
+    }
+
+    private static class Pointer {
+
+        private final String hash;
+
+        private final long size;
+
+        private Pointer(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+
+        private byte[] toBytes() {
+            return (POINTER_HEADER + hash + " " + size + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static Pointer parse(byte[] data) {
+            return parse(data, data.length);
+        }
+
+        // Returns null unless the data is a pointer
+        private static Pointer parse(byte[] data, int length) {
+            if (length > MAX_POINTER_SIZE || length < POINTER_HEADER.length()) {
+                return null;
+            }
+            String text = new String(data, 0, length, StandardCharsets.UTF_8);
+            if (!text.startsWith(POINTER_HEADER) || !text.endsWith("\n")) {
+                return null;
+            }
+            String[] fields = text.substring(POINTER_HEADER.length(), text.length() - 1).split(" ");
+            if (fields.length != 2 || fields[0].length() != 64) {
+                return null;
+            }
+            try {
+                return new Pointer(fields[0], Long.parseLong(fields[1]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+
+        private static final NullOutputStream INSTANCE = new NullOutputStream();
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncOptions;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncResult;
+import uk.ac.ebi.ddi.ddifileservice.utils.DirectorySynchronizer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Base class for file systems decorating another one, forwarding every call to the delegate.
+ */
+public abstract class ForwardingFileSystem implements IFileSystem {
+
+    protected final IFileSystem delegate;
+
+    protected ForwardingFileSystem(IFileSystem delegate) {
+        this.delegate = delegate;
+    }
+
+    public IFileSystem getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Returns the file system of the given type among the given one and the ones it decorates, or null.
+     */
+    public static <T extends IFileSystem> T unwrap(IFileSystem fileSystem, Class<T> type) {
+        while (!type.isInstance(fileSystem)) {
+            if (!(fileSystem instanceof ForwardingFileSystem)) {
+                return null;
+            }
+            fileSystem = ((ForwardingFileSystem) fileSystem).delegate;
+        }
+        return type.cast(fileSystem);
+    }
+
+    @Override
+    public InputStream getInputStream(String filePath) throws FileNotFoundException {
+        return delegate.getInputStream(filePath);
+    }
+
+    @Override
+    public CloseableFile getFile(String filePath) throws IOException {
+        return delegate.getFile(filePath);
+    }
+
+    @Override
+    public ByteBuffer map(String filePath, long offset, int length) throws IOException {
+        return delegate.map(filePath, offset, length);
+    }
+
+    @Override
+    public byte[] readRange(String filePath, long offset, int length) throws IOException {
+        return delegate.readRange(filePath, offset, length);
+    }
+
+    @Override
+    public SeekableByteChannel open(String filePath) throws IOException {
+        return delegate.open(filePath);
+    }
+
+    @Override
+    public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        delegate.saveFile(outputStream, filePath);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath) throws IOException {
+        return delegate.openOutputStream(filePath);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) throws IOException {
+        return delegate.openOutputStream(filePath, contentEncoding, decodedSize);
+    }
+
+    @Override
+    public void copyFile(File localFile, String destinationFile) throws IOException {
+        delegate.copyFile(localFile, destinationFile);
+    }
+
+    @Override
+    public void copyObject(String sourcePath, String destinationPath) throws IOException {
+        delegate.copyObject(sourcePath, destinationPath);
+    }
+
+    @Override
+    public void copyPrefix(String sourceDir, String destDir) throws IOException {
+        delegate.copyPrefix(sourceDir, destDir);
+    }
+
+    @Override
+    public List<String> listFilesFromFolder(String folderPath) {
+        return delegate.listFilesFromFolder(folderPath);
+    }
+
+    @Override
+    public Stream<FileEntry> listFiles(String folderPath) {
+        return delegate.listFiles(folderPath);
+    }
+
+    @Override
+    public void deleteFile(String filePath) {
+        delegate.deleteFile(filePath);
+    }
+
+    @Override
+    public DeleteResult deleteFiles(Collection<String> filePaths) {
+        return delegate.deleteFiles(filePaths);
+    }
+
+    @Override
+    public boolean isFile(String filePath) {
+        return delegate.isFile(filePath);
+    }
+
+    @Override
+    public Map<String, Boolean> existAll(Collection<String> filePaths) {
+        return delegate.existAll(filePaths);
+    }
+
+    @Override
+    public FileEntry getMetadata(String filePath) throws IOException {
+        return delegate.getMetadata(filePath);
+    }
+
+    @Override
+    public void cleanDirectory(String dirPath) {
+        delegate.cleanDirectory(dirPath);
+    }
+
+    @Override
+    public void copyDirectory(String sourceDir, String destDir) {
+        delegate.copyDirectory(sourceDir, destDir);
+    }
+
+    @Override
+    public SyncResult syncDirectory(String sourceDir, String destDir, SyncOptions options) throws IOException {
+        // Synchronized through every decorator, with the part sizes of the S3 uploads they end up as
+        return new DirectorySynchronizer(this, getUploadPartSizes(delegate)).sync(sourceDir, destDir, options);
+    }
+
+    private static Collection<Long> getUploadPartSizes(IFileSystem fileSystem) {
+        TieredFileSystem tiered = unwrap(fileSystem, TieredFileSystem.class);
+        if (tiered != null) {
+            return tiered.getUploadPartSizes();
+        }
+        S3FileSystem s3 = unwrap(fileSystem, S3FileSystem.class);
+        return s3 == null ? Collections.emptySet() : s3.getUploadPartSizes();
+    }
+}
@@ -2,12 +2,22 @@ package uk.ac.ebi.ddi.ddifileservice.services;
 
 import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
 import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncOptions;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncResult;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 public interface IFileSystem {
 
@@ -15,17 +25,86 @@ public interface IFileSystem {
 
     CloseableFile getFile(String filePath) throws IOException;
 
+    /**
+     * Reads up to length bytes of the file from the given offset, for random access to parts of large files
+     * without fetching the rest. The buffer is read only, and holds fewer bytes if the file ends first.
+     */
+    ByteBuffer map(String filePath, long offset, int length) throws IOException;
+
+    /**
+     * Reads up to length bytes of the file from the given offset, fewer if the file ends first.
+     */
+    byte[] readRange(String filePath, long offset, int length) throws IOException;
+
+    /**
+     * Opens a read only channel over the file, fetching only the parts which are read.
+     */
+    SeekableByteChannel open(String filePath) throws IOException;
+
     void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException;
 
+    /**
+     * Opens a stream writing directly to the given path, without buffering the whole content in memory.
+     * The file is only guaranteed to be stored once the stream has been closed successfully.
+     */
+    OutputStream openOutputStream(String filePath) throws IOException;
+
+    /**
+     * Same as openOutputStream for data already encoded, e.g. compressed, storing the encoding with the file
+     * so that readers know how to decode it. Only S3 objects can hold an encoding, as their Content-Encoding.
+     * The decoded size, when known up front, is stored along with it, for getMetadata not to decode the file.
+     *
+     * @param decodedSize size of the data once decoded, or -1 if it isn't known
+     */
+    OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) throws IOException;
+
     void copyFile(File localFile, String destinationFile) throws IOException;
 
+    /**
+     * Copies a file to another path of the same file system, without the content going through the JVM.
+     */
+    void copyObject(String sourcePath, String destinationPath) throws IOException;
+
+    /**
+     * Copies every file under the source folder to the same relative path under the destination folder.
+     */
+    void copyPrefix(String sourceDir, String destDir) throws IOException;
+
     List<String> listFilesFromFolder(String folderPath);
 
+    /**
+     * Lazily lists the files under the given folder, fetching them as the stream is consumed.
+     * The stream holds resources and must be closed.
+     */
+    Stream<FileEntry> listFiles(String folderPath);
+
     void deleteFile(String filePath);
 
+    /**
+     * Deletes the given files in bulk, reporting the files which couldn't be deleted instead of failing.
+     */
+    DeleteResult deleteFiles(Collection<String> filePaths);
+
     boolean isFile(String filePath);
 
+    /**
+     * Checks the existence of many files at once, returning whether each of them is a file.
+     */
+    Map<String, Boolean> existAll(Collection<String> filePaths);
+
+    /**
+     * Returns the size, last modification time and, on S3, the ETag of the file, or null if it doesn't exist.
+     */
+    FileEntry getMetadata(String filePath) throws IOException;
+
     void cleanDirectory(String dirPath);
 
     void copyDirectory(String sourceDir, String destDir);
+
+    /**
+     * Copies the files of the local directory which are missing from destDir or differ from their copy,
+     * comparing the sizes, modification times and content of both sides. With SyncOptions.delete, files of
+     * destDir which are not in the directory are deleted. A dry run only reports what would be done.
+     */
+    SyncResult syncDirectory(String sourceDir, String destDir, SyncOptions options) throws IOException;
 }
@@ -0,0 +1,531 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncOptions;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncResult;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Records the metrics of every operation of the delegate, tagged by provider and operation:
+ * file.operations timers, split by outcome, file.operations.active gauges of the operations in progress,
+ * and file.bytes counters of the data read and written. Meters are all created upfront, so that the
+ * calls only update them; streams count bytes per read or write call and publish them in batches.
+ */
+public class InstrumentedFileSystem extends ForwardingFileSystem {
+
+    // Bytes read or written through a stream are added to the counter once they reach this amount
+    private static final int BYTES_FLUSH_THRESHOLD = 1024 * 1024;
+
+    private final MeterRegistry registry;
+
+    private final String provider;
+
+    private final boolean histograms;
+
+    private final Counter bytesRead;
+
+    private final Counter bytesWritten;
+
+    private final OperationMetrics getInputStream;
+
+    private final OperationMetrics getFile;
+
+    private final OperationMetrics map;
+
+    private final OperationMetrics readRange;
+
+    private final OperationMetrics open;
+
+    private final OperationMetrics saveFile;
+
+    private final OperationMetrics openOutputStream;
+
+    private final OperationMetrics copyFile;
+
+    private final OperationMetrics copyObject;
+
+    private final OperationMetrics copyPrefix;
+
+    private final OperationMetrics listFilesFromFolder;
+
+    private final OperationMetrics listFiles;
+
+    private final OperationMetrics deleteFile;
+
+    private final OperationMetrics deleteFiles;
+
+    private final OperationMetrics isFile;
+
+    private final OperationMetrics existAll;
+
+    private final OperationMetrics getMetadata;
+
+    private final OperationMetrics cleanDirectory;
+
+    private final OperationMetrics copyDirectory;
+
+    private final OperationMetrics syncDirectory;
+
+    public InstrumentedFileSystem(IFileSystem delegate, MeterRegistry registry, String provider, boolean histograms) {
+        super(delegate);
+        this.registry = registry;
+        this.provider = provider;
+        this.histograms = histograms;
+        bytesRead = bytes("read");
+        bytesWritten = bytes("write");
+        getInputStream = new OperationMetrics("getInputStream");
+        getFile = new OperationMetrics("getFile");
+        map = new OperationMetrics("map");
+        readRange = new OperationMetrics("readRange");
+        open = new OperationMetrics("open");
+        saveFile = new OperationMetrics("saveFile");
+        openOutputStream = new OperationMetrics("openOutputStream");
+        copyFile = new OperationMetrics("copyFile");
+        copyObject = new OperationMetrics("copyObject");
+        copyPrefix = new OperationMetrics("copyPrefix");
+        listFilesFromFolder = new OperationMetrics("listFilesFromFolder");
+        listFiles = new OperationMetrics("listFiles");
+        deleteFile = new OperationMetrics("deleteFile");
+        deleteFiles = new OperationMetrics("deleteFiles");
+        isFile = new OperationMetrics("isFile");
+        existAll = new OperationMetrics("existAll");
+        getMetadata = new OperationMetrics("getMetadata");
+        cleanDirectory = new OperationMetrics("cleanDirectory");
+        copyDirectory = new OperationMetrics("copyDirectory");
+        syncDirectory = new OperationMetrics("syncDirectory");
+    }
+
+    /**
+     * Times the opening of the stream, the bytes are counted as they are read.
+     */
+    @Override
+    public InputStream getInputStream(String filePath) throws FileNotFoundException {
+        return time(getInputStream, () -> new CountingInputStream(delegate.getInputStream(filePath), bytesRead));
+    }
+
+    @Override
+    public CloseableFile getFile(String filePath) throws IOException {
+        return time(getFile, () -> {
+            CloseableFile file = delegate.getFile(filePath);
+            bytesRead.increment(file.length());
+            return file;
+        });
+    }
+
+    @Override
+    public ByteBuffer map(String filePath, long offset, int length) throws IOException {
+        return time(map, () -> {
+            ByteBuffer buffer = delegate.map(filePath, offset, length);
+            bytesRead.increment(buffer.remaining());
+            return buffer;
+        });
+    }
+
+    @Override
+    public byte[] readRange(String filePath, long offset, int length) throws IOException {
+        return time(readRange, () -> {
+            byte[] data = delegate.readRange(filePath, offset, length);
+            bytesRead.increment(data.length);
+            return data;
+        });
+    }
+
+    /**
+     * Times the opening of the channel, the bytes are counted as they are read.
+     */
+    @Override
+    public SeekableByteChannel open(String filePath) throws IOException {
+        return time(open, () -> new CountingChannel(delegate.open(filePath), bytesRead));
+    }
+
+    @Override
+    public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        time(saveFile, () -> {
+            delegate.saveFile(outputStream, filePath);
+            bytesWritten.increment(outputStream.getSize());
+            return null;
+        });
+    }
+
+    /**
+     * Times the opening of the stream, the bytes are counted as they are written.
+     */
+    @Override
+    public OutputStream openOutputStream(String filePath) throws IOException {
+        return time(openOutputStream, () -> new CountingOutputStream(delegate.openOutputStream(filePath),
+                bytesWritten));
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) throws IOException {
+        return time(openOutputStream, () -> new CountingOutputStream(
+                delegate.openOutputStream(filePath, contentEncoding, decodedSize), bytesWritten));
+    }
+
+    @Override
+    public void copyFile(File localFile, String destinationFile) throws IOException {
+        time(copyFile, () -> {
+            delegate.copyFile(localFile, destinationFile);
+            bytesWritten.increment(localFile.length());
+            return null;
+        });
+    }
+
+    @Override
+    public void copyObject(String sourcePath, String destinationPath) throws IOException {
+        time(copyObject, () -> {
+            delegate.copyObject(sourcePath, destinationPath);
+            return null;
+        });
+    }
+
+    @Override
+    public void copyPrefix(String sourceDir, String destDir) throws IOException {
+        time(copyPrefix, () -> {
+            delegate.copyPrefix(sourceDir, destDir);
+            return null;
+        });
+    }
+
+    @Override
+    public List<String> listFilesFromFolder(String folderPath) {
+        return time(listFilesFromFolder, () -> delegate.listFilesFromFolder(folderPath));
+    }
+
+    /**
+     * Times the listing until it is consumed, fails or the stream is closed, whichever comes first, as it is
+     * consumed lazily. Only the call counts as active, a stream which is never closed can't leave it raised.
+     */
+    @Override
+    public Stream<FileEntry> listFiles(String folderPath) {
+        long start = System.nanoTime();
+        Stream<FileEntry> files = time(listFiles, () -> delegate.listFiles(folderPath), x -> true, false);
+        AtomicBoolean recorded = new AtomicBoolean();
+        Consumer<Boolean> record = succeeded -> {
+            if (recorded.compareAndSet(false, true)) {
+                listFiles.record(start, succeeded);
+            }
+        };
+        Spliterator<FileEntry> spliterator = files.spliterator();
+        Spliterator<FileEntry> timed = new Spliterators.AbstractSpliterator<FileEntry>(
+                spliterator.estimateSize(), spliterator.characteristics()) {
+            @Override
+            public boolean tryAdvance(Consumer<? super FileEntry> action) {
+                boolean advanced;
+                try {
+                    advanced = spliterator.tryAdvance(action);
+                } catch (RuntimeException | Error e) {
+                    record.accept(false);
+                    throw e;
+                }
+                if (!advanced) {
+                    record.accept(true);
+                }
+                return advanced;
+            }
+        };
+        return StreamSupport.stream(timed, files.isParallel()).onClose(() -> {
+            try {
+                files.close();
+            } finally {
+                record.accept(true);
+            }
+        });
+    }
+
+    @Override
+    public void deleteFile(String filePath) {
+        time(deleteFile, () -> {
+            delegate.deleteFile(filePath);
+            return null;
+        });
+    }
+
+    @Override
+    public DeleteResult deleteFiles(Collection<String> filePaths) {
+        return time(deleteFiles, () -> delegate.deleteFiles(filePaths), DeleteResult::isSuccessful, true);
+    }
+
+    @Override
+    public boolean isFile(String filePath) {
+        return time(isFile, () -> delegate.isFile(filePath));
+    }
+
+    @Override
+    public Map<String, Boolean> existAll(Collection<String> filePaths) {
+        return time(existAll, () -> delegate.existAll(filePaths));
+    }
+
+    @Override
+    public FileEntry getMetadata(String filePath) throws IOException {
+        return time(getMetadata, () -> delegate.getMetadata(filePath));
+    }
+
+    @Override
+    public void cleanDirectory(String dirPath) {
+        time(cleanDirectory, () -> {
+            delegate.cleanDirectory(dirPath);
+            return null;
+        });
+    }
+
+    @Override
+    public void copyDirectory(String sourceDir, String destDir) {
+        time(copyDirectory, () -> {
+            delegate.copyDirectory(sourceDir, destDir);
+            return null;
+        });
+    }
+
+    @Override
+    public SyncResult syncDirectory(String sourceDir, String destDir, SyncOptions options) throws IOException {
+        return time(syncDirectory, () -> delegate.syncDirectory(sourceDir, destDir, options));
+    }
+
+    private interface Operation<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    private static <T, E extends Exception> T time(OperationMetrics metrics, Operation<T, E> operation) throws E {
+        return time(metrics, operation, x -> true, true);
+    }
+
+    // Records the call as active while it runs, and its duration unless the caller records it later
+    private static <T, E extends Exception> T time(OperationMetrics metrics, Operation<T, E> operation,
+                                                   Predicate<T> succeeded, boolean record) throws E {
+        long start = metrics.start();
+        T result;
+        try {
+            result = operation.call();
+        } catch (Exception | Error e) {
+            metrics.stop(start, false, true);
+            throw e;
+        }
+        metrics.stop(start, succeeded.test(result), record);
+        return result;
+    }
+
+    private Counter bytes(String direction) {
+        return Counter.builder("file.bytes")
+                .tags("provider", provider, "direction", direction)
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    private class OperationMetrics {
+        private final Timer succeeded;
+        private final Timer failed;
+        private final AtomicInteger active;
+
+        private OperationMetrics(String operation) {
+            succeeded = timer(operation, "success");
+            failed = timer(operation, "error");
+            active = registry.gauge("file.operations.active",
+                    Tags.of("provider", provider, "operation", operation), new AtomicInteger());
+        }
+
+        private Timer timer(String operation, String outcome) {
+            return Timer.builder("file.operations")
+                    .tags("provider", provider, "operation", operation, "outcome", outcome)
+                    .publishPercentileHistogram(histograms)
+                    .register(registry);
+        }
+
+        private long start() {
+            active.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        private void stop(long start, boolean succeeded, boolean record) {
+            active.decrementAndGet();
+            if (record) {
+                record(start, succeeded);
+            }
+        }
+
+        private void record(long start, boolean succeeded) {
+            (succeeded ? this.succeeded : failed).record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final Counter counter;
+        private long pending;
+
+        private CountingInputStream(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            super.close();
+        }
+
+        private void count(int n) {
+            pending += n;
+            if (pending >= BYTES_FLUSH_THRESHOLD) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (pending > 0) {
+                counter.increment(pending);
+                pending = 0;
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final Counter counter;
+        private long pending;
+
+        private CountingOutputStream(OutputStream out, Counter counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count(1);
+        }
+
+        // FilterOutputStream writes arrays byte by byte
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (pending > 0) {
+                    counter.increment(pending);
+                    pending = 0;
+                }
+            }
+        }
+
+        private void count(int n) {
+            pending += n;
+            if (pending >= BYTES_FLUSH_THRESHOLD) {
+                counter.increment(pending);
+                pending = 0;
+            }
+        }
+    }
+
+    private static class CountingChannel implements SeekableByteChannel {
+        private final SeekableByteChannel channel;
+        private final Counter counter;
+        private long pending;
+
+        private CountingChannel(SeekableByteChannel channel, Counter counter) {
+            this.channel = channel;
+            this.counter = counter;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = channel.read(dst);
+            if (n > 0) {
+                pending += n;
+                if (pending >= BYTES_FLUSH_THRESHOLD) {
+                    counter.increment(pending);
+                    pending = 0;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                if (pending > 0) {
+                    counter.increment(pending);
+                    pending = 0;
+                }
+            }
+        }
+    }
+}
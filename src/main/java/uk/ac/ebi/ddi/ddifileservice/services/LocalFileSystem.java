@@ -2,33 +2,78 @@ package uk.ac.ebi.ddi.ddifileservice.services;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Component;
-import org.springframework.util.FileCopyUtils;
+import uk.ac.ebi.ddi.ddifileservice.configuration.FileProperties;
 import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
 import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.type.PooledOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncOptions;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncResult;
+import uk.ac.ebi.ddi.ddifileservice.utils.DirectorySynchronizer;
+import uk.ac.ebi.ddi.ddifileservice.utils.VirtualThreads;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static java.nio.file.StandardOpenOption.*;
+
 @Component
-@ConditionalOnProperty(
-        value = "file.provider",
-        havingValue = "local"
-)
+@ConditionalOnExpression("'${file.provider:s3}' == 'local' or '${file.provider:s3}' == 'tiered'")
 public class LocalFileSystem implements IFileSystem {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(LocalFileSystem.class);
 
+    @Autowired
+    private FileProperties fileProperties;
+
+    // Runs the per file calls of bulk operations, bounded by the virtual thread concurrency
+    private ExecutorService executor;
+
+    @PostConstruct
+    private void initialize() {
+        executor = VirtualThreads.newExecutor("local-file-", fileProperties.isVirtualThreads());
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        executor.shutdownNow();
+    }
+
     @Override
     public InputStream getInputStream(String filePath) throws FileNotFoundException {
-        return new FileInputStream(new File(filePath));
+        try {
+            return Files.newInputStream(Paths.get(filePath));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(filePath);
+        } catch (IOException e) {
+            FileNotFoundException notFound = new FileNotFoundException(filePath + ": " + e.getMessage());
+            notFound.initCause(e);
+            throw notFound;
+        }
     }
 
     @Override
@@ -40,28 +85,162 @@ public class LocalFileSystem implements IFileSystem {
         };
     }
 
+    /**
+     * Maps the range of the file into memory, the mapping stays valid until the buffer is garbage collected.
+     */
+    @Override
+    public ByteBuffer map(String filePath, long offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), READ)) {
+            long size = channel.size();
+            if (offset >= size) {
+                return ByteBuffer.allocate(0).asReadOnlyBuffer();
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(length, size - offset));
+        }
+    }
+
+    @Override
+    public byte[] readRange(String filePath, long offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) == -1) {
+                    // Truncated since its size was read
+                    return Arrays.copyOf(buffer.array(), buffer.position());
+                }
+            }
+            return buffer.array();
+        }
+    }
+
+    @Override
+    public SeekableByteChannel open(String filePath) throws IOException {
+        return FileChannel.open(Paths.get(filePath), READ);
+    }
+
     @Override
     public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        createParentDirectories(Paths.get(filePath));
+        if (outputStream instanceof PooledOutputStream) {
+            try (FileChannel channel = FileChannel.open(Paths.get(filePath), CREATE, TRUNCATE_EXISTING, WRITE)) {
+                ((PooledOutputStream) outputStream).writeTo(channel);
+            }
+            return;
+        }
         try (OutputStream os = new FileOutputStream(filePath)) {
             outputStream.writeTo(os);
         }
     }
 
+    @Override
+    public OutputStream openOutputStream(String filePath) throws IOException {
+        Path path = Paths.get(filePath);
+        createParentDirectories(path);
+        return Channels.newOutputStream(FileChannel.open(path, CREATE, TRUNCATE_EXISTING, WRITE));
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) throws IOException {
+        if (contentEncoding != null) {
+            throw new IOException("Local files can't hold the content encoding " + contentEncoding
+                    + " of " + filePath);
+        }
+        return openOutputStream(filePath);
+    }
+
     @Override
     public void copyFile(File localFile, String destinationFile) throws IOException {
-        File dest = new File(destinationFile);
-        FileCopyUtils.copy(localFile, dest);
+        Path destination = Paths.get(destinationFile);
+        createParentDirectories(destination);
+        transfer(localFile.toPath(), destination);
+    }
+
+    // Keys imply their folders on S3, files are written the same way locally
+    private static void createParentDirectories(Path path) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+    }
+
+    // Lets the kernel copy the data, with sendfile or copy_file_range where available
+    private static void transfer(Path source, Path destination) throws IOException {
+        try (FileChannel in = FileChannel.open(source, READ);
+             FileChannel out = FileChannel.open(destination, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0) {
+                    // Truncated since its size was read
+                    break;
+                }
+                position += n;
+            }
+        }
+    }
+
+    @Override
+    public void copyObject(String sourcePath, String destinationPath) throws IOException {
+        Path destination = Paths.get(destinationPath);
+        createParentDirectories(destination);
+        if (fileProperties.isHardLinkCopies()) {
+            Files.deleteIfExists(destination);
+            Files.createLink(destination, Paths.get(sourcePath));
+        } else {
+            Files.copy(Paths.get(sourcePath), destination, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void copyPrefix(String sourceDir, String destDir) throws IOException {
+        Path source = Paths.get(sourceDir).toAbsolutePath();
+        Path destination = Paths.get(destDir);
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        try (Stream<FileEntry> files = listFiles(sourceDir)) {
+            forEachConcurrently(files.iterator(), x -> {
+                Path relative = source.relativize(Paths.get(x.getPath()));
+                try {
+                    copyObject(x.getPath(), destination.resolve(relative).toString());
+                } catch (IOException | RuntimeException e) {
+                    failures.add(x.getPath() + ": " + e);
+                }
+            });
+        }
+        if (!failures.isEmpty()) {
+            throw new IOException("Unable to copy " + failures.size() + " files from " + sourceDir
+                    + " to " + destDir + ": " + failures);
+        }
     }
 
     @Override
     public List<String> listFilesFromFolder(String folderPath) {
-        try (Stream<Path> walk = Files.walk(Paths.get(folderPath))) {
+        try (Stream<FileEntry> files = listFiles(folderPath)) {
+            return files.map(FileEntry::getPath).collect(Collectors.toList());
+        }
+    }
 
-            return walk.filter(Files::isRegularFile)
-                    .map(x -> x.toAbsolutePath().toString()).collect(Collectors.toList());
+    @Override
+    public Stream<FileEntry> listFiles(String folderPath) {
+        Stream<Path> walk;
+        try {
+            walk = Files.walk(Paths.get(folderPath));
+        } catch (IOException e) {
+            return Stream.empty();
+        }
+        return walk.map(this::toFileEntry).filter(Objects::nonNull);
+    }
 
+    private FileEntry toFileEntry(Path path) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
+            }
+            return new FileEntry(path.toAbsolutePath().toString(), attributes.size(),
+                    attributes.lastModifiedTime().toMillis(), null);
         } catch (IOException e) {
-            return new ArrayList<>();
+            // Deleted since the directory was read
+            return null;
         }
     }
 
@@ -75,49 +254,139 @@ public class LocalFileSystem implements IFileSystem {
         }
     }
 
+    @Override
+    public DeleteResult deleteFiles(Collection<String> filePaths) {
+        DeleteResult result = new DeleteResult();
+        forEachConcurrently(filePaths.iterator(), filePath -> {
+            try {
+                Files.deleteIfExists(Paths.get(filePath));
+                result.addDeleted(1);
+            } catch (IOException | RuntimeException e) {
+                result.addFailure(filePath, e.toString());
+            }
+        });
+        return result;
+    }
+
     @Override
     public boolean isFile(String filePath) {
         return new File(filePath).isFile();
     }
 
     @Override
-    public void cleanDirectory(String dirPath) {
-        File inputDirectory = new File(dirPath);
-        if (inputDirectory.isDirectory()) {
-            File[] files = inputDirectory.listFiles();
-            if (files == null) {
-                return;
-            }
-            for (File file : files) {
-                deleteFile(file.getAbsolutePath());
+    public Map<String, Boolean> existAll(Collection<String> filePaths) {
+        Map<String, Boolean> result = new ConcurrentHashMap<>();
+        forEachConcurrently(new LinkedHashSet<>(filePaths).iterator(), x -> result.put(x, isFile(x)));
+        return result;
+    }
+
+    @Override
+    public FileEntry getMetadata(String filePath) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
+            if (!attributes.isRegularFile()) {
+                return null;
             }
+            return new FileEntry(filePath, attributes.size(), attributes.lastModifiedTime().toMillis(), null);
+        } catch (NoSuchFileException e) {
+            return null;
         }
     }
 
     @Override
-    public void copyDirectory(String sourceDir, String destDir) {
-        try
-        {
-            File sourceLocation = new File(sourceDir);
-            File targetLocation = new File(destDir);
+    public void cleanDirectory(String dirPath) {
+        Path root = Paths.get(dirPath);
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        List<Path> children;
+        try (Stream<Path> walk = Files.walk(root)) {
+            children = walk.filter(x -> !x.equals(root)).collect(Collectors.toList());
+        } catch (IOException e) {
+            LOGGER.error("Exception occurred when trying to list directory {}, ", dirPath, e);
+            return;
+        }
+        DeleteResult result = deleteFiles(children.stream()
+                .filter(x -> !Files.isDirectory(x)).map(Path::toString).collect(Collectors.toList()));
+        if (!result.isSuccessful()) {
+            LOGGER.error("Unable to delete {} files from {}: {}", result.getFailures().size(), dirPath,
+                    result.getFailures());
+        }
+        // Sub directories, deepest first now that they are empty
+        children.stream().filter(Files::isDirectory)
+                .sorted(Comparator.comparing(Path::getNameCount).reversed())
+                .forEach(x -> deleteFile(x.toString()));
+    }
 
-            if (sourceLocation.isFile()) {
-                copyFile(sourceLocation, destDir);
+    @Override
+    public void copyDirectory(String sourceDir, String destDir) {
+        Path source = Paths.get(sourceDir);
+        Path destination = Paths.get(destDir);
+        try {
+            if (Files.isRegularFile(source)) {
+                copyFile(source.toFile(), destDir);
                 return;
             }
-            if (!targetLocation.exists()) {
-                targetLocation.mkdirs();
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> walk = Files.walk(source)) {
+                for (Path path : (Iterable<Path>) walk::iterator) {
+                    if (Files.isDirectory(path)) {
+                        Files.createDirectories(destination.resolve(source.relativize(path).toString()));
+                    } else {
+                        files.add(path);
+                    }
+                }
             }
-
-            String[] children = sourceLocation.list();
-            for (int i = 0; i < children.length; i++) {
-                String sourcePath = new File(sourceDir, children[i]).getAbsolutePath();
-                String destPath = new File(destDir, children[i]).getPath();
-                copyDirectory(sourcePath, destPath);
+            // Directories exist by now, files are copied in parallel
+            List<String> failures = Collections.synchronizedList(new ArrayList<>());
+            forEachConcurrently(files.iterator(), x -> {
+                try {
+                    transfer(x, destination.resolve(source.relativize(x).toString()));
+                } catch (IOException | RuntimeException e) {
+                    failures.add(x + ": " + e);
+                }
+            });
+            if (!failures.isEmpty()) {
+                LOGGER.error("Unable to copy {} of {} files from {}: {}", failures.size(), files.size(), sourceDir,
+                        failures);
             }
+        } catch (IOException | UncheckedIOException e) {
+            LOGGER.error("Exception while copying directory {} ", e.getMessage());
         }
-        catch (Exception ex) {
-            LOGGER.error("Exception while copying directory {} ", ex.getMessage());
+    }
+
+    @Override
+    public SyncResult syncDirectory(String sourceDir, String destDir, SyncOptions options) throws IOException {
+        return new DirectorySynchronizer(this).sync(sourceDir, destDir, options);
+    }
+
+    // Runs the task on every item, with at most virtual thread concurrency of them in flight, rather than on
+    // the common pool which blocking file I/O would starve
+    private <T> void forEachConcurrently(Iterator<T> items, Consumer<T> task) {
+        int concurrency = Math.max(1, fileProperties.getVirtualThreadConcurrency());
+        Semaphore inFlight = new Semaphore(concurrency);
+        try {
+            while (items.hasNext()) {
+                T item = items.next();
+                inFlight.acquire();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            task.accept(item);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    inFlight.release();
+                    throw e;
+                }
+            }
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for file operations", e);
         }
     }
 }
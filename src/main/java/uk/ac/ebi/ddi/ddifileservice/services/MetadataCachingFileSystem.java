@@ -0,0 +1,370 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the metadata of files in memory, so that repeated isFile, existAll and getMetadata calls don't
+ * reach the delegate. Files which don't exist are remembered too, for a shorter time. Every write of this
+ * service invalidates the metadata of the files it touches.
+ *
+ * A folder can be warmed up with a single listing, after which every file under it, existing or not, is
+ * answered from the listing until it expires. Least recently used files and listings are evicted once
+ * the cache holds more than maxEntries files. Callers reach warmUp through ForwardingFileSystem.unwrap.
+ */
+public class MetadataCachingFileSystem extends ForwardingFileSystem {
+
+    private final int maxEntries;
+
+    private final long ttlNanos;
+
+    private final long negativeTtlNanos;
+
+    // Guarded by this, both in access order so that the eldest entry is the least recently used
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, Listing> listings = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int listedEntries;
+
+    // Incremented by every invalidation, lookups racing with one don't store their stale result
+    private long generation;
+
+    public MetadataCachingFileSystem(IFileSystem delegate, int maxEntries, long ttl, long negativeTtl,
+                                     TimeUnit unit) {
+        super(delegate);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlNanos = unit.toNanos(ttl);
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+    }
+
+    /**
+     * Lists the folder once and answers every lookup of a file under it from the listing, until it expires
+     * or a write under the folder invalidates it.
+     *
+     * @return the number of files found
+     */
+    public int warmUp(String folderPath) {
+        String prefix = folderPath + "/";
+        Listing listing = new Listing();
+        synchronized (this) {
+            Listing previous = listings.put(prefix, listing);
+            if (previous != null) {
+                listedEntries -= previous.files.size();
+            }
+        }
+        NavigableMap<String, FileEntry> files = new TreeMap<>();
+        try (Stream<FileEntry> entries = super.listFiles(folderPath)) {
+            entries.forEach(x -> files.put(getRelativePath(x.getPath(), folderPath), x));
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                listings.remove(prefix, listing);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            // Files written while listing are marked as modified, the listing may not reflect them
+            if (listings.get(prefix) == listing) {
+                long now = System.nanoTime();
+                listing.files = files;
+                listing.expiresAt = now + ttlNanos;
+                listing.absentExpiresAt = now + Math.min(ttlNanos, negativeTtlNanos);
+                listing.complete = true;
+                listedEntries += files.size();
+                evict();
+            }
+        }
+        return files.size();
+    }
+
+    @Override
+    public boolean isFile(String filePath) {
+        synchronized (this) {
+            Entry entry = lookup(filePath);
+            if (entry != null) {
+                return entry.exists;
+            }
+        }
+        try {
+            return getMetadata(filePath) != null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Answers the files known to the cache, and checks the others all at once with the delegate.
+     */
+    @Override
+    public Map<String, Boolean> existAll(Collection<String> filePaths) {
+        Map<String, Boolean> result = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        long lookupGeneration;
+        synchronized (this) {
+            for (String filePath : filePaths) {
+                Entry entry = lookup(filePath);
+                if (entry != null) {
+                    result.put(filePath, entry.exists);
+                } else {
+                    unknown.add(filePath);
+                }
+            }
+            lookupGeneration = generation;
+        }
+        if (unknown.isEmpty()) {
+            return result;
+        }
+        Map<String, Boolean> checked = super.existAll(unknown);
+        synchronized (this) {
+            if (generation == lookupGeneration) {
+                long now = System.nanoTime();
+                // Existing files are stored without their metadata, getMetadata still fetches it
+                checked.forEach((filePath, exists) -> entries.put(filePath,
+                        new Entry(null, exists, now + (exists ? ttlNanos : negativeTtlNanos))));
+                evict();
+            }
+        }
+        result.putAll(checked);
+        return result;
+    }
+
+    @Override
+    public FileEntry getMetadata(String filePath) throws IOException {
+        long lookupGeneration;
+        synchronized (this) {
+            Entry entry = lookup(filePath);
+            if (entry != null && (entry.file != null || !entry.exists)) {
+                return entry.file;
+            }
+            lookupGeneration = generation;
+        }
+        FileEntry file = super.getMetadata(filePath);
+        synchronized (this) {
+            if (generation == lookupGeneration) {
+                long ttl = file != null ? ttlNanos : negativeTtlNanos;
+                entries.put(filePath, new Entry(file, file != null, System.nanoTime() + ttl));
+                evict();
+            }
+        }
+        return file;
+    }
+
+    @Override
+    public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        try {
+            super.saveFile(outputStream, filePath);
+        } finally {
+            invalidate(filePath);
+        }
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath) throws IOException {
+        invalidate(filePath);
+        return invalidateOnClose(super.openOutputStream(filePath), filePath);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) throws IOException {
+        invalidate(filePath);
+        return invalidateOnClose(super.openOutputStream(filePath, contentEncoding, decodedSize), filePath);
+    }
+
+    private OutputStream invalidateOnClose(OutputStream outputStream, String filePath) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // The file only exists once the stream is closed
+                    invalidate(filePath);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void copyFile(File localFile, String destinationFile) throws IOException {
+        try {
+            super.copyFile(localFile, destinationFile);
+        } finally {
+            invalidate(destinationFile);
+        }
+    }
+
+    @Override
+    public void copyObject(String sourcePath, String destinationPath) throws IOException {
+        try {
+            super.copyObject(sourcePath, destinationPath);
+        } finally {
+            invalidate(destinationPath);
+        }
+    }
+
+    @Override
+    public void copyPrefix(String sourceDir, String destDir) throws IOException {
+        try {
+            super.copyPrefix(sourceDir, destDir);
+        } finally {
+            invalidatePrefix(destDir + "/");
+        }
+    }
+
+    @Override
+    public void deleteFile(String filePath) {
+        try {
+            super.deleteFile(filePath);
+        } finally {
+            invalidate(filePath);
+        }
+    }
+
+    @Override
+    public DeleteResult deleteFiles(Collection<String> filePaths) {
+        try {
+            return super.deleteFiles(filePaths);
+        } finally {
+            filePaths.forEach(this::invalidate);
+        }
+    }
+
+    @Override
+    public void cleanDirectory(String dirPath) {
+        try {
+            super.cleanDirectory(dirPath);
+        } finally {
+            invalidatePrefix(dirPath + "/");
+        }
+    }
+
+    @Override
+    public void copyDirectory(String sourceDir, String destDir) {
+        try {
+            super.copyDirectory(sourceDir, destDir);
+        } finally {
+            invalidatePrefix(destDir + "/");
+        }
+    }
+
+    // Must be called holding the lock, returns null if the file has to be looked up
+    private Entry lookup(String filePath) {
+        long now = System.nanoTime();
+        Entry entry = entries.get(filePath);
+        if (entry != null) {
+            if (now - entry.expiresAt < 0) {
+                return entry;
+            }
+            entries.remove(filePath);
+        }
+        Iterator<Map.Entry<String, Listing>> iterator = listings.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Listing> prefixListing = iterator.next();
+            Listing listing = prefixListing.getValue();
+            if (!listing.complete || !filePath.startsWith(prefixListing.getKey())) {
+                continue;
+            }
+            if (now - listing.expiresAt >= 0) {
+                iterator.remove();
+                listedEntries -= listing.files.size();
+                continue;
+            }
+            if (!listing.modified.contains(filePath)) {
+                // Marks the listing as recently used
+                listings.get(prefixListing.getKey());
+                FileEntry file = listing.files.get(filePath.substring(prefixListing.getKey().length()));
+                if (file != null) {
+                    return new Entry(file, true, listing.expiresAt);
+                }
+                // Absent files are only trusted for the negative TTL, as when they are looked up one by one
+                if (now - listing.absentExpiresAt < 0) {
+                    return new Entry(null, false, listing.absentExpiresAt);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Keys on S3, absolute paths locally even when the folder is relative
+    private static String getRelativePath(String filePath, String folderPath) {
+        String base = filePath.startsWith(folderPath + "/") ? folderPath
+                : Paths.get(folderPath).toAbsolutePath().toString();
+        return filePath.substring(base.length() + 1);
+    }
+
+    private synchronized void invalidate(String filePath) {
+        generation++;
+        entries.remove(filePath);
+        for (Map.Entry<String, Listing> listing : listings.entrySet()) {
+            if (filePath.startsWith(listing.getKey())) {
+                listing.getValue().modified.add(filePath);
+            }
+        }
+    }
+
+    private synchronized void invalidatePrefix(String prefix) {
+        generation++;
+        entries.keySet().removeIf(x -> x.startsWith(prefix));
+        Iterator<Map.Entry<String, Listing>> iterator = listings.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Listing> listing = iterator.next();
+            if (listing.getKey().startsWith(prefix) || prefix.startsWith(listing.getKey())) {
+                iterator.remove();
+                listedEntries -= listing.getValue().files.size();
+            }
+        }
+    }
+
+    // Must be called holding the lock
+    private void evict() {
+        Iterator<Entry> entryIterator = entries.values().iterator();
+        while (entries.size() + listedEntries > maxEntries && entryIterator.hasNext()) {
+            entryIterator.next();
+            entryIterator.remove();
+        }
+        Iterator<Listing> listingIterator = listings.values().iterator();
+        while (entries.size() + listedEntries > maxEntries && listingIterator.hasNext()) {
+            Listing listing = listingIterator.next();
+            listingIterator.remove();
+            listedEntries -= listing.files.size();
+        }
+    }
+
+    private static class Entry {
+        // Null if the file doesn't exist, or if only its existence is known
+        private final FileEntry file;
+        private final boolean exists;
+        private final long expiresAt;
+
+        private Entry(FileEntry file, boolean exists, long expiresAt) {
+            this.file = file;
+            this.exists = exists;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Listing {
+        // By path relative to the folder
+        private NavigableMap<String, FileEntry> files = Collections.emptyNavigableMap();
+        private final Set<String> modified = new HashSet<>();
+        private long expiresAt;
+        private long absentExpiresAt;
+        private boolean complete;
+    }
+}
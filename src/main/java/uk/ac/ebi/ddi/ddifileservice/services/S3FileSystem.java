@@ -1,105 +1,172 @@
 package uk.ac.ebi.ddi.ddifileservice.services;
 
-import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.AWSStaticCredentialsProvider;
-import com.amazonaws.auth.BasicAWSCredentials;
-import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
-import com.amazonaws.services.s3.transfer.MultipleFileUpload;
-import com.amazonaws.services.s3.transfer.TransferManager;
-import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
-import com.amazonaws.services.s3.transfer.TransferProgress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Component;
 import uk.ac.ebi.ddi.ddifileservice.configuration.FileProperties;
 import uk.ac.ebi.ddi.ddifileservice.configuration.S3Properties;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3BatchDeleter;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3ContentVerifier;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3Copier;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3ExistenceChecker;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3ListingIterator;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3MultipartOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3PrefetchingInputStream;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3RangedDownloader;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3SeekableByteChannel;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3ShardedLister;
+import uk.ac.ebi.ddi.ddifileservice.transfer.S3VerifyingInputStream;
+import uk.ac.ebi.ddi.ddifileservice.transfer.TransferListener;
 import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
 import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.EncodedInputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncOptions;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncResult;
+import uk.ac.ebi.ddi.ddifileservice.utils.BufferPool;
+import uk.ac.ebi.ddi.ddifileservice.utils.Checksums;
+import uk.ac.ebi.ddi.ddifileservice.utils.DirectorySynchronizer;
 import uk.ac.ebi.ddi.ddifileservice.utils.FilenameUtils;
+import uk.ac.ebi.ddi.ddifileservice.utils.VirtualThreads;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @Component
-@ConditionalOnProperty(
-        value = "file.provider",
-        havingValue = "s3",
-        matchIfMissing = true
-)
+@ConditionalOnExpression("'${file.provider:s3}' == 's3' or '${file.provider:s3}' == 'tiered'")
 public class S3FileSystem implements IFileSystem {
 
-    private static final int BUFFER_SIZE = 2048;
-
+    @Autowired
     private AmazonS3 s3Client;
 
+    @Autowired
+    private S3TransferService transferService;
+
+    private ExecutorService transferExecutor;
+
+    private boolean virtualThreads;
+
+    private S3RangedDownloader downloader;
+
+    private S3BatchDeleter deleter;
+
+    private S3Copier copier;
+
+    private S3ExistenceChecker existenceChecker;
+
     @Autowired
     private S3Properties s3Properties;
 
     @Autowired
     private FileProperties fileProperties;
 
+    @Autowired
+    private BufferPool bufferPool;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(S3FileSystem.class);
 
     @PostConstruct
-    private void initializeAmazon() {
-        if (!fileProperties.getProvider().equals("s3")) {
+    private void initialize() {
+        if (fileProperties.getProvider().equals("local")) {
             return;
         }
-        if (!s3Properties.isEnvAuth()) {
-            AWSCredentials credentials = new BasicAWSCredentials(
-                    s3Properties.getAccessKey(), s3Properties.getSecretKey());
-            s3Client = AmazonS3ClientBuilder
-                    .standard()
-                    .withEndpointConfiguration(new AwsClientBuilder
-                            .EndpointConfiguration(s3Properties.getEndpointUrl(), s3Properties.getRegion()))
-                    .withCredentials(new AWSStaticCredentialsProvider(credentials))
-                    .withPathStyleAccessEnabled(true)
-                    .build();
-        } else {
-            s3Client = AmazonS3ClientBuilder.standard()
-                    .withEndpointConfiguration(new AwsClientBuilder
-                            .EndpointConfiguration(s3Properties.getEndpointUrl(), s3Properties.getRegion()))
-                    .withPathStyleAccessEnabled(true)
-                    .build();
-        }
+        // Every background task is bounded by the concurrency settings of its operation
+        virtualThreads = fileProperties.isVirtualThreads() && VirtualThreads.isAvailable();
+        transferExecutor = VirtualThreads.newExecutor("s3-transfer-", fileProperties.isVirtualThreads());
+        downloader = new S3RangedDownloader(s3Client, s3Properties.getBucketName(),
+                s3Properties.getDownloadPartSize(), s3Properties.getDownloadConcurrency(),
+                s3Properties.getDownloadRetries(), s3Properties.isVerifyChecksums(), transferExecutor,
+                bufferPool);
+        deleter = new S3BatchDeleter(s3Client, s3Properties.getBucketName(),
+                s3Properties.getDeleteConcurrency(), transferExecutor);
+        copier = new S3Copier(s3Client, s3Properties.getBucketName(), s3Properties.getMultipartCopyThreshold(),
+                s3Properties.getCopyPartSize(), s3Properties.getCopyConcurrency(), transferExecutor);
+        existenceChecker = new S3ExistenceChecker(s3Client, s3Properties.getBucketName(),
+                s3Properties.getExistConcurrency(), transferExecutor);
+    }
 
-        if (!s3Client.doesBucketExistV2(s3Properties.getBucketName())) {
-            throw new RuntimeException("S3 bucket doesn't exists: " + s3Properties.getBucketName());
+    @PreDestroy
+    private void shutdown() {
+        if (transferExecutor != null) {
+            transferExecutor.shutdownNow();
         }
     }
 
     @Override
     public InputStream getInputStream(String filePath) {
+        if (s3Properties.getReadAheadParts() > 0) {
+            return getInputStream(filePath, s3Properties.getReadAheadParts());
+        }
         try {
             GetObjectRequest getObjectRequest = new GetObjectRequest(s3Properties.getBucketName(), filePath);
             S3Object s3Object = s3Client.getObject(getObjectRequest);
-            return s3Object.getObjectContent();
+            InputStream inputStream = s3Object.getObjectContent();
+            S3ContentVerifier verifier = s3Properties.isVerifyChecksums() ? S3ContentVerifier.forObject(s3Client,
+                    s3Properties.getBucketName(), filePath, s3Object.getObjectMetadata(), false) : null;
+            if (verifier != null) {
+                inputStream = new S3VerifyingInputStream(inputStream, filePath, verifier);
+            }
+            return encoded(inputStream, s3Object.getObjectMetadata());
+        } catch (AmazonS3Exception e) {
+            LOGGER.error("Unable to get file {}", filePath);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a stream over the object which prefetches the given number of ranges in the background,
+     * for sequential readers of large objects.
+     */
+    public InputStream getInputStream(String filePath, int readAheadParts) {
+        try {
+            ObjectMetadata metadata = s3Client.getObjectMetadata(s3Properties.getBucketName(), filePath);
+            S3ContentVerifier verifier = s3Properties.isVerifyChecksums() ? S3ContentVerifier.forObject(s3Client,
+                    s3Properties.getBucketName(), filePath, metadata, true) : null;
+            return encoded(new S3PrefetchingInputStream(downloader, transferExecutor, filePath,
+                    metadata.getETag(), metadata.getContentLength(), readAheadParts, verifier), metadata);
         } catch (AmazonS3Exception e) {
             LOGGER.error("Unable to get file {}", filePath);
             throw e;
         }
     }
 
+    // Objects stored with a Content-Encoding are returned as stored, tagged for the codec layer to decode them
+    private static InputStream encoded(InputStream inputStream, ObjectMetadata metadata) {
+        String contentEncoding = metadata.getContentEncoding();
+        return contentEncoding == null ? inputStream : new EncodedInputStream(inputStream, contentEncoding);
+    }
+
     @Override
     public CloseableFile getFile(String filePath) throws IOException {
         String extension = FilenameUtils.getFileExtension(filePath);
         File file = File.createTempFile("omics-tmp-file", "." + extension);
-        OutputStream outputStream = new FileOutputStream(file);
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int bytesRead;
-        try (InputStream in = getInputStream(filePath)) {
-            while ((bytesRead = in.read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
+        ObjectMetadata metadata;
+        try {
+            metadata = downloader.download(filePath, file);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Unable to get file {}", filePath);
+            Files.deleteIfExists(file.toPath());
+            throw e;
         }
-        return new CloseableFile(file) {
+        CloseableFile closeableFile = new CloseableFile(file) {
             @Override
             public void close() throws IOException {
                 // With S3, we get the file from S3 storage and then save it into temporary file
@@ -107,13 +174,76 @@ public class S3FileSystem implements IFileSystem {
                 delete();
             }
         };
+        closeableFile.setContentEncoding(metadata.getContentEncoding());
+        return closeableFile;
+    }
+
+    @Override
+    public ByteBuffer map(String filePath, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            downloader.readRange(filePath, null, offset, buffer);
+        } catch (AmazonS3Exception e) {
+            LOGGER.error("Unable to get file {}", filePath);
+            throw e;
+        }
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    @Override
+    public byte[] readRange(String filePath, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        int n;
+        try {
+            n = downloader.readRange(filePath, null, offset, buffer);
+        } catch (AmazonS3Exception e) {
+            LOGGER.error("Unable to get file {}", filePath);
+            throw e;
+        }
+        return n == length ? buffer.array() : Arrays.copyOf(buffer.array(), Math.max(n, 0));
+    }
+
+    @Override
+    public SeekableByteChannel open(String filePath) {
+        try {
+            ObjectMetadata metadata = s3Client.getObjectMetadata(s3Properties.getBucketName(), filePath);
+            return new S3SeekableByteChannel(downloader, transferExecutor, filePath, metadata.getETag(),
+                    metadata.getContentLength(), s3Properties.getChannelBlockSize(),
+                    s3Properties.getChannelCacheBlocks(), s3Properties.getChannelReadAheadBlocks());
+        } catch (AmazonS3Exception e) {
+            LOGGER.error("Unable to get file {}", filePath);
+            throw e;
+        }
+    }
+
+    /**
+     * Downloads the file into the given destination unless its ETag still matches the given one.
+     *
+     * @return the metadata of the downloaded object, or null if it wasn't modified
+     */
+    public ObjectMetadata getFileIfModified(String filePath, String eTag, File destination) throws IOException {
+        return downloader.downloadIfModified(filePath, eTag, destination);
     }
 
     @Override
     public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        if (s3Properties.isVerifyChecksums() && outputStream.getSize() > s3Properties.getUploadPartSize()) {
+            // Each part is hashed by the thread uploading it, while the next ones are being filled
+            try (OutputStream out = openOutputStream(filePath)) {
+                outputStream.writeTo(out);
+            }
+            return;
+        }
         try (InputStream inputStream = outputStream.toInputStream()) {
             ObjectMetadata meta = new ObjectMetadata();
             meta.setContentLength(outputStream.getSize());
+            if (s3Properties.isVerifyChecksums()) {
+                // Checksums go in the headers, before the body: a single part is hashed in a pass of its own
+                Checksums checksums = new Checksums();
+                outputStream.writeTo(checksums.asOutputStream());
+                addChecksums(meta, checksums);
+            }
             s3Client.putObject(s3Properties.getBucketName(), filePath, inputStream, meta);
         } catch (AmazonS3Exception e) {
             LOGGER.error("Unable to save file {}", filePath);
@@ -121,36 +251,90 @@ public class S3FileSystem implements IFileSystem {
         }
     }
 
+    @Override
+    public OutputStream openOutputStream(String filePath) {
+        return new S3MultipartOutputStream(s3Client, s3Properties.getBucketName(), filePath, null, -1,
+                s3Properties.getUploadPartSize(), s3Properties.getUploadConcurrency(),
+                s3Properties.isVerifyChecksums(), transferExecutor, bufferPool);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) {
+        return new S3MultipartOutputStream(s3Client, s3Properties.getBucketName(), filePath, contentEncoding,
+                decodedSize, s3Properties.getUploadPartSize(), s3Properties.getUploadConcurrency(),
+                s3Properties.isVerifyChecksums(), transferExecutor, bufferPool);
+    }
+
     @Override
     public void copyFile(File localFile, String destinationFile) {
         try {
-            s3Client.putObject(s3Properties.getBucketName(), destinationFile, localFile);
+            if (s3Properties.isVerifyChecksums()) {
+                // Read once, each part is hashed by the thread uploading it while the next ones are read
+                try (OutputStream out = openOutputStream(destinationFile)) {
+                    Files.copy(localFile.toPath(), out);
+                }
+                return;
+            }
+            s3Client.putObject(new PutObjectRequest(s3Properties.getBucketName(), destinationFile, localFile));
         } catch (AmazonS3Exception e) {
             LOGGER.error("Unable to upload file {}", destinationFile);
             throw e;
+        } catch (IOException e) {
+            LOGGER.error("Unable to read file {}", localFile);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // S3 rejects content not matching the Content-MD5, and the CRC-32C is kept to verify downloads
+    private static void addChecksums(ObjectMetadata meta, Checksums checksums) {
+        meta.setContentMD5(checksums.getMd5Base64());
+        meta.addUserMetadata(Checksums.CRC32C_METADATA, checksums.getCrc32cHex());
+    }
+
+    @Override
+    public void copyObject(String sourcePath, String destinationPath) throws IOException {
+        try {
+            copier.copy(sourcePath, destinationPath);
+        } catch (AmazonS3Exception e) {
+            LOGGER.error("Unable to copy file {} to {}", sourcePath, destinationPath);
+            throw e;
+        }
+    }
+
+    @Override
+    public void copyPrefix(String sourceDir, String destDir) throws IOException {
+        try (Stream<FileEntry> files = listFiles(sourceDir)) {
+            long count = copier.copyPrefix(files, sourceDir + "/", destDir + "/");
+            LOGGER.info("Copied {} files from {} to {}", count, sourceDir, destDir);
         }
     }
 
     @Override
     public List<String> listFilesFromFolder(String folderPath) {
-        ListObjectsRequest listObjectsRequest =
-                new ListObjectsRequest()
-                        .withBucketName(s3Properties.getBucketName())
-                        .withPrefix(folderPath + "/");
-
-        List<String> keys = new ArrayList<>();
-
-        ObjectListing objects = s3Client.listObjects(listObjectsRequest);
-        for (;;) {
-            List<S3ObjectSummary> summaries = objects.getObjectSummaries();
-            if (summaries.size() < 1) {
-                break;
-            }
-            summaries.forEach(x -> keys.add(x.getKey()));
-            objects = s3Client.listNextBatchOfObjects(objects);
+        try (Stream<FileEntry> files = listFiles(folderPath)) {
+            return files.map(FileEntry::getPath).collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public Stream<FileEntry> listFiles(String folderPath) {
+        if (s3Properties.getListShardFanOut() > 1) {
+            return listFiles(folderPath, s3Properties.getListShardFanOut(), true);
         }
+        S3ListingIterator iterator = new S3ListingIterator(s3Client, s3Properties.getBucketName(),
+                folderPath + "/", transferExecutor);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(iterator::close);
+    }
 
-        return keys;
+    /**
+     * Lists a large folder by splitting it into at least fanOut sub-prefixes listed concurrently, with at
+     * most s3.list_concurrency requests in flight. Unordered listings return entries as soon as they arrive.
+     */
+    public Stream<FileEntry> listFiles(String folderPath, int fanOut, boolean ordered) {
+        S3ShardedLister lister = new S3ShardedLister(s3Client, s3Properties.getBucketName(), fanOut,
+                s3Properties.getListConcurrency(), transferExecutor);
+        return lister.list(folderPath + "/", ordered);
     }
 
     @Override
@@ -158,38 +342,129 @@ public class S3FileSystem implements IFileSystem {
         s3Client.deleteObject(s3Properties.getBucketName(), filePath);
     }
 
+    @Override
+    public DeleteResult deleteFiles(Collection<String> filePaths) {
+        return deleter.delete(filePaths.iterator());
+    }
+
     @Override
     public boolean isFile(String filePath) {
         return s3Client.doesObjectExist(s3Properties.getBucketName(), filePath);
     }
 
+    @Override
+    public Map<String, Boolean> existAll(Collection<String> filePaths) {
+        return existenceChecker.check(filePaths);
+    }
+
+    @Override
+    public FileEntry getMetadata(String filePath) {
+        ObjectMetadata metadata;
+        try {
+            metadata = s3Client.getObjectMetadata(s3Properties.getBucketName(), filePath);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+        return new FileEntry(filePath, metadata.getContentLength(),
+                metadata.getLastModified() == null ? 0 : metadata.getLastModified().getTime(), metadata.getETag(),
+                metadata.getContentEncoding(), Math.max(0, S3ContentVerifier.getPartSize(metadata)),
+                getDecodedSize(metadata));
+    }
+
+    private static long getDecodedSize(ObjectMetadata metadata) {
+        String decodedSize = metadata.getUserMetaDataOf(Checksums.DECODED_SIZE_METADATA);
+        try {
+            return decodedSize == null ? -1 : Long.parseLong(decodedSize);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     @Override
     public void cleanDirectory(String dirPath) {
-        List<String> files = listFilesFromFolder(dirPath);
-        for (String file : files) {
-            deleteFile(file);
+        // Deletion of the first pages starts while the next ones are being listed
+        DeleteResult result;
+        try (Stream<FileEntry> files = listFiles(dirPath)) {
+            result = deleter.delete(files.map(FileEntry::getPath).iterator());
+        }
+        if (!result.isSuccessful()) {
+            LOGGER.error("Unable to delete {} files from {}: {}", result.getFailures().size(), dirPath,
+                    result.getFailures());
         }
     }
 
     @Override
-    public void copyDirectory(String sourceDir, String destDir){
+    public void copyDirectory(String sourceDir, String destDir) {
+        if (virtualThreads) {
+            uploadFiles(new File(sourceDir).toPath(), destDir);
+            return;
+        }
         try {
-            TransferManager tm = TransferManagerBuilder.standard().withS3Client(s3Client).build();
-            MultipleFileUpload upload = tm.uploadDirectory(s3Properties.getBucketName(),
-                    destDir, new File(sourceDir), true);
-            TransferProgress XferMgrProgress = upload.getProgress();
-            LOGGER.info("transfer percentage is {} ", XferMgrProgress.getPercentTransferred());
-//            while(XferMgrProgress.getPercentTransferred() < 100.0){
-//                System.out.println("percent transferreed is " + XferMgrProgress.getPercentTransferred());
-//            }
-            upload.waitForCompletion();
-            LOGGER.info("key prefix is {}", upload.getKeyPrefix());
-        }
-        catch (Exception ex){
-            LOGGER.error("Exception while uploading directory to S3 is {} ", ex.getMessage());
-        }
-//        XferMgrProgress.showTransferProgress(upload);
-//        // or block with Transfer.waitForCompletion()
-//        XferMgrProgress.waitForCompletion(upload);
+            transferService.uploadDirectory(new File(sourceDir), destDir, (transferred, total, bytesPerSecond) ->
+                    LOGGER.debug("Uploaded {} of {} bytes of {} at {} B/s", transferred, total, sourceDir,
+                            (long) bytesPerSecond)).join();
+        } catch (CompletionException e) {
+            LOGGER.error("Exception while uploading directory {} to S3", sourceDir, e.getCause());
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    @Override
+    public SyncResult syncDirectory(String sourceDir, String destDir, SyncOptions options) throws IOException {
+        return new DirectorySynchronizer(this, getUploadPartSizes()).sync(sourceDir, destDir, options);
+    }
+
+    /**
+     * Part sizes of the uploads of this service, tried on multipart ETags along with the usual ones.
+     */
+    public List<Long> getUploadPartSizes() {
+        return Arrays.asList((long) s3Properties.getUploadPartSize(), s3Properties.getTransferPartSize());
+    }
+
+    // Uploads every file of the directory on its own virtual thread, the large ones as multipart uploads
+    private void uploadFiles(Path sourceDir, String destDir) {
+        int concurrency = Math.max(1, fileProperties.getVirtualThreadConcurrency());
+        Semaphore inFlight = new Semaphore(concurrency);
+        Map<String, String> failures = new ConcurrentHashMap<>();
+        long count = 0;
+        try (Stream<Path> paths = Files.walk(sourceDir)) {
+            Iterator<Path> files = paths.filter(Files::isRegularFile).iterator();
+            while (files.hasNext()) {
+                Path file = files.next();
+                String key = destDir + "/" + sourceDir.relativize(file).toString().replace(File.separatorChar, '/');
+                inFlight.acquire();
+                transferExecutor.execute(() -> {
+                    try {
+                        if (file.toFile().length() >= s3Properties.getMultipartUploadThreshold()) {
+                            transferService.uploadFile(file.toFile(), key, TransferListener.NONE).join();
+                        } else {
+                            copyFile(file.toFile(), key);
+                        }
+                    } catch (RuntimeException e) {
+                        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                        failures.put(key, cause.getMessage() == null ? cause.toString() : cause.getMessage());
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+                count++;
+            }
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (IOException e) {
+            LOGGER.error("Exception while uploading directory {} to S3", sourceDir, e);
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while uploading " + sourceDir, e);
+        }
+        if (!failures.isEmpty()) {
+            LOGGER.error("Unable to upload {} of {} files from {}: {}", failures.size(), count, sourceDir, failures);
+            throw new IllegalStateException("Unable to upload " + failures.size() + " of " + count
+                    + " files from " + sourceDir + " to " + destDir);
+        }
     }
 }
@@ -0,0 +1,147 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.*;
+import com.amazonaws.services.s3.transfer.model.UploadResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import uk.ac.ebi.ddi.ddifileservice.configuration.S3Properties;
+import uk.ac.ebi.ddi.ddifileservice.transfer.TransferListener;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Owns the single TransferManager of the application, and exposes its transfers as CompletableFutures
+ * reporting their progress, instead of blocking the caller until they complete.
+ */
+@Component
+@ConditionalOnExpression("'${file.provider:s3}' == 's3' or '${file.provider:s3}' == 'tiered'")
+public class S3TransferService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3TransferService.class);
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 500;
+
+    @Autowired
+    private AmazonS3 s3Client;
+
+    @Autowired
+    private S3Properties s3Properties;
+
+    private ExecutorService executor;
+
+    private TransferManager transferManager;
+
+    @PostConstruct
+    private void initialize() {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-transfer-manager-");
+        threadFactory.setDaemon(true);
+        executor = Executors.newFixedThreadPool(s3Properties.getTransferThreads(), threadFactory);
+        transferManager = TransferManagerBuilder.standard()
+                .withS3Client(s3Client)
+                .withExecutorFactory(() -> executor)
+                .withMultipartUploadThreshold(s3Properties.getMultipartUploadThreshold())
+                .withMinimumUploadPartSize(s3Properties.getTransferPartSize())
+                .withShutDownThreadPools(true)
+                .build();
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        // The client is a bean of its own, only release the transfer threads
+        transferManager.shutdownNow(false);
+    }
+
+    public CompletableFuture<UploadResult> uploadFile(File file, String key, TransferListener listener) {
+        Upload upload = transferManager.upload(new PutObjectRequest(s3Properties.getBucketName(), key, file));
+        return track(upload, listener).thenApply(x -> getResult(upload));
+    }
+
+    public CompletableFuture<Void> downloadFile(String key, File destination, TransferListener listener) {
+        Download download = transferManager.download(
+                new GetObjectRequest(s3Properties.getBucketName(), key), destination);
+        return track(download, listener);
+    }
+
+    /**
+     * Uploads every file of the local directory, recursively, under the given prefix.
+     */
+    public CompletableFuture<Void> uploadDirectory(File directory, String prefix, TransferListener listener) {
+        MultipleFileUpload upload = transferManager.uploadDirectory(s3Properties.getBucketName(),
+                prefix, directory, true);
+        return track(upload, listener);
+    }
+
+    private CompletableFuture<Void> track(Transfer transfer, TransferListener listener) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        AtomicLong lastReport = new AtomicLong();
+        transfer.addProgressListener((ProgressListener) event -> {
+            ProgressEventType type = event.getEventType();
+            if (type == ProgressEventType.TRANSFER_COMPLETED_EVENT
+                    || type == ProgressEventType.TRANSFER_FAILED_EVENT
+                    || type == ProgressEventType.TRANSFER_CANCELED_EVENT) {
+                report(transfer, listener, start);
+                // Listeners run on the transfer threads, the outcome is fetched once the transfer has settled
+                executor.execute(() -> complete(transfer, future));
+                return;
+            }
+            long now = System.nanoTime();
+            long last = lastReport.get();
+            if (now - last > PROGRESS_INTERVAL_MILLIS * 1000000 && lastReport.compareAndSet(last, now)) {
+                report(transfer, listener, start);
+            }
+        });
+        // The transfer may have finished before the listener was registered
+        if (transfer.isDone()) {
+            complete(transfer, future);
+        }
+        return future;
+    }
+
+    private static void report(Transfer transfer, TransferListener listener, long start) {
+        TransferProgress progress = transfer.getProgress();
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        try {
+            listener.onProgress(progress.getBytesTransferred(), progress.getTotalBytesToTransfer(),
+                    progress.getBytesTransferred() / seconds);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Progress listener of {} failed", transfer.getDescription(), e);
+        }
+    }
+
+    private static void complete(Transfer transfer, CompletableFuture<Void> future) {
+        try {
+            transfer.waitForCompletion();
+            future.complete(null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static UploadResult getResult(Upload upload) {
+        try {
+            return upload.waitForUploadResult();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,849 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import uk.ac.ebi.ddi.ddifileservice.configuration.TieredProperties;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.EncodedInputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncOptions;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncResult;
+import uk.ac.ebi.ddi.ddifileservice.utils.DirectorySynchronizer;
+import uk.ac.ebi.ddi.ddifileservice.utils.FilenameUtils;
+import uk.ac.ebi.ddi.ddifileservice.utils.WriteJournal;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Combines a hot tier on local disk with S3 as the cold tier and source of truth. Writes land on local disk
+ * and are flushed to S3 in the background, one key at a time in write order, or before returning in
+ * write-through mode. Reads are served from local disk, fetching the object into the hot tier first when
+ * it isn't there. Ranged reads of files which aren't hot go to S3 directly rather than fetching them whole.
+ *
+ * A background job demotes clean files which haven't been accessed for a while, and the least recently used
+ * ones while the tier is over its capacity. Files waiting to be flushed are never demoted, so the tier can
+ * go over capacity while S3 is behind. Listings, copies and deletes wait for the pending flushes of the keys
+ * they cover, then run against S3.
+ *
+ * Written files are synced and recorded in a WriteJournal before the write returns, so the ones still waiting
+ * to be flushed when the process dies are flushed again on the next start. Every other file of the tier is
+ * deleted on startup, as the index of clean files only lives in memory.
+ */
+@Component
+@ConditionalOnProperty(
+        value = "file.provider",
+        havingValue = "tiered"
+)
+public class TieredFileSystem implements IFileSystem {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TieredFileSystem.class);
+
+    private static final long SHUTDOWN_TIMEOUT_MINUTES = 10;
+
+    private static final String HOT_PREFIX = "hot-";
+
+    private static final String PENDING_PREFIX = "pending-";
+
+    @Autowired
+    private S3FileSystem s3FileSystem;
+
+    @Autowired
+    private LocalFileSystem localFileSystem;
+
+    @Autowired
+    private TieredProperties tieredProperties;
+
+    private Path directory;
+
+    private WriteJournal journal;
+
+    private ExecutorService flushExecutor;
+
+    private ScheduledExecutorService demotionExecutor;
+
+    // Guarded by this
+    private final Map<String, HotFile> files = new HashMap<>();
+
+    private final ConcurrentMap<String, CompletableFuture<HotFile>> promotions = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean demotionScheduled = new AtomicBoolean();
+
+    // Guarded by this, bumped by every write or delete so that fetches which raced with one aren't kept
+    private long generation;
+
+    // Guarded by this
+    private long currentSize;
+
+    @PostConstruct
+    private void initialize() throws IOException {
+        directory = Paths.get(tieredProperties.getDirectory());
+        Files.createDirectories(directory);
+        journal = new WriteJournal(directory.resolve("journal"));
+        Map<Long, String> recovered = journal.getPending();
+        Map<Long, Path> pendingFiles = new HashMap<>();
+        // Clean files can't be trusted as their index only lived in memory, and unjournaled writes were never
+        // acknowledged. Files not named by the tier are left alone.
+        try (Stream<Path> leftovers = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) leftovers::iterator) {
+                String name = file.getFileName().toString();
+                Long id = getPendingId(name);
+                if (id != null && recovered.containsKey(id)) {
+                    pendingFiles.put(id, file);
+                } else if (id != null || name.startsWith(HOT_PREFIX)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        CustomizableThreadFactory flushThreads = new CustomizableThreadFactory("tiered-flush-");
+        flushThreads.setDaemon(true);
+        flushExecutor = Executors.newFixedThreadPool(Math.max(1, tieredProperties.getFlushConcurrency()), flushThreads);
+        CustomizableThreadFactory demotionThreads = new CustomizableThreadFactory("tiered-demotion-");
+        demotionThreads.setDaemon(true);
+        demotionExecutor = Executors.newSingleThreadScheduledExecutor(demotionThreads);
+        long interval = Math.max(1, tieredProperties.getDemotionIntervalSeconds());
+        demotionExecutor.scheduleWithFixedDelay(this::demote, interval, interval, TimeUnit.SECONDS);
+        replay(recovered, pendingFiles);
+    }
+
+    // Makes the journaled writes the current versions of their keys again, and flushes them in journal order
+    private void replay(Map<Long, String> recovered, Map<Long, Path> pendingFiles) throws IOException {
+        List<Long> done = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<Long, String> write : recovered.entrySet()) {
+                Path file = pendingFiles.get(write.getKey());
+                if (file == null) {
+                    LOGGER.error("Hot file of the pending write of {} is missing, the write is lost", write.getValue());
+                    done.add(write.getKey());
+                    continue;
+                }
+                HotFile hot = new HotFile(write.getValue(), file, Files.size(file), null, null, true);
+                hot.journalId = write.getKey();
+                HotFile previous = files.put(hot.key, hot);
+                CompletableFuture<Void> previousFlush = CompletableFuture.completedFuture(null);
+                if (previous != null) {
+                    // Superseded by a later write of the same key
+                    previousFlush = previous.flush;
+                    done.add(previous.journalId);
+                    discard(previous);
+                }
+                currentSize += hot.size;
+                scheduleFlush(hot, previousFlush);
+            }
+        }
+        complete(done);
+        if (!recovered.isEmpty()) {
+            LOGGER.info("Replaying {} pending flushes of the hot tier", recovered.size() - done.size());
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        demotionExecutor.shutdownNow();
+        // Pending flushes are the only copy of their data
+        flushExecutor.shutdown();
+        try {
+            if (!flushExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                LOGGER.error("Files of the hot tier were not flushed to S3 before shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to close the write journal of the hot tier", e);
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(String filePath) throws FileNotFoundException {
+        HotFile hot = acquireUnchecked(filePath);
+        InputStream inputStream;
+        try {
+            inputStream = new FilterInputStream(Files.newInputStream(hot.path)) {
+                private final AtomicBoolean closed = new AtomicBoolean();
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (closed.compareAndSet(false, true)) {
+                            release(hot);
+                        }
+                    }
+                }
+            };
+        } catch (IOException e) {
+            release(hot);
+            throw new UncheckedIOException(e);
+        }
+        return hot.contentEncoding == null ? inputStream : new EncodedInputStream(inputStream, hot.contentEncoding);
+    }
+
+    @Override
+    public CloseableFile getFile(String filePath) throws IOException {
+        HotFile hot = acquire(filePath);
+        CloseableFile file = new CloseableFile(hot.path.toFile()) {
+            private final AtomicBoolean closed = new AtomicBoolean();
+
+            @Override
+            public void close() {
+                // The file belongs to the hot tier, it is only deleted once demoted and no longer used
+                if (closed.compareAndSet(false, true)) {
+                    release(hot);
+                }
+            }
+        };
+        file.setContentEncoding(hot.contentEncoding);
+        return file;
+    }
+
+    @Override
+    public ByteBuffer map(String filePath, long offset, int length) throws IOException {
+        HotFile hot = acquireIfHot(filePath);
+        if (hot == null) {
+            return s3FileSystem.map(filePath, offset, length);
+        }
+        try {
+            return localFileSystem.map(hot.path.toString(), offset, length);
+        } finally {
+            release(hot);
+        }
+    }
+
+    @Override
+    public byte[] readRange(String filePath, long offset, int length) throws IOException {
+        HotFile hot = acquireIfHot(filePath);
+        if (hot == null) {
+            return s3FileSystem.readRange(filePath, offset, length);
+        }
+        try {
+            return localFileSystem.readRange(hot.path.toString(), offset, length);
+        } finally {
+            release(hot);
+        }
+    }
+
+    @Override
+    public SeekableByteChannel open(String filePath) throws IOException {
+        HotFile hot = acquireIfHot(filePath);
+        if (hot == null) {
+            return s3FileSystem.open(filePath);
+        }
+        // An open channel keeps reading the file even if it gets demoted
+        try {
+            return localFileSystem.open(hot.path.toString());
+        } finally {
+            release(hot);
+        }
+    }
+
+    @Override
+    public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        Path file = newFile(filePath);
+        try {
+            localFileSystem.saveFile(outputStream, file.toString());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        write(filePath, file);
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath) throws IOException {
+        Path file = newFile(filePath);
+        return new FilterOutputStream(localFileSystem.openOutputStream(file.toString())) {
+            private boolean closed;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    super.close();
+                } catch (IOException | RuntimeException e) {
+                    Files.deleteIfExists(file);
+                    throw e;
+                }
+                TieredFileSystem.this.write(filePath, file);
+            }
+        };
+    }
+
+    /**
+     * Content encodings can't be kept on local disk, so encoded data goes to S3 directly.
+     */
+    @Override
+    public OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) throws IOException {
+        evict(Collections.singletonList(filePath));
+        return s3FileSystem.openOutputStream(filePath, contentEncoding, decodedSize);
+    }
+
+    @Override
+    public void copyFile(File localFile, String destinationFile) throws IOException {
+        Path file = newFile(destinationFile);
+        try {
+            localFileSystem.copyFile(localFile, file.toString());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        write(destinationFile, file);
+    }
+
+    @Override
+    public void copyObject(String sourcePath, String destinationPath) throws IOException {
+        flushAll(x -> x.equals(sourcePath));
+        evict(Collections.singletonList(destinationPath));
+        s3FileSystem.copyObject(sourcePath, destinationPath);
+    }
+
+    @Override
+    public void copyPrefix(String sourceDir, String destDir) throws IOException {
+        flushAll(x -> x.startsWith(sourceDir + "/"));
+        evictPrefix(destDir + "/");
+        s3FileSystem.copyPrefix(sourceDir, destDir);
+    }
+
+    @Override
+    public List<String> listFilesFromFolder(String folderPath) {
+        flushAllUnchecked(x -> x.startsWith(folderPath));
+        return s3FileSystem.listFilesFromFolder(folderPath);
+    }
+
+    @Override
+    public Stream<FileEntry> listFiles(String folderPath) {
+        flushAllUnchecked(x -> x.startsWith(folderPath));
+        return s3FileSystem.listFiles(folderPath);
+    }
+
+    @Override
+    public void deleteFile(String filePath) {
+        evict(Collections.singletonList(filePath));
+        s3FileSystem.deleteFile(filePath);
+    }
+
+    @Override
+    public DeleteResult deleteFiles(Collection<String> filePaths) {
+        evict(filePaths);
+        return s3FileSystem.deleteFiles(filePaths);
+    }
+
+    @Override
+    public boolean isFile(String filePath) {
+        synchronized (this) {
+            if (files.containsKey(filePath)) {
+                return true;
+            }
+        }
+        return s3FileSystem.isFile(filePath);
+    }
+
+    @Override
+    public Map<String, Boolean> existAll(Collection<String> filePaths) {
+        Map<String, Boolean> result = new HashMap<>();
+        List<String> cold = new ArrayList<>();
+        synchronized (this) {
+            for (String filePath : filePaths) {
+                if (files.containsKey(filePath)) {
+                    result.put(filePath, true);
+                } else {
+                    cold.add(filePath);
+                }
+            }
+        }
+        if (!cold.isEmpty()) {
+            result.putAll(s3FileSystem.existAll(cold));
+        }
+        return result;
+    }
+
+    @Override
+    public FileEntry getMetadata(String filePath) throws IOException {
+        HotFile hot;
+        synchronized (this) {
+            hot = files.get(filePath);
+        }
+        // Until it is flushed the local file is the only one with the current size
+        if (hot != null && hot.dirty) {
+            return new FileEntry(filePath, hot.size, hot.modified, null);
+        }
+        return s3FileSystem.getMetadata(filePath);
+    }
+
+    @Override
+    public void cleanDirectory(String dirPath) {
+        evictPrefix(dirPath + "/");
+        s3FileSystem.cleanDirectory(dirPath);
+    }
+
+    @Override
+    public void copyDirectory(String sourceDir, String destDir) {
+        evictPrefix(destDir + "/");
+        s3FileSystem.copyDirectory(sourceDir, destDir);
+    }
+
+    @Override
+    public SyncResult syncDirectory(String sourceDir, String destDir, SyncOptions options) throws IOException {
+        return new DirectorySynchronizer(this, getUploadPartSizes()).sync(sourceDir, destDir, options);
+    }
+
+    /**
+     * Part sizes of the uploads of the cold tier, tried on multipart ETags along with the usual ones.
+     */
+    public List<Long> getUploadPartSizes() {
+        return s3FileSystem.getUploadPartSizes();
+    }
+
+    private Path newFile(String filePath) throws IOException {
+        return Files.createTempFile(directory, HOT_PREFIX, "." + FilenameUtils.getFileExtension(filePath));
+    }
+
+    private static Long getPendingId(String name) {
+        if (!name.startsWith(PENDING_PREFIX)) {
+            return null;
+        }
+        int end = name.indexOf('.', PENDING_PREFIX.length());
+        try {
+            return Long.parseLong(name.substring(PENDING_PREFIX.length(), end < 0 ? name.length() : end));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Makes the written file the current version of the key and schedules its flush after the previous ones
+    private void write(String filePath, Path written) throws IOException {
+        Path file;
+        long id = journal.reserve();
+        try {
+            file = persist(id, filePath, written);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(written);
+            throw e;
+        }
+        HotFile hot = new HotFile(filePath, file, Files.size(file), null, null, true);
+        hot.journalId = id;
+        CompletableFuture<Void> previousFlush;
+        Long superseded = null;
+        // Writes of a key become current in the order they are journaled, which is the order they are replayed in
+        synchronized (journal) {
+            try {
+                journal.append(id, filePath);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            synchronized (this) {
+                generation++;
+                HotFile previous = files.put(filePath, hot);
+                previousFlush = previous != null && previous.flush != null ? previous.flush
+                        : CompletableFuture.completedFuture(null);
+                if (previous != null) {
+                    superseded = previous.dirty ? previous.journalId : null;
+                    discard(previous);
+                }
+                currentSize += hot.size;
+                scheduleFlush(hot, previousFlush);
+            }
+        }
+        if (superseded != null) {
+            complete(Collections.singletonList(superseded));
+        }
+        scheduleDemotionIfFull();
+        if (tieredProperties.isWriteThrough()) {
+            flush(hot);
+        }
+    }
+
+    // Syncs the written file under the name of its journal id, so that it survives a crash once journaled
+    private Path persist(long id, String filePath, Path written) throws IOException {
+        try (FileChannel channel = FileChannel.open(written, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Path file = directory.resolve(PENDING_PREFIX + id + "." + FilenameUtils.getFileExtension(filePath));
+        Files.move(written, file, StandardCopyOption.ATOMIC_MOVE);
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a directory
+            LOGGER.debug("Unable to sync directory {}", directory, e);
+        }
+        return file;
+    }
+
+    // Records the writes as no longer pending, a failure only means they are flushed again after a restart
+    private void complete(Collection<Long> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            journal.complete(ids);
+        } catch (IOException e) {
+            LOGGER.error("Unable to journal {} settled writes of the hot tier", ids.size(), e);
+        }
+    }
+
+    // Must be called holding the lock
+    private void scheduleFlush(HotFile hot, CompletableFuture<Void> after) {
+        hot.flush = after.handle((x, e) -> (Void) null)
+                .thenRunAsync(() -> upload(hot), flushExecutor);
+        hot.flush.whenComplete((x, e) -> onFlushed(hot, e));
+    }
+
+    private void upload(HotFile hot) {
+        synchronized (this) {
+            // Superseded by a newer write or deleted, which take care of S3 themselves
+            if (hot.removed) {
+                return;
+            }
+            hot.references++;
+        }
+        try {
+            s3FileSystem.copyFile(hot.path.toFile(), hot.key);
+        } finally {
+            release(hot);
+        }
+    }
+
+    private void onFlushed(HotFile hot, Throwable error) {
+        boolean flushed;
+        synchronized (this) {
+            if (error != null) {
+                // Picked up again by the next demotion pass
+                LOGGER.error("Unable to flush {} to S3", hot.key, error);
+                hot.flush = null;
+                return;
+            }
+            // Removed files were already settled when they were superseded or evicted
+            flushed = hot.dirty && !hot.removed;
+            hot.dirty = false;
+        }
+        if (flushed) {
+            complete(Collections.singletonList(hot.journalId));
+        }
+    }
+
+    // Waits until the file is in S3, flushing it now if its background flush failed
+    private void flush(HotFile hot) throws IOException {
+        CompletableFuture<Void> flush;
+        synchronized (this) {
+            if (!hot.dirty || hot.removed) {
+                return;
+            }
+            if (hot.flush == null) {
+                scheduleFlush(hot, CompletableFuture.completedFuture(null));
+            }
+            flush = hot.flush;
+        }
+        try {
+            flush.join();
+        } catch (CompletionException e) {
+            throw new IOException("Unable to flush " + hot.key + " to S3", e.getCause());
+        }
+    }
+
+    private void flushAll(Predicate<String> keys) throws IOException {
+        List<HotFile> dirty;
+        synchronized (this) {
+            dirty = files.values().stream().filter(x -> x.dirty && keys.test(x.key)).collect(Collectors.toList());
+        }
+        for (HotFile hot : dirty) {
+            flush(hot);
+        }
+    }
+
+    private void flushAllUnchecked(Predicate<String> keys) {
+        try {
+            flushAll(keys);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Drops the local copies of the keys, once any flush of theirs which is in progress is over
+    private void evict(Collection<String> filePaths) {
+        List<HotFile> evicted = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        synchronized (this) {
+            generation++;
+            for (String filePath : filePaths) {
+                HotFile hot = files.remove(filePath);
+                if (hot != null) {
+                    evict(hot, evicted, ids);
+                }
+            }
+        }
+        settle(evicted, ids);
+    }
+
+    private void evictPrefix(String prefix) {
+        List<HotFile> evicted = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        synchronized (this) {
+            generation++;
+            Iterator<HotFile> iterator = files.values().iterator();
+            while (iterator.hasNext()) {
+                HotFile hot = iterator.next();
+                if (hot.key.startsWith(prefix)) {
+                    iterator.remove();
+                    evict(hot, evicted, ids);
+                }
+            }
+        }
+        settle(evicted, ids);
+    }
+
+    // Must be called holding the lock, the pending write of a dirty file is dropped with it
+    private void evict(HotFile hot, List<HotFile> evicted, List<Long> ids) {
+        if (hot.dirty) {
+            ids.add(hot.journalId);
+        }
+        discard(hot);
+        evicted.add(hot);
+    }
+
+    // Waits for any flush of the evicted files which is in progress, then drops their pending writes
+    private void settle(List<HotFile> evicted, List<Long> ids) {
+        for (HotFile hot : evicted) {
+            CompletableFuture<Void> flush;
+            synchronized (this) {
+                flush = hot.flush;
+            }
+            if (flush != null) {
+                flush.handle((x, e) -> null).join();
+            }
+        }
+        complete(ids);
+    }
+
+    private HotFile acquireUnchecked(String filePath) throws FileNotFoundException {
+        try {
+            return acquire(filePath);
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized HotFile acquireIfHot(String filePath) {
+        HotFile hot = files.get(filePath);
+        if (hot != null) {
+            hot.references++;
+            hot.lastAccess = System.currentTimeMillis();
+        }
+        return hot;
+    }
+
+    private HotFile acquire(String filePath) throws IOException {
+        for (;;) {
+            HotFile cached;
+            synchronized (this) {
+                cached = files.get(filePath);
+                // Files waiting to be flushed are newer than S3
+                if (cached != null && (cached.dirty || !tieredProperties.isRevalidate())) {
+                    cached.references++;
+                    cached.lastAccess = System.currentTimeMillis();
+                    return cached;
+                }
+            }
+            CompletableFuture<HotFile> loading = new CompletableFuture<>();
+            CompletableFuture<HotFile> existing = promotions.putIfAbsent(filePath, loading);
+            if (existing == null) {
+                HotFile hot;
+                try {
+                    hot = promote(filePath, cached);
+                    loading.complete(hot);
+                } catch (IOException | RuntimeException e) {
+                    loading.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    promotions.remove(filePath, loading);
+                }
+                if (hot != null) {
+                    return hot;
+                }
+                continue;
+            }
+            // Another caller is already fetching this key, share its result if it was kept
+            HotFile hot = join(existing);
+            synchronized (this) {
+                if (hot != null && files.get(filePath) == hot) {
+                    hot.references++;
+                    hot.lastAccess = System.currentTimeMillis();
+                    return hot;
+                }
+            }
+        }
+    }
+
+    // Fetches the object into the hot tier, or revalidates the local copy against its ETag, null to start over
+    private HotFile promote(String filePath, HotFile cached) throws IOException {
+        long startGeneration;
+        synchronized (this) {
+            startGeneration = generation;
+        }
+        Path file = newFile(filePath);
+        ObjectMetadata metadata;
+        try {
+            metadata = s3FileSystem.getFileIfModified(filePath, cached == null ? null : cached.eTag, file.toFile());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+        if (metadata == null) {
+            Files.deleteIfExists(file);
+            synchronized (this) {
+                if (files.get(filePath) == cached) {
+                    cached.references++;
+                    cached.lastAccess = System.currentTimeMillis();
+                    return cached;
+                }
+            }
+            return null;
+        }
+        HotFile hot = new HotFile(filePath, file, Files.size(file), metadata.getETag(),
+                metadata.getContentEncoding(), false);
+        hot.references++;
+        synchronized (this) {
+            if (generation != startGeneration) {
+                // A write or delete happened meanwhile, serve this read from the fetched copy but don't keep it
+                hot.removed = true;
+                return hot;
+            }
+            HotFile previous = files.put(filePath, hot);
+            if (previous != null) {
+                discard(previous);
+            }
+            currentSize += hot.size;
+        }
+        scheduleDemotionIfFull();
+        return hot;
+    }
+
+    private synchronized void release(HotFile hot) {
+        hot.references--;
+        if (hot.removed) {
+            deleteIfUnused(hot);
+        }
+    }
+
+    private void scheduleDemotionIfFull() {
+        boolean full;
+        synchronized (this) {
+            full = currentSize > tieredProperties.getMaxSize();
+        }
+        if (full && demotionScheduled.compareAndSet(false, true)) {
+            demotionExecutor.execute(() -> {
+                demotionScheduled.set(false);
+                demote();
+            });
+        }
+    }
+
+    private void demote() {
+        try {
+            long idleSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(tieredProperties.getMaxIdleSeconds());
+            synchronized (this) {
+                List<HotFile> candidates = new ArrayList<>(files.values());
+                candidates.sort(Comparator.comparingLong(x -> x.lastAccess));
+                for (HotFile hot : candidates) {
+                    if (hot.dirty) {
+                        if (hot.flush == null) {
+                            scheduleFlush(hot, CompletableFuture.completedFuture(null));
+                        }
+                    } else if (hot.references == 0
+                            && (hot.lastAccess < idleSince || currentSize > tieredProperties.getMaxSize())) {
+                        files.remove(hot.key);
+                        discard(hot);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to demote files of the hot tier", e);
+        }
+    }
+
+    // Must be called holding the lock
+    private void discard(HotFile hot) {
+        hot.removed = true;
+        currentSize -= hot.size;
+        deleteIfUnused(hot);
+    }
+
+    private void deleteIfUnused(HotFile hot) {
+        if (hot.references == 0 && !hot.path.toFile().delete() && Files.exists(hot.path)) {
+            LOGGER.warn("Unable to delete hot file {}", hot.path);
+        }
+    }
+
+    private static HotFile join(CompletableFuture<HotFile> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static class HotFile {
+        private final String key;
+        private final Path path;
+        private final long size;
+        private final long modified = System.currentTimeMillis();
+        private final String eTag;
+        private final String contentEncoding;
+        private volatile long lastAccess = modified;
+        private boolean dirty;
+        private long journalId;
+        private CompletableFuture<Void> flush;
+        private int references;
+        private boolean removed;
+
+        private HotFile(String key, Path path, long size, String eTag, String contentEncoding, boolean dirty) {
+            this.key = key;
+            this.path = path;
+            this.size = size;
+            this.eTag = eTag;
+            this.contentEncoding = contentEncoding;
+            this.dirty = dirty;
+        }
+    }
+}
@@ -0,0 +1,605 @@
+package uk.ac.ebi.ddi.ddifileservice.services;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import uk.ac.ebi.ddi.ddifileservice.type.CloseableFile;
+import uk.ac.ebi.ddi.ddifileservice.type.ConvertibleOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.type.PooledOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.utils.WriteJournal;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Acknowledges writes once their content is spooled to local disk and recorded in a WriteJournal, and
+ * uploads them to the delegate in the background. Each key is always uploaded by the same worker, so the
+ * writes of a key reach the delegate in order, and a write superseded by a newer one of the same key before
+ * its upload started is skipped. Workers take up to batchSize writes at once and journal them as done with
+ * a single sync. Failed uploads are retried with a growing delay, up to maxAttempts times, errors which can't
+ * be fixed by retrying such as a denied access failing them at once. The spool files of failed writes are
+ * kept in the failed directory.
+ *
+ * Reads of a pending file are served from its spool file, other operations touching pending files wait for
+ * their upload first, at most waitTimeout, so that clients see their own writes. flush waits for every write
+ * acknowledged so far. Writes still pending when the process stops are replayed from the journal on the next
+ * start.
+ */
+public class WriteBehindFileSystem extends ForwardingFileSystem implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindFileSystem.class);
+
+    private static final String SPOOL_SUFFIX = ".spool";
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 60_000;
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+    private static final long DEFAULT_WAIT_TIMEOUT_SECONDS = 300;
+
+    private final Path spoolDirectory;
+
+    private final Path failedDirectory;
+
+    private final WriteJournal journal;
+
+    private final int batchSize;
+
+    private final int maxAttempts;
+
+    private final long waitTimeoutMillis;
+
+    // Writes acknowledged but not uploaded yet, writers block once it is exhausted
+    private final Semaphore capacity;
+
+    private final List<BlockingQueue<PendingWrite>> queues = new ArrayList<>();
+
+    private final ExecutorService workers;
+
+    // Latest pending write of each key
+    private final ConcurrentMap<String, PendingWrite> latest = new ConcurrentHashMap<>();
+
+    private final Set<PendingWrite> outstanding = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean closed;
+
+    public WriteBehindFileSystem(IFileSystem delegate, Path directory, int concurrency, int batchSize,
+                                 int maxPendingFiles) throws IOException {
+        this(delegate, directory, concurrency, batchSize, maxPendingFiles, DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param maxAttempts number of times an upload is tried before its write is failed
+     * @param waitTimeout longest wait of an operation for the upload of the pending writes it touches
+     */
+    public WriteBehindFileSystem(IFileSystem delegate, Path directory, int concurrency, int batchSize,
+                                 int maxPendingFiles, int maxAttempts, long waitTimeout, TimeUnit unit)
+            throws IOException {
+        super(delegate);
+        this.spoolDirectory = directory.resolve("spool");
+        this.failedDirectory = directory.resolve("failed");
+        this.batchSize = Math.max(1, batchSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.waitTimeoutMillis = unit.toMillis(waitTimeout);
+        Files.createDirectories(spoolDirectory);
+        Files.createDirectories(failedDirectory);
+        this.journal = new WriteJournal(directory.resolve("journal"));
+        Map<Long, String> recovered = journal.getPending();
+        // Spool files without a journal record were never acknowledged
+        try (Stream<Path> files = Files.list(spoolDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!recovered.containsKey(getId(file))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        this.capacity = new Semaphore(Math.max(1, maxPendingFiles) - recovered.size());
+
+        int threads = Math.max(1, concurrency);
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("write-behind-");
+        // Pending writes survive an abrupt stop in the journal
+        threadFactory.setDaemon(true);
+        workers = Executors.newFixedThreadPool(threads, threadFactory);
+        for (int i = 0; i < threads; i++) {
+            BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+            queues.add(queue);
+            workers.execute(() -> drain(queue));
+        }
+
+        List<Long> lost = new ArrayList<>();
+        recovered.forEach((id, key) -> {
+            Path file = getSpoolFile(id);
+            if (Files.exists(file)) {
+                enqueue(new PendingWrite(id, key, file));
+            } else {
+                LOGGER.error("Spool file of the pending write of {} is missing, the write is lost", key);
+                lost.add(id);
+            }
+        });
+        if (!lost.isEmpty()) {
+            journal.complete(lost);
+            capacity.release(lost.size());
+        }
+        if (!recovered.isEmpty()) {
+            LOGGER.info("Replaying {} pending writes from the journal", recovered.size() - lost.size());
+        }
+    }
+
+    /**
+     * Waits at most waitTimeout for every write acknowledged before the call to be uploaded to the delegate.
+     *
+     * @throws IllegalStateException if some of them failed or weren't uploaded in time
+     */
+    public void flush() throws InterruptedException {
+        if (!flush(waitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("Timed out waiting for pending writes to be uploaded");
+        }
+    }
+
+    /**
+     * Waits at most the given time for every write acknowledged before the call to be uploaded.
+     *
+     * @return whether all of them were uploaded in time
+     * @throws IllegalStateException if some of them failed
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            pendingWrites(x -> true).get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public int getPendingCount() {
+        return outstanding.size();
+    }
+
+    @Override
+    public InputStream getInputStream(String filePath) throws FileNotFoundException {
+        PendingWrite pending = latest.get(filePath);
+        if (pending != null) {
+            try {
+                // The spool file is only unlinked once uploaded, an open stream can still read it
+                return Files.newInputStream(pending.file);
+            } catch (IOException e) {
+                awaitKey(filePath);
+            }
+        }
+        return super.getInputStream(filePath);
+    }
+
+    @Override
+    public CloseableFile getFile(String filePath) throws IOException {
+        awaitKey(filePath);
+        return super.getFile(filePath);
+    }
+
+    @Override
+    public ByteBuffer map(String filePath, long offset, int length) throws IOException {
+        awaitKey(filePath);
+        return super.map(filePath, offset, length);
+    }
+
+    @Override
+    public byte[] readRange(String filePath, long offset, int length) throws IOException {
+        awaitKey(filePath);
+        return super.readRange(filePath, offset, length);
+    }
+
+    @Override
+    public SeekableByteChannel open(String filePath) throws IOException {
+        awaitKey(filePath);
+        return super.open(filePath);
+    }
+
+    @Override
+    public void saveFile(ConvertibleOutputStream outputStream, String filePath) throws IOException {
+        spool(filePath, channel -> {
+            if (outputStream instanceof PooledOutputStream) {
+                ((PooledOutputStream) outputStream).writeTo(channel);
+            } else {
+                outputStream.writeTo(Channels.newOutputStream(channel));
+            }
+        });
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath) throws IOException {
+        acquireCapacity();
+        long id = journal.reserve();
+        Path file = getSpoolFile(id);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(file, CREATE_NEW, WRITE);
+        } catch (IOException | RuntimeException e) {
+            capacity.release();
+            throw e;
+        }
+        return new FilterOutputStream(Channels.newOutputStream(channel)) {
+
+            private boolean closed;
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    try {
+                        channel.force(true);
+                    } finally {
+                        channel.close();
+                    }
+                    commit(id, filePath, file);
+                } catch (IOException | RuntimeException e) {
+                    abort(file);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    @Override
+    public OutputStream openOutputStream(String filePath, String contentEncoding, long decodedSize) throws IOException {
+        if (contentEncoding == null) {
+            return openOutputStream(filePath);
+        }
+        // The journal doesn't keep content encodings, encoded writes go straight to the delegate
+        awaitKey(filePath);
+        return super.openOutputStream(filePath, contentEncoding, decodedSize);
+    }
+
+    @Override
+    public void copyFile(File localFile, String destinationFile) throws IOException {
+        spool(destinationFile, channel -> {
+            try (FileChannel source = FileChannel.open(localFile.toPath(), READ)) {
+                long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    long n = source.transferTo(position, size - position, channel);
+                    if (n <= 0) {
+                        // Truncated since its size was read
+                        break;
+                    }
+                    position += n;
+                }
+            }
+        });
+    }
+
+    @Override
+    public void copyObject(String sourcePath, String destinationPath) throws IOException {
+        awaitKey(sourcePath);
+        awaitKey(destinationPath);
+        super.copyObject(sourcePath, destinationPath);
+    }
+
+    @Override
+    public void copyPrefix(String sourceDir, String destDir) throws IOException {
+        awaitPrefix(sourceDir);
+        awaitPrefix(destDir);
+        super.copyPrefix(sourceDir, destDir);
+    }
+
+    @Override
+    public List<String> listFilesFromFolder(String folderPath) {
+        awaitPrefix(folderPath);
+        return super.listFilesFromFolder(folderPath);
+    }
+
+    @Override
+    public Stream<FileEntry> listFiles(String folderPath) {
+        awaitPrefix(folderPath);
+        return super.listFiles(folderPath);
+    }
+
+    @Override
+    public void deleteFile(String filePath) {
+        awaitKey(filePath);
+        super.deleteFile(filePath);
+    }
+
+    @Override
+    public DeleteResult deleteFiles(Collection<String> filePaths) {
+        awaitKeys(filePaths);
+        return super.deleteFiles(filePaths);
+    }
+
+    @Override
+    public boolean isFile(String filePath) {
+        awaitKey(filePath);
+        return super.isFile(filePath);
+    }
+
+    @Override
+    public Map<String, Boolean> existAll(Collection<String> filePaths) {
+        awaitKeys(filePaths);
+        return super.existAll(filePaths);
+    }
+
+    @Override
+    public FileEntry getMetadata(String filePath) throws IOException {
+        awaitKey(filePath);
+        return super.getMetadata(filePath);
+    }
+
+    @Override
+    public void cleanDirectory(String dirPath) {
+        awaitPrefix(dirPath);
+        super.cleanDirectory(dirPath);
+    }
+
+    @Override
+    public void copyDirectory(String sourceDir, String destDir) {
+        awaitPrefix(destDir);
+        super.copyDirectory(sourceDir, destDir);
+    }
+
+    /**
+     * Stops the uploads, the writes still pending are replayed on the next start.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        workers.shutdownNow();
+        journal.close();
+    }
+
+    private interface SpoolWriter {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    private void spool(String key, SpoolWriter writer) throws IOException {
+        acquireCapacity();
+        long id = journal.reserve();
+        Path file = getSpoolFile(id);
+        try {
+            try (FileChannel channel = FileChannel.open(file, CREATE_NEW, WRITE)) {
+                writer.write(channel);
+                channel.force(true);
+            }
+            commit(id, key, file);
+        } catch (IOException | RuntimeException e) {
+            abort(file);
+            throw e;
+        }
+    }
+
+    // Acknowledges a write whose spool file is complete and synced
+    private void commit(long id, String key, Path file) throws IOException {
+        // The spool file must still be there after a crash once the write is journaled
+        try (FileChannel directory = FileChannel.open(spoolDirectory, READ)) {
+            directory.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a directory
+            LOGGER.debug("Unable to sync directory {}", spoolDirectory, e);
+        }
+        // Writes of a key are uploaded in the order they are journaled, which is the order they are replayed in
+        synchronized (journal) {
+            journal.append(id, key);
+            enqueue(new PendingWrite(id, key, file));
+        }
+    }
+
+    private void abort(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to delete spool file {}", file, e);
+        }
+        capacity.release();
+    }
+
+    private void acquireCapacity() throws IOException {
+        if (closed) {
+            throw new IOException("Write-behind file system is closed");
+        }
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for pending writes to be uploaded");
+        }
+    }
+
+    private void enqueue(PendingWrite write) {
+        latest.put(write.key, write);
+        outstanding.add(write);
+        queues.get(Math.floorMod(write.key.hashCode(), queues.size())).add(write);
+    }
+
+    private void drain(BlockingQueue<PendingWrite> queue) {
+        List<PendingWrite> batch = new ArrayList<>(batchSize);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            List<Long> done = new ArrayList<>(batch.size());
+            for (PendingWrite write : batch) {
+                if (!upload(write)) {
+                    // Closed while retrying, the rest of the batch is replayed on the next start
+                    break;
+                }
+                if (write.failure != null) {
+                    keepFailed(write);
+                }
+                done.add(write.id);
+            }
+            try {
+                journal.complete(done);
+            } catch (IOException e) {
+                // The uploads are settled, replaying them would only upload the same content again
+                LOGGER.error("Unable to journal {} settled writes", done.size(), e);
+            }
+            for (PendingWrite write : batch.subList(0, done.size())) {
+                finish(write);
+            }
+            batch.clear();
+        }
+    }
+
+    // Returns whether the write is settled, uploaded or failed, rather than interrupted by close
+    private boolean upload(PendingWrite write) {
+        for (int attempt = 1; ; attempt++) {
+            if (latest.get(write.key) != write) {
+                // Superseded by a newer write of the same key, queued behind it on this worker
+                return true;
+            }
+            try {
+                super.copyFile(write.file.toFile(), write.key);
+                return true;
+            } catch (IOException | RuntimeException e) {
+                if (attempt >= maxAttempts || isPermanent(e)) {
+                    LOGGER.error("Unable to upload {} after {} attempts, giving up", write.key, attempt, e);
+                    write.failure = e;
+                    return true;
+                }
+                long delay = Math.min(MAX_RETRY_DELAY_MILLIS, 1000L << Math.min(attempt - 1, 16));
+                LOGGER.warn("Unable to upload {}, retrying in {} ms", write.key, delay, e);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    return false;
+                }
+                if (closed) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    // Errors which retrying can't fix, such as a denied access or a missing bucket
+    private static boolean isPermanent(Exception e) {
+        if (e instanceof AmazonServiceException) {
+            AmazonServiceException serviceException = (AmazonServiceException) e;
+            return serviceException.getErrorType() == AmazonServiceException.ErrorType.Client
+                    && !RetryUtils.isRetryableServiceException(serviceException)
+                    && !RetryUtils.isThrottlingException(serviceException)
+                    && !RetryUtils.isClockSkewError(serviceException);
+        }
+        return e instanceof AccessDeniedException;
+    }
+
+    // Moves the spool file of a failed write out of the way, for its content not to be lost
+    private void keepFailed(PendingWrite write) {
+        Path file = failedDirectory.resolve(write.id + SPOOL_SUFFIX);
+        try {
+            Files.move(write.file, file, StandardCopyOption.REPLACE_EXISTING);
+            LOGGER.error("Content of the failed write of {} is kept in {}", write.key, file);
+        } catch (IOException e) {
+            LOGGER.error("Unable to keep the content of the failed write of {}", write.key, e);
+        }
+    }
+
+    private void finish(PendingWrite write) {
+        latest.remove(write.key, write);
+        outstanding.remove(write);
+        try {
+            Files.deleteIfExists(write.file);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to delete spool file {}", write.file, e);
+        }
+        capacity.release();
+        if (write.failure != null) {
+            write.done.completeExceptionally(write.failure);
+        } else {
+            write.done.complete(null);
+        }
+    }
+
+    private CompletableFuture<Void> pendingWrites(Predicate<String> keys) {
+        return CompletableFuture.allOf(outstanding.stream()
+                .filter(x -> keys.test(x.key))
+                .map(x -> x.done)
+                .toArray(CompletableFuture[]::new));
+    }
+
+    private void awaitKey(String filePath) {
+        awaitKeys(Collections.singleton(filePath));
+    }
+
+    private void awaitKeys(Collection<String> filePaths) {
+        Set<String> keys = filePaths instanceof Set ? (Set<String>) filePaths : new HashSet<>(filePaths);
+        await(pendingWrites(keys::contains));
+    }
+
+    private void awaitPrefix(String prefix) {
+        await(pendingWrites(x -> x.startsWith(prefix)));
+    }
+
+    private void await(CompletableFuture<Void> writes) {
+        try {
+            writes.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for pending writes to be uploaded", e);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Timed out waiting for pending writes to be uploaded");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Pending write failed", e.getCause());
+        }
+    }
+
+    private Path getSpoolFile(long id) {
+        return spoolDirectory.resolve(id + SPOOL_SUFFIX);
+    }
+
+    private static long getId(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SPOOL_SUFFIX.length()));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class PendingWrite {
+
+        private final long id;
+
+        private final String key;
+
+        private final Path file;
+
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        // Set by the worker once the upload is given up
+        private Exception failure;
+
+        private PendingWrite(long id, String key, Path file) {
+            this.id = id;
+            this.key = key;
+            this.file = file;
+        }
+    }
+}
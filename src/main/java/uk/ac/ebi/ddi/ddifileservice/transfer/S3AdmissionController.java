@@ -0,0 +1,177 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side rate limiting of the S3 client, shared by every component using it. Each kind of request
+ * draws from its own token bucket, whose rate is tuned AIMD style: it grows by a fixed step per second
+ * while requests succeed, and is halved when the backend throttles, at most once per adjustment window so
+ * that the burst of SlowDown answers to the requests already in flight counts as a single signal.
+ * Every attempt is admitted, retries included, so the rate seen by the backend stays under the budget.
+ */
+public class S3AdmissionController extends RequestHandler2 {
+
+    public enum Budget { GET, PUT, LIST, DELETE }
+
+    private static final int SERVICE_UNAVAILABLE = 503;
+
+    private static final long ADJUSTMENT_WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Map<Budget, TokenBucket> buckets = new EnumMap<>(Budget.class);
+
+    /**
+     * @param maxRates          upper bound of the rate of each budget, in requests per second
+     * @param increasePerSecond rate added to a budget every second without throttling
+     */
+    public S3AdmissionController(double initialRate, double minRate, Map<Budget, Double> maxRates,
+                                 double increasePerSecond) {
+        for (Budget budget : Budget.values()) {
+            double maxRate = maxRates.getOrDefault(budget, Double.MAX_VALUE);
+            buckets.put(budget, new TokenBucket(Math.min(initialRate, maxRate), minRate, maxRate, increasePerSecond));
+        }
+    }
+
+    @Override
+    public void beforeAttempt(HandlerBeforeAttemptContext context) {
+        long waitNanos = buckets.get(getBudget(context.getRequest())).reserve();
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                // The client checks the interrupt flag and aborts the request itself
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void afterAttempt(HandlerAfterAttemptContext context) {
+        TokenBucket bucket = buckets.get(getBudget(context.getRequest()));
+        Exception exception = context.getException();
+        if (exception == null) {
+            bucket.onSuccess();
+        } else if (isThrottling(exception)) {
+            bucket.onThrottled();
+        }
+    }
+
+    public double getRate(Budget budget) {
+        return buckets.get(budget).getRate();
+    }
+
+    public long getThrottled(Budget budget) {
+        return buckets.get(budget).getThrottled();
+    }
+
+    static Budget getBudget(Request<?> request) {
+        AmazonWebServiceRequest original = request.getOriginalRequest();
+        if (original instanceof ListObjectsV2Request || original instanceof ListObjectsRequest) {
+            return Budget.LIST;
+        }
+        if (original instanceof DeleteObjectsRequest || original instanceof AbortMultipartUploadRequest) {
+            return Budget.DELETE;
+        }
+        switch (request.getHttpMethod()) {
+            case PUT:
+            case POST:
+                return Budget.PUT;
+            case DELETE:
+                return Budget.DELETE;
+            default:
+                return Budget.GET;
+        }
+    }
+
+    private static boolean isThrottling(Exception exception) {
+        return exception instanceof SdkBaseException && RetryUtils.isThrottlingException((SdkBaseException) exception)
+                || exception instanceof AmazonServiceException
+                && ((AmazonServiceException) exception).getStatusCode() == SERVICE_UNAVAILABLE;
+    }
+
+    private static class TokenBucket {
+
+        private final double minRate;
+
+        private final double maxRate;
+
+        private final double increasePerSecond;
+
+        private double rate;
+
+        // Negative when requests are waiting for tokens which have already been handed out to them
+        private double tokens;
+
+        private long refilledAt = System.nanoTime();
+
+        private long adjustedAt = refilledAt;
+
+        private long throttled;
+
+        private TokenBucket(double initialRate, double minRate, double maxRate, double increasePerSecond) {
+            this.minRate = Math.max(minRate, 0.1);
+            this.maxRate = Math.max(maxRate, this.minRate);
+            this.increasePerSecond = increasePerSecond;
+            this.rate = Math.max(initialRate, this.minRate);
+            this.tokens = 1;
+        }
+
+        // Takes a token, returning how long to wait for it
+        private synchronized long reserve() {
+            refill(System.nanoTime());
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+
+        private synchronized void onSuccess() {
+            long now = System.nanoTime();
+            if (now - adjustedAt >= ADJUSTMENT_WINDOW_NANOS) {
+                refill(now);
+                // Idle time isn't evidence of spare capacity, at most a second of increase is granted at once
+                double seconds = Math.min(1, (now - adjustedAt) / 1e9);
+                rate = Math.min(maxRate, rate + increasePerSecond * seconds);
+                adjustedAt = now;
+            }
+        }
+
+        private synchronized void onThrottled() {
+            throttled++;
+            long now = System.nanoTime();
+            if (now - adjustedAt >= ADJUSTMENT_WINDOW_NANOS) {
+                refill(now);
+                rate = Math.max(minRate, rate / 2);
+                // Requests already waiting keep their turn, but no burst is allowed until the backlog is absorbed
+                tokens = Math.min(tokens, 0);
+                adjustedAt = now;
+            }
+        }
+
+        private void refill(long now) {
+            // At most one second of burst
+            tokens = Math.min(Math.max(1, rate), tokens + rate * (now - refilledAt) / 1e9);
+            refilledAt = now;
+        }
+
+        private synchronized double getRate() {
+            return rate;
+        }
+
+        private synchronized long getThrottled() {
+            return throttled;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Deletes keys with DeleteObjects requests of up to 1000 keys, the maximum accepted by S3, sending up to
+ * concurrency of them in parallel. Keys are consumed lazily, so deletion of the first batches starts
+ * while the source, typically a listing, is still producing the next ones.
+ */
+public class S3BatchDeleter {
+
+    public static final int MAX_BATCH_SIZE = 1000;
+
+    private final AmazonS3 s3Client;
+
+    private final String bucketName;
+
+    private final int concurrency;
+
+    private final ExecutorService executor;
+
+    public S3BatchDeleter(AmazonS3 s3Client, String bucketName, int concurrency, ExecutorService executor) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = executor;
+    }
+
+    public DeleteResult delete(Iterator<String> keys) {
+        DeleteResult result = new DeleteResult();
+        Semaphore inFlight = new Semaphore(concurrency);
+        try {
+            while (keys.hasNext()) {
+                List<String> batch = new ArrayList<>(MAX_BATCH_SIZE);
+                while (batch.size() < MAX_BATCH_SIZE && keys.hasNext()) {
+                    batch.add(keys.next());
+                }
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        deleteBatch(batch, result);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            // Wait for the last batches
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while deleting files", e);
+        }
+        return result;
+    }
+
+    private void deleteBatch(List<String> batch, DeleteResult result) {
+        try {
+            s3Client.deleteObjects(new DeleteObjectsRequest(bucketName)
+                    .withKeys(batch.toArray(new String[0]))
+                    .withQuiet(true));
+            result.addDeleted(batch.size());
+        } catch (MultiObjectDeleteException e) {
+            e.getErrors().forEach(x -> result.addFailure(x.getKey(), x.getCode() + ": " + x.getMessage()));
+            result.addDeleted(batch.size() - e.getErrors().size());
+        } catch (AmazonClientException e) {
+            batch.forEach(x -> result.addFailure(x, e.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.Headers;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.ddi.ddifileservice.utils.Checksums;
+import uk.ac.ebi.ddi.ddifileservice.utils.Crc32c;
+import uk.ac.ebi.ddi.ddifileservice.utils.ETags;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Verifies the content of an S3 object as it is read in order. The CRC-32C stored in the metadata by this
+ * service is preferred, as it is much cheaper to compute, otherwise the content is checked against its ETag,
+ * which is only derived from the content for objects which aren't encrypted with KMS or customer keys.
+ */
+public class S3ContentVerifier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3ContentVerifier.class);
+
+    private final String expected;
+
+    private final Crc32c crc32c;
+
+    private final ETags.Verifier eTagVerifier;
+
+    private S3ContentVerifier(String expected, Crc32c crc32c, ETags.Verifier eTagVerifier) {
+        this.expected = expected;
+        this.crc32c = crc32c;
+        this.eTagVerifier = eTagVerifier;
+    }
+
+    /**
+     * Returns a verifier of the object, or null if there is nothing to verify its content against. The part
+     * size of multipart uploads is the one recorded in the metadata by this service, or else read from the
+     * first part, which takes a request.
+     *
+     * @param singlePartETag whether to check against the ETag of objects uploaded in a single request, which
+     *                       the SDK already verifies on plain, non ranged, downloads
+     */
+    public static S3ContentVerifier forObject(AmazonS3 s3Client, String bucketName, String key,
+                                              ObjectMetadata metadata, boolean singlePartETag) {
+        String crc32c = metadata.getUserMetaDataOf(Checksums.CRC32C_METADATA);
+        if (crc32c != null) {
+            return new S3ContentVerifier(crc32c, new Crc32c(), null);
+        }
+        String eTag = metadata.getETag();
+        if (eTag == null || "aws:kms".equals(metadata.getRawMetadataValue(Headers.SERVER_SIDE_ENCRYPTION))
+                || metadata.getRawMetadataValue(Headers.SERVER_SIDE_ENCRYPTION_CUSTOMER_ALGORITHM) != null) {
+            return null;
+        }
+        ETags.Verifier verifier;
+        if (eTag.indexOf('-') < 0) {
+            verifier = singlePartETag ? ETags.newVerifier(eTag, metadata.getContentLength()) : null;
+        } else {
+            long partSize = getPartSize(metadata);
+            if (partSize <= 0) {
+                partSize = getFirstPartSize(s3Client, bucketName, key);
+            }
+            verifier = partSize > 0 ? ETags.newVerifier(eTag, metadata.getContentLength(), partSize) : null;
+        }
+        return verifier == null ? null : new S3ContentVerifier(eTag, null, verifier);
+    }
+
+    /**
+     * Part size recorded in the user metadata of objects uploaded in parts, -1 if it isn't known.
+     */
+    public static long getPartSize(ObjectMetadata metadata) {
+        String partSize = metadata.getUserMetaDataOf(Checksums.PART_SIZE_METADATA);
+        try {
+            return partSize == null ? -1 : Long.parseLong(partSize);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Parts are taken to all have the size of the first one but the last, as uploaded by the SDK
+    private static long getFirstPartSize(AmazonS3 s3Client, String bucketName, String key) {
+        try {
+            return s3Client.getObjectMetadata(new GetObjectMetadataRequest(bucketName, key).withPartNumber(1))
+                    .getContentLength();
+        } catch (AmazonClientException e) {
+            LOGGER.warn("Unable to get the part size of {}, its content won't be verified", key, e);
+            return -1;
+        }
+    }
+
+    public void update(byte[] b, int off, int len) {
+        if (crc32c != null) {
+            crc32c.update(b, off, len);
+        } else {
+            eTagVerifier.update(b, off, len);
+        }
+    }
+
+    public void update(ByteBuffer buffer) {
+        if (crc32c != null) {
+            crc32c.update(buffer);
+        } else {
+            eTagVerifier.update(buffer);
+        }
+    }
+
+    /**
+     * Checks the content read so far, which must be the whole object. Can only be called once.
+     */
+    public void verify(String key) throws IOException {
+        boolean matches = crc32c != null ? Checksums.toHex(crc32c).equals(expected) : eTagVerifier.matches();
+        if (!matches) {
+            throw new IOException("Content of " + key + " doesn't match its checksum " + expected);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.utils.Checksums;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+
+/**
+ * Copies objects inside the bucket on the server side, so that no object data goes through the JVM.
+ * Objects over the multipart threshold, which CopyObject can't handle over 5 GB, are copied as parts
+ * with UploadPartCopy.
+ */
+public class S3Copier {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3Copier.class);
+
+    private final AmazonS3 s3Client;
+
+    private final String bucketName;
+
+    private final long multipartThreshold;
+
+    private final long partSize;
+
+    private final int concurrency;
+
+    private final ExecutorService executor;
+
+    public S3Copier(AmazonS3 s3Client, String bucketName, long multipartThreshold, long partSize,
+                    int concurrency, ExecutorService executor) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.multipartThreshold = multipartThreshold;
+        this.partSize = partSize;
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = executor;
+    }
+
+    public void copy(String sourceKey, String destinationKey) throws IOException {
+        ObjectMetadata metadata = s3Client.getObjectMetadata(bucketName, sourceKey);
+        copy(sourceKey, metadata.getContentLength(), destinationKey);
+    }
+
+    public void copy(String sourceKey, long size, String destinationKey) throws IOException {
+        if (size <= multipartThreshold) {
+            s3Client.copyObject(bucketName, sourceKey, bucketName, destinationKey);
+        } else {
+            copyMultipart(sourceKey, size, destinationKey);
+        }
+    }
+
+    /**
+     * Copies every object under the source prefix to the same relative key under the destination prefix,
+     * with at most concurrency copies in flight.
+     *
+     * @return the number of copied objects
+     */
+    public long copyPrefix(Stream<FileEntry> sources, String sourcePrefix, String destinationPrefix)
+            throws IOException {
+        Semaphore inFlight = new Semaphore(concurrency);
+        Map<String, String> failures = new ConcurrentHashMap<>();
+        long count = 0;
+        try {
+            Iterator<FileEntry> iterator = sources.iterator();
+            while (iterator.hasNext()) {
+                FileEntry source = iterator.next();
+                String destinationKey = destinationPrefix + source.getPath().substring(sourcePrefix.length());
+                inFlight.acquire();
+                executor.execute(() -> {
+                    try {
+                        copy(source.getPath(), source.getSize(), destinationKey);
+                    } catch (IOException | RuntimeException e) {
+                        failures.put(source.getPath(), e.getMessage() == null ? e.toString() : e.getMessage());
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+                count++;
+            }
+            inFlight.acquire(concurrency);
+            inFlight.release(concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while copying " + sourcePrefix);
+        }
+        if (!failures.isEmpty()) {
+            throw new IOException("Unable to copy " + failures.size() + " of " + count + " objects from "
+                    + sourcePrefix + " to " + destinationPrefix + ": " + failures);
+        }
+        return count;
+    }
+
+    private void copyMultipart(String sourceKey, long size, String destinationKey) throws IOException {
+        // Unlike CopyObject, a multipart copy doesn't carry the headers of the source over
+        ObjectMetadata source = s3Client.getObjectMetadata(bucketName, sourceKey);
+        ObjectMetadata metadata = new ObjectMetadata();
+        if (source.getContentType() != null) {
+            metadata.setContentType(source.getContentType());
+        }
+        if (source.getContentEncoding() != null) {
+            metadata.setContentEncoding(source.getContentEncoding());
+        }
+        metadata.setUserMetadata(source.getUserMetadata());
+        // The copy is made of parts of its own size, which its ETag is verified with
+        metadata.addUserMetadata(Checksums.PART_SIZE_METADATA, String.valueOf(partSize));
+        String uploadId = s3Client.initiateMultipartUpload(
+                new InitiateMultipartUploadRequest(bucketName, destinationKey, metadata)).getUploadId();
+        int partCount = (int) ((size + partSize - 1) / partSize);
+        List<Future<PartETag>> parts = new ArrayList<>(partCount);
+        Semaphore inFlight = new Semaphore(concurrency);
+        try {
+            for (int i = 0; i < partCount; i++) {
+                long firstByte = i * partSize;
+                long lastByte = Math.min(firstByte + partSize, size) - 1;
+                int partNumber = i + 1;
+                inFlight.acquire();
+                parts.add(executor.submit(() -> {
+                    try {
+                        return s3Client.copyPart(new CopyPartRequest()
+                                .withSourceBucketName(bucketName)
+                                .withSourceKey(sourceKey)
+                                .withDestinationBucketName(bucketName)
+                                .withDestinationKey(destinationKey)
+                                .withUploadId(uploadId)
+                                .withPartNumber(partNumber)
+                                .withFirstByte(firstByte)
+                                .withLastByte(lastByte)).getPartETag();
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            List<PartETag> eTags = new ArrayList<>(partCount);
+            for (Future<PartETag> part : parts) {
+                eTags.add(part.get());
+            }
+            s3Client.completeMultipartUpload(
+                    new CompleteMultipartUploadRequest(bucketName, destinationKey, uploadId, eTags));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(destinationKey, uploadId, parts);
+            throw new InterruptedIOException("Interrupted while copying " + sourceKey);
+        } catch (ExecutionException e) {
+            abort(destinationKey, uploadId, parts);
+            throw new IOException("Unable to copy " + sourceKey + " to " + destinationKey, e.getCause());
+        } catch (RuntimeException e) {
+            abort(destinationKey, uploadId, parts);
+            throw e;
+        }
+    }
+
+    private void abort(String destinationKey, String uploadId, List<Future<PartETag>> parts) {
+        parts.forEach(x -> x.cancel(true));
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, destinationKey, uploadId));
+        } catch (AmazonClientException e) {
+            LOGGER.error("Unable to abort multipart copy {} to {}", uploadId, destinationKey, e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks the existence of many keys at once. Keys are grouped by folder, and folders with enough of them
+ * are listed from the longest prefix their keys share, each page answering up to 1000 keys. A listing
+ * stops after a budget of pages proportional to the number of keys it has to answer, so that it never
+ * costs much more than the HEADs it replaces; the keys it didn't reach, and the ones of small folders,
+ * are checked with HEADs. At most concurrency requests are in flight.
+ */
+public class S3ExistenceChecker {
+
+    // A list page costs about as much as this number of HEADs, folders with fewer keys use HEADs
+    private static final int HEADS_PER_LIST_PAGE = 10;
+
+    private static final String DELIMITER = "/";
+
+    private final AmazonS3 s3Client;
+
+    private final String bucketName;
+
+    private final int concurrency;
+
+    private final ExecutorService executor;
+
+    public S3ExistenceChecker(AmazonS3 s3Client, String bucketName, int concurrency, ExecutorService executor) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = executor;
+    }
+
+    public Map<String, Boolean> check(Collection<String> keys) {
+        Map<String, NavigableSet<String>> folders = new HashMap<>();
+        for (String key : keys) {
+            String folder = key.substring(0, key.lastIndexOf('/') + 1);
+            folders.computeIfAbsent(folder, x -> new TreeSet<>()).add(key);
+        }
+        Map<String, Boolean> result = new ConcurrentHashMap<>();
+        Queue<String> remaining = new ConcurrentLinkedQueue<>();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        Semaphore inFlight = new Semaphore(concurrency);
+
+        for (NavigableSet<String> folderKeys : folders.values()) {
+            if (folderKeys.size() < HEADS_PER_LIST_PAGE) {
+                remaining.addAll(folderKeys);
+            } else {
+                run(inFlight, failure, () -> remaining.addAll(list(folderKeys, result)));
+            }
+        }
+        await(inFlight);
+        for (String key : remaining) {
+            run(inFlight, failure, () -> result.put(key, s3Client.doesObjectExist(bucketName, key)));
+        }
+        await(inFlight);
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return result;
+    }
+
+    // Answers the keys the listing reaches within its budget, and returns the others
+    private Collection<String> list(NavigableSet<String> keys, Map<String, Boolean> result) {
+        int budget = Math.max(1, keys.size() / HEADS_PER_LIST_PAGE);
+        String lastKey = keys.last();
+        String prefix = commonPrefix(keys.first(), lastKey);
+        String listedUpTo = null;
+        String continuationToken = null;
+        for (int pages = 0; pages < budget; pages++) {
+            ListObjectsV2Result page = s3Client.listObjectsV2(new ListObjectsV2Request()
+                    .withBucketName(bucketName)
+                    .withPrefix(prefix)
+                    .withDelimiter(DELIMITER)
+                    .withContinuationToken(continuationToken));
+            for (S3ObjectSummary summary : page.getObjectSummaries()) {
+                if (keys.contains(summary.getKey())) {
+                    result.put(summary.getKey(), true);
+                }
+                listedUpTo = max(listedUpTo, summary.getKey());
+            }
+            for (String commonPrefix : page.getCommonPrefixes()) {
+                listedUpTo = max(listedUpTo, commonPrefix);
+            }
+            if (!page.isTruncated()) {
+                keys.forEach(x -> result.putIfAbsent(x, false));
+                return Collections.emptyList();
+            }
+            continuationToken = page.getNextContinuationToken();
+            if (listedUpTo != null && listedUpTo.compareTo(lastKey) >= 0) {
+                break;
+            }
+        }
+        // Keys up to the last listed one which weren't listed don't exist
+        NavigableSet<String> reached = listedUpTo == null ? Collections.emptyNavigableSet()
+                : keys.headSet(listedUpTo, true);
+        reached.forEach(x -> result.putIfAbsent(x, false));
+        return listedUpTo == null ? keys : keys.tailSet(listedUpTo, false);
+    }
+
+    private void run(Semaphore inFlight, AtomicReference<RuntimeException> failure, Runnable task) {
+        acquire(inFlight, 1);
+        executor.execute(() -> {
+            try {
+                if (failure.get() == null) {
+                    task.run();
+                }
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void await(Semaphore inFlight) {
+        acquire(inFlight, concurrency);
+        inFlight.release(concurrency);
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while checking files", e);
+        }
+    }
+
+    private static String commonPrefix(String first, String last) {
+        int length = 0;
+        while (length < Math.min(first.length(), last.length()) && first.charAt(length) == last.charAt(length)) {
+            length++;
+        }
+        return first.substring(0, length);
+    }
+
+    private static String max(String a, String b) {
+        return a == null || b.compareTo(a) > 0 ? b : a;
+    }
+}
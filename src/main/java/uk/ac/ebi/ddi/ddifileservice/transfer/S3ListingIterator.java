@@ -0,0 +1,95 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+/**
+ * Iterates over the objects under a prefix page by page, using ListObjectsV2 continuation tokens. The
+ * next page is requested in the background as soon as the current one arrives, so at most two pages
+ * are held in memory while the caller consumes the current one.
+ */
+public class S3ListingIterator implements Iterator<FileEntry>, Closeable {
+
+    private final AmazonS3 s3Client;
+
+    private final String bucketName;
+
+    private final String prefix;
+
+    private final ExecutorService executor;
+
+    private Iterator<S3ObjectSummary> current = Collections.emptyIterator();
+
+    private Future<ListObjectsV2Result> nextPage;
+
+    public S3ListingIterator(AmazonS3 s3Client, String bucketName, String prefix, ExecutorService executor) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.prefix = prefix;
+        this.executor = executor;
+        this.nextPage = fetch(null);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (nextPage == null) {
+                return false;
+            }
+            ListObjectsV2Result page = await(nextPage);
+            nextPage = page.isTruncated() ? fetch(page.getNextContinuationToken()) : null;
+            current = page.getObjectSummaries().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public FileEntry next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        S3ObjectSummary summary = current.next();
+        return new FileEntry(summary.getKey(), summary.getSize(),
+                summary.getLastModified() == null ? 0 : summary.getLastModified().getTime(), summary.getETag());
+    }
+
+    @Override
+    public void close() {
+        if (nextPage != null) {
+            nextPage.cancel(true);
+            nextPage = null;
+        }
+        current = Collections.emptyIterator();
+    }
+
+    private Future<ListObjectsV2Result> fetch(String continuationToken) {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withPrefix(prefix)
+                .withContinuationToken(continuationToken);
+        return executor.submit(() -> s3Client.listObjectsV2(request));
+    }
+
+    private ListObjectsV2Result await(Future<ListObjectsV2Result> page) {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while listing " + prefix, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to list " + prefix, e.getCause());
+        }
+    }
+}
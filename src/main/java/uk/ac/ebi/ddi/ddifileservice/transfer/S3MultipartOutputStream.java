@@ -0,0 +1,283 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.ddi.ddifileservice.type.PooledOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.utils.BufferPool;
+import uk.ac.ebi.ddi.ddifileservice.utils.Checksums;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Streams data to S3 as a multipart upload. The stream is cut into parts of a fixed size which are
+ * uploaded concurrently, each part being held in chunks of a BufferPool which go back to it once the part
+ * is uploaded. Writers block while concurrency + 1 parts are in flight, so memory usage is bounded by
+ * partSize * (concurrency + 1)
+ * whatever the size of the object. Objects smaller than one part are sent with a single putObject. Once a
+ * write has failed, close() aborts the upload instead of storing what was written before.
+ *
+ * With checksums, every request carries the Content-MD5 of its content, computed by the thread sending it,
+ * for S3 to reject corrupted parts, and single requests also store the CRC-32C verified on download.
+ * Multipart uploads record their part size, which their ETag is verified with.
+ */
+public class S3MultipartOutputStream extends OutputStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3MultipartOutputStream.class);
+
+    // S3 rejects the completion of uploads whose parts, but the last, are smaller
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final AmazonS3 s3Client;
+
+    private final String bucketName;
+
+    private final String key;
+
+    private final String contentEncoding;
+
+    private final long decodedSize;
+
+    private final int partSize;
+
+    private final boolean checksums;
+
+    private final ExecutorService executor;
+
+    private final BufferPool pool;
+
+    // Parts which can still be held before writers block
+    private final Semaphore freeParts;
+
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private int checkedParts;
+
+    private PooledOutputStream current;
+
+    private String uploadId;
+
+    private boolean closed;
+
+    private boolean failed;
+
+    public S3MultipartOutputStream(AmazonS3 s3Client, String bucketName, String key,
+                                   int partSize, int concurrency, ExecutorService executor) {
+        this(s3Client, bucketName, key, null, partSize, concurrency, executor);
+    }
+
+    public S3MultipartOutputStream(AmazonS3 s3Client, String bucketName, String key, String contentEncoding,
+                                   int partSize, int concurrency, ExecutorService executor) {
+        this(s3Client, bucketName, key, contentEncoding, -1, partSize, concurrency, true, executor,
+                new BufferPool(BufferPool.DEFAULT_CHUNK_SIZE, 0, false));
+    }
+
+    /**
+     * @param contentEncoding Content-Encoding of the object, or null
+     * @param decodedSize size of the content once decoded, recorded in the object metadata, or -1 if unknown
+     * @param checksums whether to send checksums of the content
+     * @param pool the pool the parts are held in
+     */
+    public S3MultipartOutputStream(AmazonS3 s3Client, String bucketName, String key, String contentEncoding,
+                                   long decodedSize, int partSize, int concurrency, boolean checksums,
+                                   ExecutorService executor, BufferPool pool) {
+        if (partSize < MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size " + partSize + " of " + key
+                    + " is smaller than the minimum of S3, " + MIN_PART_SIZE);
+        }
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.key = key;
+        this.contentEncoding = contentEncoding;
+        this.decodedSize = decodedSize;
+        this.partSize = partSize;
+        this.checksums = checksums;
+        this.executor = executor;
+        this.pool = pool;
+        this.freeParts = new Semaphore(Math.max(1, concurrency) + 1);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        try {
+            ensureWritable();
+            current.write(b);
+            if (current.getSize() == partSize) {
+                submitPart();
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            while (len > 0) {
+                ensureWritable();
+                int n = Math.min(len, partSize - current.getSize());
+                current.write(b, off, n);
+                off += n;
+                len -= n;
+                if (current.getSize() == partSize) {
+                    submitPart();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (failed) {
+                throw new IOException("Upload of " + key + " aborted after a failed write");
+            }
+            if (uploadId == null) {
+                putSingleObject();
+                return;
+            }
+            if (current != null && current.getSize() > 0) {
+                submitPart();
+            }
+            List<PartETag> eTags = new ArrayList<>(parts.size());
+            for (Future<PartETag> part : parts) {
+                eTags.add(await(part));
+            }
+            s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, key, uploadId, eTags));
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        } finally {
+            if (current != null) {
+                current.release();
+                current = null;
+            }
+        }
+    }
+
+    private void putSingleObject() {
+        ObjectMetadata meta = newMetadata();
+        meta.setContentLength(current == null ? 0 : current.getSize());
+        if (checksums) {
+            Checksums content = new Checksums();
+            if (current != null) {
+                for (ByteBuffer chunk : current.toByteBuffers()) {
+                    content.update(chunk);
+                }
+            }
+            meta.setContentMD5(content.getMd5Base64());
+            meta.addUserMetadata(Checksums.CRC32C_METADATA, content.getCrc32cHex());
+        }
+        s3Client.putObject(bucketName, key,
+                current == null ? new ByteArrayInputStream(new byte[0]) : current.toInputStream(), meta);
+    }
+
+    private ObjectMetadata newMetadata() {
+        ObjectMetadata meta = new ObjectMetadata();
+        if (contentEncoding != null) {
+            meta.setContentEncoding(contentEncoding);
+        }
+        if (decodedSize >= 0) {
+            meta.addUserMetadata(Checksums.DECODED_SIZE_METADATA, String.valueOf(decodedSize));
+        }
+        return meta;
+    }
+
+    private void ensureWritable() throws IOException {
+        if (closed) {
+            throw new IOException("Stream already closed for " + key);
+        }
+        if (current == null) {
+            try {
+                freeParts.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an upload buffer for " + key);
+            }
+            current = pool.newOutputStream();
+        }
+    }
+
+    private void submitPart() throws IOException {
+        if (uploadId == null) {
+            ObjectMetadata meta = newMetadata();
+            meta.addUserMetadata(Checksums.PART_SIZE_METADATA, String.valueOf(partSize));
+            uploadId = s3Client.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucketName, key, meta)).getUploadId();
+        }
+        PooledOutputStream part = current;
+        int partNumber = parts.size() + 1;
+        current = null;
+        parts.add(executor.submit(() -> {
+            try {
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(key)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(part.getSize())
+                        .withInputStream(part.toInputStream());
+                if (checksums) {
+                    MessageDigest md5 = Checksums.newDigest("MD5");
+                    for (ByteBuffer chunk : part.toByteBuffers()) {
+                        md5.update(chunk);
+                    }
+                    request.withMD5Digest(Base64.getEncoder().encodeToString(md5.digest()));
+                }
+                return s3Client.uploadPart(request).getPartETag();
+            } finally {
+                part.release();
+                freeParts.release();
+            }
+        }));
+        checkCompletedParts();
+    }
+
+    // Surface failed parts as early as possible rather than at close()
+    private void checkCompletedParts() throws IOException {
+        while (checkedParts < parts.size() && parts.get(checkedParts).isDone()) {
+            await(parts.get(checkedParts++));
+        }
+    }
+
+    private PartETag await(Future<PartETag> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading " + key);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to upload part of " + key, e.getCause());
+        }
+    }
+
+    private void abort() {
+        if (uploadId == null) {
+            return;
+        }
+        parts.forEach(x -> x.cancel(true));
+        try {
+            s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, key, uploadId));
+        } catch (RuntimeException e) {
+            LOGGER.error("Unable to abort multipart upload {} of {}", uploadId, key, e);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import uk.ac.ebi.ddi.ddifileservice.type.PooledOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Sequential stream over an S3 object which fetches the next ranges in the background while the
+ * current one is being consumed. At most readAheadParts + 1 ranges are held in memory, in chunks of the
+ * buffer pool of the downloader which go back to it once consumed. The content can be verified as ranges
+ * are consumed.
+ */
+public class S3PrefetchingInputStream extends InputStream {
+
+    private final S3RangedDownloader downloader;
+
+    private final ExecutorService executor;
+
+    private final String key;
+
+    private final String eTag;
+
+    private final long length;
+
+    private final int readAheadParts;
+
+    private final S3ContentVerifier verifier;
+
+    private final Deque<Future<PooledOutputStream>> pending = new ArrayDeque<>();
+
+    private long nextOffset;
+
+    private PooledOutputStream current;
+
+    private InputStream currentStream;
+
+    private boolean closed;
+
+    public S3PrefetchingInputStream(S3RangedDownloader downloader, ExecutorService executor, String key,
+                                    String eTag, long length, int readAheadParts) {
+        this(downloader, executor, key, eTag, length, readAheadParts, null);
+    }
+
+    /**
+     * @param verifier verifier of the content, given every range before its bytes are returned, or null
+     */
+    public S3PrefetchingInputStream(S3RangedDownloader downloader, ExecutorService executor, String key,
+                                    String eTag, long length, int readAheadParts, S3ContentVerifier verifier) {
+        this.downloader = downloader;
+        this.executor = executor;
+        this.key = key;
+        this.eTag = eTag;
+        this.length = length;
+        this.readAheadParts = Math.max(1, readAheadParts);
+        this.verifier = verifier;
+        schedule();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return currentStream.read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        return currentStream.read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return currentStream == null ? 0 : currentStream.available();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseCurrent();
+        for (Future<PooledOutputStream> range : pending) {
+            // Ranges which already arrived go back to the pool, the others are dropped with their chunks
+            if (!range.cancel(true)) {
+                try {
+                    range.get().release();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException | CancellationException e) {
+                    // Nothing was fetched
+                }
+            }
+        }
+        pending.clear();
+    }
+
+    private void releaseCurrent() {
+        if (current != null) {
+            current.release();
+            current = null;
+            currentStream = null;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream already closed for " + key);
+        }
+        while (currentStream == null || currentStream.available() == 0) {
+            releaseCurrent();
+            Future<PooledOutputStream> next = pending.poll();
+            if (next == null) {
+                return false;
+            }
+            current = await(next);
+            currentStream = current.toInputStream();
+            if (verifier != null) {
+                // Hashed while the next ranges are being fetched, the last one is only returned once verified
+                for (ByteBuffer chunk : current.toByteBuffers()) {
+                    verifier.update(chunk);
+                }
+                if (pending.isEmpty() && nextOffset >= length) {
+                    verifier.verify(key);
+                }
+            }
+            schedule();
+        }
+        return true;
+    }
+
+    private void schedule() {
+        while (pending.size() < readAheadParts && nextOffset < length) {
+            long start = nextOffset;
+            long end = Math.min(start + downloader.getPartSize(), length);
+            nextOffset = end;
+            pending.add(executor.submit(() -> downloader.fetchPooledRange(key, eTag, start, end)));
+        }
+    }
+
+    private PooledOutputStream await(Future<PooledOutputStream> range) throws IOException {
+        try {
+            return range.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + key);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException("Unable to read " + key, e.getCause());
+        }
+    }
+}
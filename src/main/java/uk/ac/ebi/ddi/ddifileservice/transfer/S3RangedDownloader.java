@@ -0,0 +1,387 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.GetObjectMetadataRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.ac.ebi.ddi.ddifileservice.type.PooledOutputStream;
+import uk.ac.ebi.ddi.ddifileservice.utils.BufferPool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Downloads S3 objects by splitting them into byte ranges fetched in parallel. Every range is written
+ * at its own offset of a preallocated file, and pinned to the ETag seen when the download started so
+ * that a concurrent overwrite of the object can't produce a mix of two versions.
+ *
+ * Downloaded files can be verified with an S3ContentVerifier. Single range objects are hashed as they
+ * stream in, and retried on mismatch like on any other error. Larger ones are hashed in order by the
+ * calling thread, each range as soon as it and the previous ones are written, while the next ranges are
+ * still downloading, so that verification only adds the hashing of the last range to the download time.
+ */
+public class S3RangedDownloader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(S3RangedDownloader.class);
+
+    private static final int NOT_MODIFIED = 304;
+
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    private final AmazonS3 s3Client;
+
+    private final String bucketName;
+
+    private final int partSize;
+
+    private final int concurrency;
+
+    private final int retries;
+
+    private final boolean verify;
+
+    private final ExecutorService executor;
+
+    private final BufferPool pool;
+
+    public S3RangedDownloader(AmazonS3 s3Client, String bucketName, int partSize, int concurrency,
+                              int retries, ExecutorService executor, BufferPool pool) {
+        this(s3Client, bucketName, partSize, concurrency, retries, false, executor, pool);
+    }
+
+    /**
+     * @param verify whether to verify downloaded files against their stored checksum or ETag
+     * @param pool   the pool the copy buffers and the prefetched ranges are taken from
+     */
+    public S3RangedDownloader(AmazonS3 s3Client, String bucketName, int partSize, int concurrency,
+                              int retries, boolean verify, ExecutorService executor, BufferPool pool) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.partSize = partSize;
+        this.concurrency = Math.max(1, concurrency);
+        this.retries = Math.max(0, retries);
+        this.verify = verify;
+        this.executor = executor;
+        this.pool = pool;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    public ObjectMetadata download(String key, File destination) throws IOException {
+        return downloadIfModified(key, null, destination);
+    }
+
+    /**
+     * Downloads the object unless its current ETag matches the given one, in which case nothing is
+     * written and null is returned.
+     */
+    public ObjectMetadata downloadIfModified(String key, String ifNoneMatch, File destination) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return downloadVersion(key, ifNoneMatch, destination);
+            } catch (ModifiedException e) {
+                // Overwritten since it was looked up, the download starts over with the new version
+                if (attempt >= retries) {
+                    throw e;
+                }
+                LOGGER.warn("Restarting the download of {}: {}", key, e.getMessage());
+            }
+        }
+    }
+
+    private ObjectMetadata downloadVersion(String key, String ifNoneMatch, File destination) throws IOException {
+        GetObjectMetadataRequest request = new GetObjectMetadataRequest(bucketName, key);
+        if (ifNoneMatch != null) {
+            request.putCustomRequestHeader("If-None-Match", ifNoneMatch);
+        }
+        ObjectMetadata metadata;
+        try {
+            metadata = s3Client.getObjectMetadata(request);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == NOT_MODIFIED) {
+                return null;
+            }
+            throw e;
+        }
+        long length = metadata.getContentLength();
+        String eTag = metadata.getETag();
+        try (FileChannel channel = FileChannel.open(destination.toPath(), CREATE, READ, WRITE, TRUNCATE_EXISTING)) {
+            if (length == 0) {
+                return metadata;
+            }
+            // Preallocate so that parts can be written in any order
+            channel.write(ByteBuffer.wrap(new byte[1]), length - 1);
+            int partCount = (int) ((length + partSize - 1) / partSize);
+            if (partCount == 1) {
+                withRetries(key, 0, length, () -> {
+                    S3ContentVerifier verifier = verify
+                            ? S3ContentVerifier.forObject(s3Client, bucketName, key, metadata, true) : null;
+                    copyRange(key, eTag, 0, length, channel, verifier);
+                    if (verifier != null) {
+                        verifier.verify(key);
+                    }
+                    return null;
+                });
+                return metadata;
+            }
+            AtomicInteger nextPart = new AtomicInteger();
+            List<CompletableFuture<Void>> written = new ArrayList<>(partCount);
+            for (int i = 0; i < partCount; i++) {
+                written.add(new CompletableFuture<>());
+            }
+            List<Future<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(concurrency, partCount); i++) {
+                workers.add(executor.submit(() -> {
+                    int part;
+                    while ((part = nextPart.getAndIncrement()) < partCount) {
+                        long start = (long) part * partSize;
+                        long end = Math.min(start + partSize, length);
+                        try {
+                            withRetries(key, start, end, () -> copyRange(key, eTag, start, end, channel, null));
+                            written.get(part).complete(null);
+                        } finally {
+                            // Unblocks the verification of a failed range, whose failure awaitAll reports
+                            written.get(part).cancel(false);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            S3ContentVerifier verifier = verify
+                    ? S3ContentVerifier.forObject(s3Client, bucketName, key, metadata, true) : null;
+            if (verifier != null) {
+                verifyInOrder(key, channel, length, written, verifier, workers, nextPart, partCount);
+            }
+            awaitAll(key, workers, nextPart, partCount);
+            if (verifier != null) {
+                verifier.verify(key);
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Fetches the bytes [start, end) of the object into memory, retrying on failure.
+     */
+    public byte[] fetchRange(String key, String eTag, long start, long end) throws IOException {
+        return withRetries(key, start, end, () -> {
+            byte[] data = new byte[(int) (end - start)];
+            try (InputStream in = openRange(key, eTag, start, end)) {
+                int offset = 0;
+                int n;
+                while (offset < data.length && (n = in.read(data, offset, data.length - offset)) != -1) {
+                    offset += n;
+                }
+                if (offset < data.length) {
+                    throw new EOFException("Premature end of range " + start + "-" + end + " of " + key);
+                }
+            }
+            return data;
+        });
+    }
+
+    /**
+     * Fetches the bytes [start, end) of the object into chunks of the pool, retrying on failure. The
+     * returned stream is to be released once its content is consumed.
+     */
+    public PooledOutputStream fetchPooledRange(String key, String eTag, long start, long end) throws IOException {
+        return withRetries(key, start, end, () -> {
+            PooledOutputStream data = pool.newOutputStream();
+            try (InputStream in = openRange(key, eTag, start, end)) {
+                if (data.readFrom(Channels.newChannel(in), end - start) < end - start) {
+                    throw new EOFException("Premature end of range " + start + "-" + end + " of " + key);
+                }
+                return data;
+            } catch (IOException | RuntimeException e) {
+                data.release();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Reads the object from the start offset into the remaining space of the buffer, with a single ranged
+     * GET. Fewer bytes are read if the object ends first.
+     *
+     * @return the number of bytes read, or -1 if the object ends before the start offset
+     */
+    public int readRange(String key, String eTag, long start, ByteBuffer destination) throws IOException {
+        if (!destination.hasRemaining()) {
+            // An empty range can't be expressed, S3 would answer with the whole object
+            return 0;
+        }
+        int initialPosition = destination.position();
+        long end = start + destination.remaining();
+        return withRetries(key, start, end, () -> {
+            destination.position(initialPosition);
+            try (InputStream in = openRange(key, eTag, start, end)) {
+                ReadableByteChannel source = destination.hasArray() ? null : Channels.newChannel(in);
+                int n;
+                while (destination.hasRemaining()) {
+                    if (source == null) {
+                        n = in.read(destination.array(), destination.arrayOffset() + destination.position(),
+                                destination.remaining());
+                        if (n > 0) {
+                            destination.position(destination.position() + n);
+                        }
+                    } else {
+                        n = source.read(destination);
+                    }
+                    if (n == -1) {
+                        break;
+                    }
+                }
+            } catch (AmazonS3Exception e) {
+                if (e.getStatusCode() == RANGE_NOT_SATISFIABLE) {
+                    return -1;
+                }
+                throw e;
+            }
+            return destination.position() - initialPosition;
+        });
+    }
+
+    // Hashes the written ranges in order, until one of them fails
+    private void verifyInOrder(String key, FileChannel channel, long length, List<CompletableFuture<Void>> written,
+                               S3ContentVerifier verifier, List<Future<Void>> workers, AtomicInteger nextPart,
+                               int partCount) throws IOException {
+        ByteBuffer chunk = pool.acquire();
+        try {
+            long position = 0;
+            for (CompletableFuture<Void> range : written) {
+                range.get();
+                long end = Math.min(position + partSize, length);
+                while (position < end) {
+                    chunk.clear();
+                    chunk.limit((int) Math.min(chunk.capacity(), end - position));
+                    int n = channel.read(chunk, position);
+                    if (n == -1) {
+                        throw new EOFException("Premature end of downloaded file of " + key);
+                    }
+                    chunk.flip();
+                    verifier.update(chunk);
+                    position += n;
+                }
+            }
+        } catch (InterruptedException e) {
+            // awaitAll reports the interruption
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | CancellationException e) {
+            LOGGER.debug("Range of {} failed, stopping verification", key);
+        } catch (IOException | RuntimeException e) {
+            nextPart.set(partCount);
+            workers.forEach(x -> x.cancel(true));
+            throw e;
+        } finally {
+            pool.release(chunk);
+        }
+    }
+
+    private void awaitAll(String key, List<Future<Void>> workers, AtomicInteger nextPart, int partCount)
+            throws IOException {
+        try {
+            for (Future<Void> worker : workers) {
+                worker.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading " + key);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException("Unable to download " + key, e.getCause());
+        } finally {
+            // Stop remaining workers from picking up new parts if any of them failed
+            nextPart.set(partCount);
+            workers.forEach(x -> x.cancel(true));
+        }
+    }
+
+    private Void copyRange(String key, String eTag, long start, long end, FileChannel channel,
+                           S3ContentVerifier verifier) throws IOException {
+        ByteBuffer chunk = pool.acquire();
+        long position = start;
+        try (InputStream in = openRange(key, eTag, start, end);
+             ReadableByteChannel source = Channels.newChannel(in)) {
+            while (position < end) {
+                chunk.clear();
+                chunk.limit((int) Math.min(chunk.capacity(), end - position));
+                if (source.read(chunk) == -1) {
+                    break;
+                }
+                chunk.flip();
+                if (verifier != null) {
+                    verifier.update(chunk.duplicate());
+                }
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+            }
+        } finally {
+            pool.release(chunk);
+        }
+        if (position < end) {
+            throw new EOFException("Premature end of range " + start + "-" + end + " of " + key);
+        }
+        return null;
+    }
+
+    private InputStream openRange(String key, String eTag, long start, long end) throws IOException {
+        GetObjectRequest request = new GetObjectRequest(bucketName, key).withRange(start, end - 1);
+        if (eTag != null) {
+            request = request.withMatchingETagConstraint(eTag);
+        }
+        S3Object object = s3Client.getObject(request);
+        if (object == null) {
+            throw new ModifiedException("Object " + key + " was modified during download");
+        }
+        return object.getObjectContent();
+    }
+
+    private <T> T withRetries(String key, long start, long end, RangeTask<T> task) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return task.run();
+            } catch (InterruptedIOException | ModifiedException e) {
+                // Retrying the same version is bound to fail again
+                throw e;
+            } catch (IOException | AmazonClientException e) {
+                if (attempt >= retries || Thread.currentThread().isInterrupted()) {
+                    throw e instanceof IOException ? (IOException) e
+                            : new IOException("Unable to download range " + start + "-" + end + " of " + key, e);
+                }
+                LOGGER.warn("Retrying range {}-{} of {} after error: {}", start, end, key, e.getMessage());
+            }
+        }
+    }
+
+    private interface RangeTask<T> {
+        T run() throws IOException;
+    }
+
+    private static class ModifiedException extends IOException {
+        private ModifiedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the requests sent by the S3 client, whichever component issued them: s3.requests by request type,
+ * s3.retries for the attempts made after the first one, and s3.errors by request type and status code.
+ *
+ * The client doesn't expose its connection pool, so its usage is approximated by the attempts in flight:
+ * s3.connections.active, and s3.connections.utilization as a ratio of the maximum number of connections.
+ * Streams of GetObject responses hold their connection until closed, which these gauges don't see.
+ */
+public class S3RequestMetrics extends RequestHandler2 {
+
+    private static final HandlerContextKey<Boolean> ATTEMPTED = new HandlerContextKey<>("FileServiceAttempted");
+
+    private final MeterRegistry registry;
+
+    private final Map<Class<?>, Counter> requests = new ConcurrentHashMap<>();
+
+    private final Map<Class<?>, Counter> retries = new ConcurrentHashMap<>();
+
+    private final Map<String, Counter> errors = new ConcurrentHashMap<>();
+
+    private final AtomicInteger activeAttempts = new AtomicInteger();
+
+    public S3RequestMetrics(MeterRegistry registry, int maxConnections) {
+        this.registry = registry;
+        Gauge.builder("s3.connections.active", activeAttempts, AtomicInteger::get)
+                .description("Requests of the S3 client holding a connection")
+                .register(registry);
+        Gauge.builder("s3.connections.utilization", activeAttempts, x -> (double) x.get() / maxConnections)
+                .description("Share of the connection pool of the S3 client in use")
+                .register(registry);
+    }
+
+    @Override
+    public void beforeAttempt(HandlerBeforeAttemptContext context) {
+        activeAttempts.incrementAndGet();
+        Request<?> request = context.getRequest();
+        Class<?> type = request.getOriginalRequest().getClass();
+        if (request.getHandlerContext(ATTEMPTED) == null) {
+            request.addHandlerContext(ATTEMPTED, Boolean.TRUE);
+            requests.computeIfAbsent(type, x -> registry.counter("s3.requests", "request", getName(x))).increment();
+        } else {
+            retries.computeIfAbsent(type, x -> registry.counter("s3.retries", "request", getName(x))).increment();
+        }
+    }
+
+    @Override
+    public void afterAttempt(HandlerAfterAttemptContext context) {
+        activeAttempts.decrementAndGet();
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response, Exception e) {
+        String status = e instanceof AmazonServiceException
+                ? Integer.toString(((AmazonServiceException) e).getStatusCode()) : "client";
+        String type = getName(request.getOriginalRequest().getClass());
+        errors.computeIfAbsent(type + ' ' + status,
+                x -> registry.counter("s3.errors", "request", type, "status", status)).increment();
+    }
+
+    // GetObjectRequest becomes GetObject
+    private static String getName(Class<?> type) {
+        String name = type.getSimpleName();
+        return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+    }
+}
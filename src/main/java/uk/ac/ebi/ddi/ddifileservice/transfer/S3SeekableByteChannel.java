@@ -0,0 +1,183 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Read only channel over an S3 object, fetching it by blocks with ranged GETs pinned to the ETag seen at
+ * opening. The most recently used blocks are kept, so that readers jumping between a few places, like an
+ * index and the data it points to, don't fetch them again, and the next blocks are prefetched as soon as
+ * reads are sequential.
+ */
+public class S3SeekableByteChannel implements SeekableByteChannel {
+
+    private final S3RangedDownloader downloader;
+
+    private final ExecutorService executor;
+
+    private final String key;
+
+    private final String eTag;
+
+    private final long size;
+
+    private final int blockSize;
+
+    private final int readAheadBlocks;
+
+    // Least recently used first
+    private final LinkedHashMap<Long, Future<byte[]>> blocks;
+
+    private long position;
+
+    private long lastBlock = -1;
+
+    private boolean open = true;
+
+    public S3SeekableByteChannel(S3RangedDownloader downloader, ExecutorService executor, String key, String eTag,
+                                 long size, int blockSize, int cacheBlocks, int readAheadBlocks) {
+        this.downloader = downloader;
+        this.executor = executor;
+        this.key = key;
+        this.eTag = eTag;
+        this.size = size;
+        this.blockSize = Math.max(1, blockSize);
+        this.readAheadBlocks = Math.max(0, readAheadBlocks);
+        // Read ahead blocks must not evict the one being read
+        int capacity = Math.max(1, cacheBlocks) + this.readAheadBlocks;
+        this.blocks = new LinkedHashMap<Long, Future<byte[]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Future<byte[]>> eldest) {
+                if (size() > capacity) {
+                    eldest.getValue().cancel(true);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long index = position / blockSize;
+            Future<byte[]> pending = getBlock(index);
+            if (index != lastBlock) {
+                // Moving on to the next block is taken as a sequential read, a header read doesn't prefetch
+                if (index == lastBlock + 1 && lastBlock != -1) {
+                    readAhead(index);
+                }
+                lastBlock = index;
+            }
+            byte[] block = await(pending);
+            int offset = (int) (position - index * blockSize);
+            int n = Math.min(dst.remaining(), block.length - offset);
+            dst.put(block, offset, n);
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() {
+        open = false;
+        for (Iterator<Future<byte[]>> iterator = blocks.values().iterator(); iterator.hasNext(); ) {
+            iterator.next().cancel(true);
+            iterator.remove();
+        }
+    }
+
+    private Future<byte[]> getBlock(long index) {
+        Future<byte[]> block = blocks.get(index);
+        if (block == null) {
+            long start = index * blockSize;
+            long end = Math.min(start + blockSize, size);
+            block = executor.submit(() -> downloader.fetchRange(key, eTag, start, end));
+            blocks.put(index, block);
+        }
+        return block;
+    }
+
+    private void readAhead(long index) {
+        for (long next = index + 1; next <= index + readAheadBlocks && next * blockSize < size; next++) {
+            if (!blocks.containsKey(next)) {
+                getBlock(next);
+            }
+        }
+        // Prefetching made the blocks most recently used, the current one must stay ahead of them
+        blocks.get(index);
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    private byte[] await(Future<byte[]> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + key);
+        } catch (ExecutionException e) {
+            blocks.values().remove(block);
+            throw e.getCause() instanceof IOException
+                    ? (IOException) e.getCause()
+                    : new IOException("Unable to read " + key, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lists a large prefix by splitting it into shards and listing them concurrently. Shards are discovered
+ * breadth first with delimiter listings until there are at least fanOut of them, then listed by a bounded
+ * number of workers, each one having at most one request in flight. Discovery reads a single page of every
+ * prefix: a prefix with more direct children than that is flat, and is listed whole as one shard.
+ *
+ * In ordered mode entries are returned in key order: shards are claimed and consumed in key order, and
+ * every shard buffers at most a couple of pages. Otherwise entries are returned as soon as they arrive.
+ */
+public class S3ShardedLister {
+
+    private static final int MAX_DISCOVERY_DEPTH = 3;
+
+    private static final int MAX_LEVEL_KEYS = 1000;
+
+    private static final int SHARD_QUEUE_CAPACITY = 2000;
+
+    private static final String DELIMITER = "/";
+
+    private static final FileEntry END_OF_SHARD = new FileEntry(null, 0, 0, null);
+
+    private final AmazonS3 s3Client;
+
+    private final String bucketName;
+
+    private final int fanOut;
+
+    private final int concurrency;
+
+    private final ExecutorService executor;
+
+    public S3ShardedLister(AmazonS3 s3Client, String bucketName, int fanOut, int concurrency,
+                           ExecutorService executor) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.fanOut = Math.max(1, fanOut);
+        this.concurrency = Math.max(1, concurrency);
+        this.executor = executor;
+    }
+
+    public Stream<FileEntry> list(String prefix, boolean ordered) {
+        List<Shard> shards = discover(prefix);
+        ShardedIterator iterator = new ShardedIterator(shards, ordered);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                ordered ? Spliterator.ORDERED | Spliterator.NONNULL : Spliterator.NONNULL), false)
+                .onClose(iterator::close);
+    }
+
+    private List<Shard> discover(String prefix) {
+        List<Shard> shards = new ArrayList<>();
+        List<String> frontier = Collections.singletonList(prefix);
+        // Discovery has at most as many requests in flight as the workers listing the shards
+        Semaphore inFlight = new Semaphore(concurrency);
+        for (int depth = 0; depth < MAX_DISCOVERY_DEPTH && !frontier.isEmpty() && frontier.size() < fanOut; depth++) {
+            List<Future<List<Shard>>> levels = new ArrayList<>();
+            for (String levelPrefix : frontier) {
+                acquire(inFlight);
+                levels.add(executor.submit(() -> {
+                    try {
+                        return listLevel(levelPrefix);
+                    } finally {
+                        inFlight.release();
+                    }
+                }));
+            }
+            List<String> next = new ArrayList<>();
+            for (int i = 0; i < levels.size(); i++) {
+                List<Shard> children = await(levels.get(i));
+                if (children == null) {
+                    shards.add(new Shard(frontier.get(i), null));
+                    continue;
+                }
+                for (Shard shard : children) {
+                    if (shard.entry != null) {
+                        shards.add(shard);
+                    } else {
+                        next.add(shard.prefix);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        frontier.forEach(x -> shards.add(new Shard(x, null)));
+        shards.sort(Comparator.comparing(x -> x.prefix));
+        return shards;
+    }
+
+    // Direct children of the prefix, as single entries for objects and as prefixes for sub folders, or null
+    // if they don't fit in a page, rather than paging through a flat prefix serially and holding all of it
+    private List<Shard> listLevel(String prefix) {
+        ListObjectsV2Result page = s3Client.listObjectsV2(new ListObjectsV2Request()
+                .withBucketName(bucketName)
+                .withPrefix(prefix)
+                .withDelimiter(DELIMITER)
+                .withMaxKeys(MAX_LEVEL_KEYS));
+        if (page.isTruncated()) {
+            return null;
+        }
+        List<Shard> children = new ArrayList<>();
+        page.getCommonPrefixes().forEach(x -> children.add(new Shard(x, null)));
+        page.getObjectSummaries().forEach(x -> children.add(new Shard(x.getKey(), toFileEntry(x))));
+        return children;
+    }
+
+    private static FileEntry toFileEntry(S3ObjectSummary summary) {
+        return new FileEntry(summary.getKey(), summary.getSize(),
+                summary.getLastModified() == null ? 0 : summary.getLastModified().getTime(), summary.getETag());
+    }
+
+    private static void acquire(Semaphore semaphore) {
+        try {
+            semaphore.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while listing", e);
+        }
+    }
+
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while listing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to list", e.getCause());
+        }
+    }
+
+    private static class Shard {
+        private final String prefix;
+        // Set when the shard is a single object found during discovery
+        private final FileEntry entry;
+        private BlockingQueue<FileEntry> queue;
+
+        private Shard(String prefix, FileEntry entry) {
+            this.prefix = prefix;
+            this.entry = entry;
+        }
+    }
+
+    private class ShardedIterator implements Iterator<FileEntry> {
+
+        private final List<Shard> shards;
+
+        private final boolean ordered;
+
+        private final BlockingQueue<FileEntry> sharedQueue;
+
+        private final List<Shard> listedShards = new ArrayList<>();
+
+        private final AtomicInteger nextShard = new AtomicInteger();
+
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+        private final List<Future<?>> workers = new ArrayList<>();
+
+        private final Iterator<Shard> directEntries;
+
+        private int currentShard;
+
+        private int finishedShards;
+
+        private FileEntry next;
+
+        private ShardedIterator(List<Shard> shards, boolean ordered) {
+            this.shards = shards;
+            this.ordered = ordered;
+            this.sharedQueue = ordered ? null : new ArrayBlockingQueue<>(SHARD_QUEUE_CAPACITY * concurrency);
+            for (Shard shard : shards) {
+                if (shard.entry == null) {
+                    shard.queue = ordered ? new ArrayBlockingQueue<>(SHARD_QUEUE_CAPACITY) : sharedQueue;
+                    listedShards.add(shard);
+                }
+            }
+            this.directEntries = shards.stream().filter(x -> x.entry != null).iterator();
+            for (int i = 0; i < Math.min(concurrency, listedShards.size()); i++) {
+                workers.add(executor.submit(this::work));
+            }
+        }
+
+        private void work() {
+            int index;
+            while ((index = nextShard.getAndIncrement()) < listedShards.size()) {
+                Shard shard = listedShards.get(index);
+                try (S3ListingIterator iterator = new S3ListingIterator(s3Client, bucketName, shard.prefix, executor)) {
+                    while (iterator.hasNext()) {
+                        shard.queue.put(iterator.next());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    try {
+                        shard.queue.put(END_OF_SHARD);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                next = ordered ? nextOrdered() : nextUnordered();
+            }
+            return next != null;
+        }
+
+        @Override
+        public FileEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            FileEntry entry = next;
+            next = null;
+            return entry;
+        }
+
+        private FileEntry nextOrdered() {
+            while (currentShard < shards.size()) {
+                Shard shard = shards.get(currentShard);
+                if (shard.entry != null) {
+                    currentShard++;
+                    return shard.entry;
+                }
+                FileEntry entry = take(shard.queue);
+                if (entry != END_OF_SHARD) {
+                    return entry;
+                }
+                currentShard++;
+            }
+            return null;
+        }
+
+        private FileEntry nextUnordered() {
+            if (directEntries.hasNext()) {
+                return directEntries.next().entry;
+            }
+            while (finishedShards < listedShards.size()) {
+                FileEntry entry = take(sharedQueue);
+                if (entry != END_OF_SHARD) {
+                    return entry;
+                }
+                finishedShards++;
+            }
+            return null;
+        }
+
+        private FileEntry take(BlockingQueue<FileEntry> queue) {
+            try {
+                FileEntry entry = queue.take();
+                if (failure.get() != null) {
+                    close();
+                    throw failure.get();
+                }
+                return entry;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException("Interrupted while listing", e);
+            }
+        }
+
+        private void close() {
+            nextShard.set(listedShards.size());
+            workers.forEach(x -> x.cancel(true));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream over a whole S3 object which verifies its content as it is read: the end of the stream is only
+ * reported once the content matches, a mismatch fails the last read instead. Skipped bytes are read, so
+ * that they are verified too.
+ */
+public class S3VerifyingInputStream extends FilterInputStream {
+
+    private final String key;
+
+    private final S3ContentVerifier verifier;
+
+    private boolean verified;
+
+    public S3VerifyingInputStream(InputStream in, String key, S3ContentVerifier verifier) {
+        super(in);
+        this.key = key;
+        this.verifier = verifier;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            verify();
+        } else {
+            verifier.update(new byte[] { (byte) b }, 0, 1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n == -1) {
+            verify();
+        } else {
+            verifier.update(b, off, n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(Math.max(n, 0), 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (read == -1) {
+                break;
+            }
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    private void verify() throws IOException {
+        if (!verified) {
+            verified = true;
+            verifier.verify(key);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package uk.ac.ebi.ddi.ddifileservice.transfer;
+
+/**
+ * Receives the progress of an asynchronous transfer. Calls are throttled, and made from transfer threads.
+ */
+public interface TransferListener {
+
+    TransferListener NONE = (transferredBytes, totalBytes, bytesPerSecond) -> { };
+
+    /**
+     * @param totalBytes total size of the transfer, or -1 while it isn't known yet
+     * @param bytesPerSecond average throughput since the transfer started
+     */
+    void onProgress(long transferredBytes, long totalBytes, double bytesPerSecond);
+}
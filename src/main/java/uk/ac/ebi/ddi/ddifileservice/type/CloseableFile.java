@@ -5,6 +5,10 @@ import java.io.File;
 import java.net.URI;
 
 public abstract class CloseableFile extends File implements Closeable {
+
+    // Encoding of the stored data, e.g. gzip, when the file holds it as stored rather than decoded
+    private String contentEncoding;
+
     public CloseableFile(String pathname) {
         super(pathname);
     }
@@ -24,4 +28,12 @@ public abstract class CloseableFile extends File implements Closeable {
     public CloseableFile(File file) {
         super(file.getAbsolutePath());
     }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public void setContentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
 }
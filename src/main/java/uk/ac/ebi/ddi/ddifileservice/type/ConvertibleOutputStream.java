@@ -6,6 +6,13 @@ import java.io.InputStream;
 
 public class ConvertibleOutputStream extends ByteArrayOutputStream {
 
+    public ConvertibleOutputStream() {
+    }
+
+    protected ConvertibleOutputStream(int size) {
+        super(size);
+    }
+
     //Create InputStream without actually copying the buffer and using up mem for that.
     public InputStream toInputStream(){
         return new ByteArrayInputStream(buf, 0, count);
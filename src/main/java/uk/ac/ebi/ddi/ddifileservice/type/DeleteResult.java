@@ -0,0 +1,44 @@
+package uk.ac.ebi.ddi.ddifileservice.type;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcome of a bulk deletion, with the reason of the failure of every file which couldn't be deleted.
+ */
+public class DeleteResult {
+
+    private final AtomicLong deletedCount = new AtomicLong();
+
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+
+    public void addDeleted(long count) {
+        deletedCount.addAndGet(count);
+    }
+
+    public void addFailure(String filePath, String reason) {
+        failures.put(filePath, reason == null ? "Unknown error" : reason);
+    }
+
+    public long getDeletedCount() {
+        return deletedCount.get();
+    }
+
+    public Map<String, String> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "DeleteResult{" +
+                "deletedCount=" + deletedCount +
+                ", failures=" + failures.size() +
+                '}';
+    }
+}
@@ -0,0 +1,21 @@
+package uk.ac.ebi.ddi.ddifileservice.type;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+
+/**
+ * Stream over a file stored with a content encoding, returning the data as stored.
+ */
+public class EncodedInputStream extends FilterInputStream {
+
+    private final String contentEncoding;
+
+    public EncodedInputStream(InputStream in, String contentEncoding) {
+        super(in);
+        this.contentEncoding = contentEncoding;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+}
@@ -0,0 +1,91 @@
+package uk.ac.ebi.ddi.ddifileservice.type;
+
+/**
+ * A file returned by a listing or a metadata lookup, with the attributes the listing already provides for free.
+ */
+public class FileEntry {
+
+    private final String path;
+
+    private final long size;
+
+    // Milliseconds since the epoch, as returned by File.lastModified()
+    private final long lastModified;
+
+    // Only available on S3, null for local files
+    private final String eTag;
+
+    // Content-Encoding of S3 objects, only known from metadata lookups, listings don't return it
+    private final String contentEncoding;
+
+    // Part size recorded by multipart uploads of S3 objects, only known from metadata lookups, 0 otherwise
+    private final long partSize;
+
+    // Size of the decoded content of encoded S3 objects, recorded when it was known at write time, -1 otherwise
+    private final long decodedSize;
+
+    public FileEntry(String path, long size, long lastModified, String eTag) {
+        this(path, size, lastModified, eTag, null);
+    }
+
+    public FileEntry(String path, long size, long lastModified, String eTag, String contentEncoding) {
+        this(path, size, lastModified, eTag, contentEncoding, 0);
+    }
+
+    public FileEntry(String path, long size, long lastModified, String eTag, String contentEncoding,
+                     long partSize) {
+        this(path, size, lastModified, eTag, contentEncoding, partSize, -1);
+    }
+
+    public FileEntry(String path, long size, long lastModified, String eTag, String contentEncoding,
+                     long partSize, long decodedSize) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.eTag = eTag;
+        this.contentEncoding = contentEncoding;
+        this.partSize = partSize;
+        this.decodedSize = decodedSize;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public long getDecodedSize() {
+        return decodedSize;
+    }
+
+    @Override
+    public String toString() {
+        return "FileEntry{" +
+                "path='" + path + '\'' +
+                ", size=" + size +
+                ", lastModified=" + lastModified +
+                ", eTag='" + eTag + '\'' +
+                ", contentEncoding='" + contentEncoding + '\'' +
+                ", partSize=" + partSize +
+                ", decodedSize=" + decodedSize +
+                '}';
+    }
+}
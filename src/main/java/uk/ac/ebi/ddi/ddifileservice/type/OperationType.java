@@ -0,0 +1,13 @@
+package uk.ac.ebi.ddi.ddifileservice.type;
+
+/**
+ * Kinds of file system operations, which are throttled and measured separately.
+ */
+public enum OperationType {
+    GET,
+    SAVE,
+    LIST,
+    DELETE,
+    EXISTS,
+    COPY
+}
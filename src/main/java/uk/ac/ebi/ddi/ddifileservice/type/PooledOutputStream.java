@@ -0,0 +1,288 @@
+package uk.ac.ebi.ddi.ddifileservice.type;
+
+import uk.ac.ebi.ddi.ddifileservice.utils.BufferPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ConvertibleOutputStream holding its content in chunks taken from a BufferPool, instead of an array
+ * which is copied every time it grows. As with ByteArrayOutputStream, closing the stream has no effect and
+ * the content stays readable: the chunks go back to the pool on release, after which the stream is empty.
+ * Streams which are never released only lose the benefit of recycling, their chunks are garbage collected.
+ */
+public class PooledOutputStream extends ConvertibleOutputStream {
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final BufferPool pool;
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+
+    private int size;
+
+    public PooledOutputStream(BufferPool pool) {
+        super(0);
+        this.pool = pool;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        writableChunk().put((byte) b);
+        size++;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        while (len > 0) {
+            ByteBuffer chunk = writableChunk();
+            int n = Math.min(len, chunk.remaining());
+            chunk.put(b, off, n);
+            off += n;
+            len -= n;
+            size += n;
+        }
+    }
+
+    /**
+     * Reads up to count bytes from the channel straight into the chunks, stopping early if it ends.
+     *
+     * @return the number of bytes read
+     */
+    public synchronized long readFrom(ReadableByteChannel channel, long count) throws IOException {
+        long read = 0;
+        while (read < count) {
+            ByteBuffer chunk = writableChunk();
+            int limit = chunk.limit();
+            chunk.limit((int) Math.min(limit, chunk.position() + count - read));
+            int n;
+            try {
+                n = channel.read(chunk);
+            } finally {
+                chunk.limit(limit);
+            }
+            if (n == -1) {
+                break;
+            }
+            read += n;
+            size += n;
+        }
+        return read;
+    }
+
+    private ByteBuffer writableChunk() {
+        ByteBuffer last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (last == null || !last.hasRemaining()) {
+            if (size < 0 || size + (long) pool.getChunkSize() > Integer.MAX_VALUE) {
+                throw new OutOfMemoryError("Content over 2 GB can't be held in memory");
+            }
+            last = pool.acquire();
+            chunks.add(last);
+        }
+        return last;
+    }
+
+    /**
+     * Returns read-only views over the content, one per chunk, e.g. for a gathering write.
+     */
+    public synchronized ByteBuffer[] toByteBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            ByteBuffer view = chunks.get(i).duplicate();
+            view.flip();
+            buffers[i] = view.asReadOnlyBuffer();
+        }
+        return buffers;
+    }
+
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        for (ByteBuffer buffer : toByteBuffers()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] buffer = null;
+        for (ByteBuffer chunk : toByteBuffers()) {
+            if (chunk.hasArray()) {
+                out.write(chunk.array(), chunk.arrayOffset(), chunk.remaining());
+                continue;
+            }
+            if (buffer == null) {
+                buffer = new byte[Math.min(COPY_BUFFER_SIZE, size)];
+            }
+            while (chunk.hasRemaining()) {
+                int n = Math.min(buffer.length, chunk.remaining());
+                chunk.get(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Returns a stream over the current content, without copying it. It supports mark and reset.
+     */
+    @Override
+    public InputStream toInputStream() {
+        return new ChunkInputStream(toByteBuffers(), getSize());
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return size;
+    }
+
+    @Override
+    public int size() {
+        return getSize();
+    }
+
+    @Override
+    public synchronized byte[] toByteArray() {
+        byte[] data = new byte[size];
+        int offset = 0;
+        for (ByteBuffer chunk : toByteBuffers()) {
+            int n = chunk.remaining();
+            chunk.get(data, offset, n);
+            offset += n;
+        }
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return new String(toByteArray(), Charset.defaultCharset());
+    }
+
+    @Override
+    public String toString(String charsetName) throws UnsupportedEncodingException {
+        return new String(toByteArray(), charsetName);
+    }
+
+    // Overrides ByteArrayOutputStream.toString(Charset) from Java 10 on, which would read the empty array
+    public String toString(Charset charset) {
+        return new String(toByteArray(), charset);
+    }
+
+    @Override
+    public void reset() {
+        release();
+    }
+
+    /**
+     * Gives the chunks back to the pool. Streams returned by toInputStream must no longer be read.
+     */
+    public synchronized void release() {
+        chunks.forEach(pool::release);
+        chunks.clear();
+        size = 0;
+    }
+
+    private static class ChunkInputStream extends InputStream {
+
+        private final ByteBuffer[] chunks;
+
+        private final int size;
+
+        private int index;
+
+        private int position;
+
+        private int mark;
+
+        private ChunkInputStream(ByteBuffer[] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+
+        @Override
+        public int read() {
+            if (position == size) {
+                return -1;
+            }
+            ByteBuffer chunk = currentChunk();
+            position++;
+            return chunk.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == size) {
+                return -1;
+            }
+            int read = 0;
+            while (read < len && position < size) {
+                ByteBuffer chunk = currentChunk();
+                int n = Math.min(len - read, chunk.remaining());
+                chunk.get(b, off + read, n);
+                read += n;
+                position += n;
+            }
+            return read;
+        }
+
+        private ByteBuffer currentChunk() {
+            while (!chunks[index].hasRemaining()) {
+                index++;
+            }
+            return chunks[index];
+        }
+
+        @Override
+        public long skip(long n) {
+            int target = (int) Math.min(size, position + Math.max(0, n));
+            long skipped = target - position;
+            seek(target);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return size - position;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+            mark = position;
+        }
+
+        @Override
+        public void reset() {
+            seek(mark);
+        }
+
+        private void seek(int target) {
+            int remaining = target;
+            for (ByteBuffer chunk : chunks) {
+                int offset = Math.min(remaining, chunk.limit());
+                chunk.position(offset);
+                remaining -= offset;
+            }
+            // Chunks consumed in full are skipped by the next read
+            index = 0;
+            position = target;
+        }
+    }
+}
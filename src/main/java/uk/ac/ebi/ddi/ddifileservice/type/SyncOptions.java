@@ -0,0 +1,61 @@
+package uk.ac.ebi.ddi.ddifileservice.type;
+
+/**
+ * Options of IFileSystem.syncDirectory.
+ */
+public class SyncOptions {
+
+    // Delete the files of the destination which are not in the source
+    private boolean delete = false;
+
+    // Only report what would be transferred and deleted
+    private boolean dryRun = false;
+
+    // Compare the content of files of the same size even if the destination is newer than the source
+    private boolean checksum = false;
+
+    // Number of files compared and transferred concurrently
+    private int concurrency = 8;
+
+    public boolean isDelete() {
+        return delete;
+    }
+
+    public void setDelete(boolean delete) {
+        this.delete = delete;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public boolean isChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncOptions{" +
+                "delete=" + delete +
+                ", dryRun=" + dryRun +
+                ", checksum=" + checksum +
+                ", concurrency=" + concurrency +
+                '}';
+    }
+}
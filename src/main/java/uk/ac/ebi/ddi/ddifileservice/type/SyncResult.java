@@ -0,0 +1,89 @@
+package uk.ac.ebi.ddi.ddifileservice.type;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outcome of a directory synchronization: the files transferred and deleted, or which would have been in a
+ * dry run, and the reason of the failure of every file which couldn't be synchronized.
+ */
+public class SyncResult {
+
+    private final boolean dryRun;
+
+    // Guarded by this
+    private final List<String> transferred = new ArrayList<>();
+
+    private final List<String> deleted = new ArrayList<>();
+
+    private final AtomicLong transferredBytes = new AtomicLong();
+
+    private final AtomicLong unchangedCount = new AtomicLong();
+
+    private final Map<String, String> failures = new ConcurrentHashMap<>();
+
+    public SyncResult(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public synchronized void addTransferred(String filePath, long size) {
+        transferred.add(filePath);
+        transferredBytes.addAndGet(size);
+    }
+
+    public synchronized void addDeleted(String filePath) {
+        deleted.add(filePath);
+    }
+
+    public void addUnchanged() {
+        unchangedCount.incrementAndGet();
+    }
+
+    public void addFailure(String filePath, String reason) {
+        failures.put(filePath, reason == null ? "Unknown error" : reason);
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public synchronized List<String> getTransferred() {
+        return new ArrayList<>(transferred);
+    }
+
+    public synchronized List<String> getDeleted() {
+        return new ArrayList<>(deleted);
+    }
+
+    public long getTransferredBytes() {
+        return transferredBytes.get();
+    }
+
+    public long getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    public Map<String, String> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SyncResult{" +
+                "dryRun=" + dryRun +
+                ", transferred=" + transferred.size() +
+                ", transferredBytes=" + transferredBytes +
+                ", deleted=" + deleted.size() +
+                ", unchanged=" + unchangedCount +
+                ", failures=" + failures.size() +
+                '}';
+    }
+}
@@ -0,0 +1,94 @@
+package uk.ac.ebi.ddi.ddifileservice.utils;
+
+import uk.ac.ebi.ddi.ddifileservice.type.PooledOutputStream;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size buffers shared by the streams and transfers of the application, so that large
+ * payloads are held in recycled chunks rather than in arrays allocated, grown and dropped on every call.
+ * At most maxPooledChunks idle chunks are kept, chunks released beyond that are left to the garbage
+ * collector. Chunks are never withheld: when the pool is empty a new one is allocated.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final int chunkSize;
+
+    private final int maxPooledChunks;
+
+    private final boolean direct;
+
+    private final Queue<ByteBuffer> chunks = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger pooledChunks = new AtomicInteger();
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    public BufferPool(int chunkSize, int maxPooledChunks, boolean direct) {
+        this.chunkSize = chunkSize;
+        this.maxPooledChunks = Math.max(0, maxPooledChunks);
+        this.direct = direct;
+    }
+
+    /**
+     * Returns an empty chunk of chunkSize bytes, to be given back with release once no longer used.
+     */
+    public ByteBuffer acquire() {
+        acquisitions.incrementAndGet();
+        ByteBuffer chunk = chunks.poll();
+        if (chunk != null) {
+            pooledChunks.decrementAndGet();
+            chunk.clear();
+            return chunk;
+        }
+        allocations.incrementAndGet();
+        return direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+    }
+
+    /**
+     * Returns an empty stream holding its content in chunks of this pool, to be released once consumed.
+     */
+    public PooledOutputStream newOutputStream() {
+        return new PooledOutputStream(this);
+    }
+
+    public void release(ByteBuffer chunk) {
+        if (chunk.capacity() != chunkSize || chunk.isReadOnly()) {
+            return;
+        }
+        if (pooledChunks.incrementAndGet() <= maxPooledChunks) {
+            chunks.offer(chunk);
+        } else {
+            pooledChunks.decrementAndGet();
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int getPooledChunks() {
+        return pooledChunks.get();
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    // Acquisitions the pool couldn't serve, the rest were recycled chunks
+    public long getAllocations() {
+        return allocations.get();
+    }
+}
@@ -0,0 +1,84 @@
+package uk.ac.ebi.ddi.ddifileservice.utils;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Checksums of content sent to S3: the MD5 it verifies as Content-MD5, and a CRC-32C kept in the object
+ * metadata, which is much cheaper to verify on download. Both are updated with the same bytes.
+ */
+public class Checksums {
+
+    public static final String CRC32C_METADATA = "crc32c";
+
+    // Part size of the multipart uploads of this service, for their ETag to be checked without asking S3
+    public static final String PART_SIZE_METADATA = "part-size";
+
+    // Size of the content of encoded objects once decoded, for it to be known without decoding them
+    public static final String DECODED_SIZE_METADATA = "decoded-size";
+
+    private final MessageDigest md5 = newDigest("MD5");
+
+    private final Crc32c crc32c = new Crc32c();
+
+    public void update(byte[] b, int off, int len) {
+        md5.update(b, off, len);
+        crc32c.update(b, off, len);
+    }
+
+    public void update(ByteBuffer buffer) {
+        md5.update(buffer.duplicate());
+        crc32c.update(buffer);
+    }
+
+    /**
+     * Returns the MD5 as expected in a Content-MD5 header. Can only be called once.
+     */
+    public String getMd5Base64() {
+        return Base64.getEncoder().encodeToString(md5.digest());
+    }
+
+    public String getCrc32cHex() {
+        return toHex(crc32c);
+    }
+
+    /**
+     * Returns a stream which updates the checksums with everything written to it.
+     */
+    public OutputStream asOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                update(b, off, len);
+            }
+        };
+    }
+
+    public static String toHex(Crc32c crc32c) {
+        return String.format("%08x", crc32c.getValue());
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+
+    public static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package uk.ac.ebi.ddi.ddifileservice.utils;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on an executor with at most a given number of them running at once. Tasks over the limit
+ * are queued rather than blocking the submitting thread, and started as running ones complete.
+ */
+public class ConcurrencyLimiter {
+
+    private final int limit;
+
+    private final Executor executor;
+
+    // Guarded by this
+    private final Queue<LimitedTask<?>> pending = new ArrayDeque<>();
+
+    private int running;
+
+    public ConcurrencyLimiter(int limit, Executor executor) {
+        this.limit = Math.max(1, limit);
+        this.executor = executor;
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> callable) {
+        LimitedTask<T> task = new LimitedTask<>(callable);
+        synchronized (this) {
+            if (running == limit) {
+                pending.add(task);
+                return task.future;
+            }
+            running++;
+        }
+        dispatch(task);
+        return task.future;
+    }
+
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    private void dispatch(LimitedTask<?> task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.future.completeExceptionally(e);
+            onFinished();
+        }
+    }
+
+    private void onFinished() {
+        LimitedTask<?> next;
+        synchronized (this) {
+            next = pending.poll();
+            if (next == null) {
+                running--;
+                return;
+            }
+        }
+        dispatch(next);
+    }
+
+    private class LimitedTask<T> implements Runnable {
+        private final Callable<T> callable;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private LimitedTask(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(callable.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                onFinished();
+            }
+        }
+    }
+}
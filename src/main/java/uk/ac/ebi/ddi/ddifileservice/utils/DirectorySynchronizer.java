@@ -0,0 +1,189 @@
+package uk.ac.ebi.ddi.ddifileservice.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import uk.ac.ebi.ddi.ddifileservice.services.IFileSystem;
+import uk.ac.ebi.ddi.ddifileservice.type.DeleteResult;
+import uk.ac.ebi.ddi.ddifileservice.type.FileEntry;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncOptions;
+import uk.ac.ebi.ddi.ddifileservice.type.SyncResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Synchronizes a local directory into a folder of a file system, rsync style: the manifests of both sides
+ * are listed, and only the files missing from the destination or differing from it are transferred.
+ * Files of the same size are taken as unchanged when the destination is at least as recent as the source,
+ * which holds for every file transferred by a previous synchronization, otherwise their content is compared,
+ * against the ETag of the destination when it has one. Encoded files, e.g. compressed, are compared by their
+ * decoded size and content. Comparisons and transfers run concurrently.
+ */
+public class DirectorySynchronizer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DirectorySynchronizer.class);
+
+    private final IFileSystem fileSystem;
+
+    // Part sizes tried on multipart ETags, on top of the usual ones and the one recorded by the upload
+    private final Collection<Long> partSizes;
+
+    public DirectorySynchronizer(IFileSystem fileSystem) {
+        this(fileSystem, Collections.emptySet());
+    }
+
+    public DirectorySynchronizer(IFileSystem fileSystem, Collection<Long> partSizes) {
+        this.fileSystem = fileSystem;
+        this.partSizes = partSizes;
+    }
+
+    public SyncResult sync(String sourceDir, String destDir, SyncOptions options) throws IOException {
+        Path source = Paths.get(sourceDir);
+        Map<String, FileEntry> sourceManifest = getLocalManifest(source);
+        Map<String, FileEntry> destManifest = getManifest(destDir);
+        SyncResult result = new SyncResult(options.isDryRun());
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("directory-sync-");
+        threadFactory.setDaemon(true);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, options.getConcurrency()), threadFactory);
+        try {
+            List<Future<?>> tasks = new ArrayList<>(sourceManifest.size());
+            sourceManifest.forEach((name, entry) -> tasks.add(executor.submit(() -> {
+                String key = destDir + "/" + name;
+                try {
+                    if (isUpToDate(entry, destManifest.get(name), options.isChecksum())) {
+                        result.addUnchanged();
+                        return;
+                    }
+                    if (!options.isDryRun()) {
+                        fileSystem.copyFile(new File(entry.getPath()), key);
+                    }
+                    result.addTransferred(key, entry.getSize());
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.error("Unable to synchronize {} to {}", entry.getPath(), key, e);
+                    result.addFailure(key, e.toString());
+                }
+            })));
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while synchronizing " + sourceDir, e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Deleted last, so that the destination never misses a file which is still in the source
+        if (options.isDelete()) {
+            List<String> extraneous = new ArrayList<>();
+            destManifest.forEach((name, entry) -> {
+                if (!sourceManifest.containsKey(name)) {
+                    extraneous.add(entry.getPath());
+                }
+            });
+            if (!options.isDryRun() && !extraneous.isEmpty()) {
+                DeleteResult deleted = fileSystem.deleteFiles(extraneous);
+                deleted.getFailures().forEach(result::addFailure);
+                extraneous.removeAll(deleted.getFailures().keySet());
+            }
+            extraneous.forEach(result::addDeleted);
+        }
+        LOGGER.info("Synchronized {} to {}: {}", sourceDir, destDir, result);
+        return result;
+    }
+
+    private boolean isUpToDate(FileEntry source, FileEntry destination, boolean checksum) throws IOException {
+        if (destination == null) {
+            return false;
+        }
+        if (destination.getSize() != source.getSize()) {
+            // Listings of S3 return the stored size, the decoded size of encoded objects is looked up
+            if (destination.getETag() == null || destination.getContentEncoding() != null) {
+                return false;
+            }
+            destination = fileSystem.getMetadata(destination.getPath());
+            if (destination == null || destination.getContentEncoding() == null
+                    || destination.getSize() != source.getSize()) {
+                return false;
+            }
+        }
+        if (!checksum && source.getLastModified() <= destination.getLastModified()) {
+            return true;
+        }
+        Path file = Paths.get(source.getPath());
+        // The ETag of encoded objects is the one of their encoded content
+        if (destination.getETag() != null && destination.getContentEncoding() == null) {
+            return ETags.matches(file, destination.getETag(), getPartSizes(destination));
+        }
+        try (InputStream sourceIn = Files.newInputStream(file);
+             InputStream destIn = fileSystem.getInputStream(destination.getPath())) {
+            return ETags.md5Hex(sourceIn).equals(ETags.md5Hex(destIn));
+        }
+    }
+
+    // Listings don't return the part size recorded by multipart uploads, it is only looked up for them
+    private Collection<Long> getPartSizes(FileEntry destination) throws IOException {
+        if (destination.getETag().indexOf('-') < 0) {
+            return partSizes;
+        }
+        FileEntry metadata = fileSystem.getMetadata(destination.getPath());
+        if (metadata == null || metadata.getPartSize() <= 0) {
+            return partSizes;
+        }
+        List<Long> candidates = new ArrayList<>(partSizes);
+        candidates.add(metadata.getPartSize());
+        return candidates;
+    }
+
+    // Files of the local directory by path relative to it, with '/' separators as in keys
+    private static Map<String, FileEntry> getLocalManifest(Path directory) throws IOException {
+        Map<String, FileEntry> manifest = new TreeMap<>();
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        try (Stream<Path> walk = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) walk::iterator) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (attributes.isRegularFile()) {
+                    String name = directory.relativize(path).toString().replace(File.separatorChar, '/');
+                    manifest.put(name, new FileEntry(path.toString(), attributes.size(),
+                            attributes.lastModifiedTime().toMillis(), null));
+                }
+            }
+        }
+        return manifest;
+    }
+
+    // Files of the destination by path relative to it, listed as keys on S3 and as absolute paths locally
+    private Map<String, FileEntry> getManifest(String directory) {
+        List<String> prefixes = Arrays.asList(directory + "/", Paths.get(directory).toAbsolutePath() + File.separator);
+        Map<String, FileEntry> manifest = new HashMap<>();
+        try (Stream<FileEntry> files = fileSystem.listFiles(directory)) {
+            files.forEach(x -> {
+                for (String prefix : prefixes) {
+                    if (x.getPath().startsWith(prefix)) {
+                        String name = x.getPath().substring(prefix.length()).replace(File.separatorChar, '/');
+                        manifest.put(name, x);
+                        return;
+                    }
+                }
+            });
+        }
+        return manifest;
+    }
+}
@@ -0,0 +1,241 @@
+package uk.ac.ebi.ddi.ddifileservice.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Computes S3 ETags of local content. The ETag of an object uploaded in a single request is the MD5 of its
+ * content. The one of a multipart upload is the MD5 of the concatenated MD5 of its parts, followed by "-" and
+ * the number of parts: as the part size isn't recorded, the usual ones compatible with the number of parts
+ * are all tried, along with the ones the caller knows of, in a single pass over the content.
+ */
+public class ETags {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final long MB = 1024 * 1024;
+
+    private static final long MAX_PART_SIZE = 5L * 1024 * MB;
+
+    private ETags() {
+    }
+
+    public static String md5Hex(InputStream in) throws IOException {
+        MessageDigest digest = Checksums.newDigest("MD5");
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, n);
+        }
+        return Checksums.toHex(digest.digest());
+    }
+
+    /**
+     * Whether the file has the given ETag, as a single part or a multipart upload.
+     */
+    public static boolean matches(Path file, String eTag) throws IOException {
+        return matches(file, eTag, Collections.emptySet());
+    }
+
+    /**
+     * Whether the file has the given ETag, trying the given part sizes on top of the usual ones if it is the one
+     * of a multipart upload.
+     */
+    public static boolean matches(Path file, String eTag, Collection<Long> partSizes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            Verifier verifier = newVerifier(eTag, channel.size(), partSizes);
+            if (verifier == null) {
+                return false;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                verifier.update(buffer);
+                buffer.clear();
+            }
+            return verifier.matches();
+        }
+    }
+
+    /**
+     * Returns a verifier of content of the given size against the ETag, or null if the ETag can't be the one
+     * of such content.
+     */
+    public static Verifier newVerifier(String eTag, long size) {
+        return newVerifier(eTag, size, Collections.emptySet());
+    }
+
+    /**
+     * Returns a verifier of content of the given size against the ETag, trying the given part sizes on top of
+     * the usual ones, or null if the ETag can't be the one of such content.
+     */
+    public static Verifier newVerifier(String eTag, long size, Collection<Long> extraPartSizes) {
+        eTag = eTag.replace("\"", "");
+        int parts = getPartCount(eTag);
+        if (parts == 0) {
+            return new Verifier(eTag, false, Collections.singleton(Long.MAX_VALUE));
+        }
+        TreeSet<Long> partSizes = getPartSizes(size, parts, extraPartSizes);
+        return partSizes.isEmpty() ? null : new Verifier(eTag, true, partSizes);
+    }
+
+    /**
+     * Returns a verifier of content of the given size against the ETag of an upload in parts of the given size,
+     * or null if the ETag can't be the one of such content.
+     */
+    public static Verifier newVerifier(String eTag, long size, long partSize) {
+        eTag = eTag.replace("\"", "");
+        int parts = getPartCount(eTag);
+        if (parts == 0) {
+            return new Verifier(eTag, false, Collections.singleton(Long.MAX_VALUE));
+        }
+        if (parts == 1 && size == 0) {
+            return new Verifier(eTag, true, Collections.singleton(1L));
+        }
+        boolean consistent = parts > 0 && partSize > 0 && partSize * (parts - 1) < size && partSize * parts >= size;
+        return consistent ? new Verifier(eTag, true, Collections.singleton(partSize)) : null;
+    }
+
+    // Number of parts of a multipart ETag, 0 for a single part one and -1 if it can't be parsed
+    private static int getPartCount(String eTag) {
+        int dash = eTag.indexOf('-');
+        if (dash < 0) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(eTag.substring(dash + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Part sizes splitting the content into the given number of parts, among the whole MB ones in common use
+    // and the extra ones
+    private static TreeSet<Long> getPartSizes(long size, int parts, Collection<Long> extraPartSizes) {
+        TreeSet<Long> partSizes = new TreeSet<>();
+        if (parts <= 0 || size == 0 && parts != 1) {
+            return partSizes;
+        }
+        if (parts == 1) {
+            partSizes.add(Math.max(1, size));
+            return partSizes;
+        }
+        for (long partSize = MB; partSize <= MAX_PART_SIZE; partSize *= 2) {
+            partSizes.add(partSize);
+        }
+        partSizes.add(5 * MB);
+        partSizes.add(15 * MB);
+        // Smallest whole MB part size, as chosen by clients sizing parts after the content
+        partSizes.add((size + parts * MB - 1) / (parts * MB) * MB);
+        partSizes.addAll(extraPartSizes);
+        partSizes.removeIf(x -> x * (parts - 1) >= size || x * parts < size);
+        return partSizes;
+    }
+
+    /**
+     * Computes the ETag of content fed in order, with every candidate part size at once.
+     */
+    public static class Verifier {
+
+        private final String eTag;
+
+        private final boolean multipart;
+
+        private final List<PartDigest> candidates = new ArrayList<>();
+
+        private Verifier(String eTag, boolean multipart, Iterable<Long> partSizes) {
+            this.eTag = eTag;
+            this.multipart = multipart;
+            partSizes.forEach(x -> candidates.add(new PartDigest(x)));
+        }
+
+        public void update(byte[] b, int off, int len) {
+            for (PartDigest candidate : candidates) {
+                candidate.update(b, off, len);
+            }
+        }
+
+        public void update(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+                return;
+            }
+            byte[] chunk = new byte[Math.min(buffer.remaining(), BUFFER_SIZE)];
+            while (buffer.hasRemaining()) {
+                int n = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, n);
+                update(chunk, 0, n);
+            }
+        }
+
+        /**
+         * Whether the content fed so far has the ETag. Can only be called once.
+         */
+        public boolean matches() {
+            for (PartDigest candidate : candidates) {
+                if (candidate.getETag(multipart).equals(eTag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class PartDigest {
+
+        private final long partSize;
+
+        private final MessageDigest part = Checksums.newDigest("MD5");
+
+        private final MessageDigest parts = Checksums.newDigest("MD5");
+
+        private long partFilled;
+
+        private int partCount;
+
+        private PartDigest(long partSize) {
+            this.partSize = partSize;
+        }
+
+        private void update(byte[] b, int off, int len) {
+            while (len > 0) {
+                int n = (int) Math.min(len, partSize - partFilled);
+                part.update(b, off, n);
+                partFilled += n;
+                off += n;
+                len -= n;
+                if (partFilled == partSize) {
+                    endPart();
+                }
+            }
+        }
+
+        private void endPart() {
+            parts.update(part.digest());
+            partCount++;
+            partFilled = 0;
+        }
+
+        private String getETag(boolean multipart) {
+            if (!multipart) {
+                return Checksums.toHex(part.digest());
+            }
+            if (partFilled > 0 || partCount == 0) {
+                endPart();
+            }
+            return Checksums.toHex(parts.digest()) + "-" + partCount;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package uk.ac.ebi.ddi.ddifileservice.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors running each task on its own virtual thread when the JVM supports them, looked up
+ * reflectively as the service is built for Java 8. Callers bound the concurrency themselves.
+ */
+public final class VirtualThreads {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = lookup();
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task if requested and available, otherwise a
+     * cached pool of daemon platform threads named with the given prefix.
+     */
+    public static ExecutorService newExecutor(String threadNamePrefix, boolean virtualThreads) {
+        if (virtualThreads) {
+            if (isAvailable()) {
+                try {
+                    return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+                } catch (IllegalAccessException | InvocationTargetException e) {
+                    LOGGER.warn("Unable to create a virtual thread executor, using platform threads", e);
+                }
+            } else {
+                LOGGER.warn("Virtual threads are not available on Java {}, using platform threads",
+                        System.getProperty("java.version"));
+            }
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory(threadNamePrefix);
+        threadFactory.setDaemon(true);
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package uk.ac.ebi.ddi.ddifileservice.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Append-only journal of pending writes. A write is recorded as "P id key" once its data is safely on disk,
+ * and as "D id" once it has been stored for good, keys being Base64 encoded so that any character can be
+ * journaled. Every record is forced to disk before the call returns, so the writes which were pending when
+ * the process died are known on the next start, records only counting once their newline is written. The
+ * journal rewrites itself with only the pending writes once completed ones make up most of it.
+ */
+public class WriteJournal implements Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteJournal.class);
+
+    private static final int COMPACTION_RECORDS = 10000;
+
+    private final Path path;
+
+    // Guarded by this, in the order the writes were appended. Ids are reserved before the data is stored, so
+    // concurrent writes can be appended out of id order: the last appended write of a key is the latest one
+    private final Map<Long, String> pending = new LinkedHashMap<>();
+
+    private FileChannel channel;
+
+    private long nextId = 1;
+
+    private int records;
+
+    public WriteJournal(Path path) throws IOException {
+        this.path = path;
+        if (Files.exists(path)) {
+            replay();
+        }
+        compact();
+    }
+
+    private void replay() throws IOException {
+        String records = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        // Only the last record can be torn, by a crash while it was being written. It is the only one
+        // without a terminating newline, and could otherwise pass for a valid record of another key or id
+        int end = records.lastIndexOf('\n') + 1;
+        if (end < records.length()) {
+            LOGGER.warn("Ignoring torn record of write journal {}: {}", path, records.substring(end));
+        }
+        for (String line : records.substring(0, end).split("\n")) {
+            String[] fields = line.split(" ");
+            try {
+                long id = Long.parseLong(fields[1]);
+                if (fields[0].equals("P") && fields.length == 3) {
+                    pending.put(id, new String(Base64.getUrlDecoder().decode(fields[2]), StandardCharsets.UTF_8));
+                } else if (fields[0].equals("D") && fields.length == 2) {
+                    pending.remove(id);
+                } else {
+                    throw new IllegalArgumentException(line);
+                }
+                nextId = Math.max(nextId, id + 1);
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                LOGGER.warn("Ignoring corrupted record of write journal {}: {}", path, line);
+            }
+        }
+    }
+
+    /**
+     * Returns the writes which are still pending, by id in the order they were appended.
+     */
+    public synchronized Map<Long, String> getPending() {
+        return new LinkedHashMap<>(pending);
+    }
+
+    /**
+     * Reserves the id of a write, before its data is stored and it gets appended.
+     */
+    public synchronized long reserve() {
+        return nextId++;
+    }
+
+    public synchronized void append(long id, String key) throws IOException {
+        write("P " + id + " " + Base64.getUrlEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8)) + "\n");
+        pending.put(id, key);
+    }
+
+    /**
+     * Records the given writes as done, with a single sync for all of them.
+     */
+    public synchronized void complete(Collection<Long> ids) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (Long id : ids) {
+            builder.append("D ").append(id).append('\n');
+        }
+        write(builder.toString());
+        ids.forEach(pending::remove);
+        if (records > COMPACTION_RECORDS && records > 2 * pending.size()) {
+            compact();
+        }
+    }
+
+    private void write(String records) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(records.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        this.records += records.length() - records.replace("\n", "").length();
+    }
+
+    // Replaces the journal with one holding only the pending writes
+    private void compact() throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compacted");
+        try (FileChannel out = FileChannel.open(compacted, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            StringBuilder builder = new StringBuilder();
+            pending.forEach((id, key) -> builder.append("P ").append(id).append(' ')
+                    .append(Base64.getUrlEncoder().encodeToString(key.getBytes(StandardCharsets.UTF_8))).append('\n'));
+            ByteBuffer buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, WRITE, APPEND);
+        records = pending.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}